@@ -0,0 +1,90 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Detects the encoding of 1 MB of generated text: ASCII only, mostly ASCII in ISO-8859-1 with an accented letter
+ * every 40 characters, and 2 of 3 characters CJK in UTF-8. The ASCII runs are what the detection skips a word at a
+ * time, the CJK text goes through the UTF-8 validation byte by byte.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CharsetDetectionBenchmark {
+
+  private static final int LENGTH = 1024 * 1024;
+  private static final String ASCII = "abcdefghijklmnopqrstuvwxyz ,;0123456789";
+  private static final String ACCENTED = "éüäøñß°";
+
+  @Param({"ascii", "latin1", "cjk"})
+  public String corpus;
+
+  private byte[] data;
+  private ByteBuffer direct;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(LENGTH);
+    StringBuilder text = new StringBuilder(LENGTH);
+    while (text.length() < LENGTH) {
+      for (int i = 0; i < 80; i++) {
+        if ("cjk".equals(corpus) && random.nextInt(3) > 0) {
+          text.append((char) (0x4E00 + random.nextInt(5000)));
+        } else if ("latin1".equals(corpus) && random.nextInt(40) == 0) {
+          text.append(ACCENTED.charAt(random.nextInt(ACCENTED.length())));
+        } else {
+          text.append(ASCII.charAt(random.nextInt(ASCII.length())));
+        }
+      }
+      text.append('\n');
+    }
+    data = text.toString().getBytes("latin1".equals(corpus) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).flip();
+  }
+
+  @Benchmark
+  public Charset detectArray() {
+    return CharsetDetection.detectEncoding(data);
+  }
+
+  @Benchmark
+  public Charset detectDirectBuffer() {
+    return CharsetDetection.detectEncoding(direct);
+  }
+}
@@ -0,0 +1,113 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import org.gbif.utils.text.LineComparator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorts a generated file by its first column with the different sorts of {@link FileUtils}.
+ * Every invocation sorts the whole file once, so the time is measured per sort.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FileSortBenchmark {
+
+  @Param({"1000000"})
+  public long lines;
+
+  @Param({"8", "64"})
+  public int columnWidth;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private File input;
+  private File sorted;
+  private FileUtils futils;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    input = SortInputs.lines(lines, columnWidth);
+    sorted = File.createTempFile("sorted-", ".txt", SortInputs.directory());
+    futils = new FileUtils();
+    futils.setSortThreads(threads);
+    futils.setSortMemoryFraction(0.25);
+    futils.setSortTempDirectory(SortInputs.directory());
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteSorted() {
+    sorted.delete();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    sorted.delete();
+  }
+
+  @Benchmark
+  public File sortInJavaLineComparator() throws IOException {
+    futils.sortInJava(input, sorted, SortInputs.ENCODING, new LineComparator(0, SortInputs.DELIMITER), 0);
+    return sorted;
+  }
+
+  @Benchmark
+  public File sortInJavaByKey() throws IOException {
+    futils.sortInJavaByKey(input, sorted, SortInputs.ENCODING, 0, SortInputs.DELIMITER, null, 0);
+    return sorted;
+  }
+
+  @Benchmark
+  public File sortInJavaByCompositeKey() throws IOException {
+    futils.sortInJavaByKey(input, sorted, SortInputs.ENCODING, SortKey.of(SortKey.text(0), SortKey.ignoreCase(2)),
+      SortInputs.DELIMITER, null, 0);
+    return sorted;
+  }
+
+  /**
+   * GNU sort runs single threaded in the C locale, independent of the threads parameter.
+   */
+  @Benchmark
+  public File sortInGnu() throws IOException {
+    if (!futils.sortInGnu(input, sorted, SortInputs.ENCODING, 0, 0, SortInputs.DELIMITER, "\n", false)) {
+      throw new IllegalStateException("GNU sort is not available");
+    }
+    return sorted;
+  }
+}
@@ -0,0 +1,137 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import org.gbif.utils.text.LineComparator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merges generated, sorted chunk files with {@link FileUtils#mergedSortedFiles(List, Writer, Comparator, String)}.
+ * The merge deletes its chunk files, so fresh copies are made before every invocation, outside the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MergeSortedFilesBenchmark {
+
+  @Param({"1000000"})
+  public long lines;
+
+  @Param({"8", "64"})
+  public int columnWidth;
+
+  @Param({"16", "256"})
+  public int chunks;
+
+  private final Comparator<String> comparator = new LineComparator(0, SortInputs.DELIMITER);
+  private List<File> prepared;
+  private List<File> chunkFiles;
+  private File merged;
+  private FileUtils futils;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    prepared = new ArrayList<File>();
+    File dir = new File(SortInputs.directory(), "chunks-" + lines + '-' + columnWidth + '-' + chunks);
+    dir.mkdirs();
+    for (int c = 0; c < chunks; c++) {
+      File chunk = new File(dir, c + ".txt");
+      if (!chunk.exists()) {
+        // every chunk has its own seed, so it is the same whether or not the others exist already
+        writeSortedChunk(chunk, new Random(c), lines / chunks + (c < lines % chunks ? 1 : 0));
+      }
+      prepared.add(chunk);
+    }
+    merged = File.createTempFile("merged-", ".txt", SortInputs.directory());
+    futils = new FileUtils();
+  }
+
+  @Setup(Level.Invocation)
+  public void copyChunks() throws IOException {
+    chunkFiles = new ArrayList<File>();
+    for (File chunk : prepared) {
+      File copy = new File(chunk.getParentFile(), chunk.getName() + ".copy");
+      Files.copy(chunk.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      chunkFiles.add(copy);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    merged.delete();
+  }
+
+  @Benchmark
+  public File mergedSortedFiles() throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(merged), StandardCharsets.UTF_8);
+    futils.mergedSortedFiles(chunkFiles, writer, comparator, SortInputs.ENCODING);
+    return merged;
+  }
+
+  private void writeSortedChunk(File chunk, Random random, long size) throws IOException {
+    List<String> chunkLines = new ArrayList<String>((int) size);
+    for (long i = 0; i < size; i++) {
+      chunkLines.add(SortInputs.line(random, Math.max(1, lines / 4), columnWidth));
+    }
+    Collections.sort(chunkLines, comparator);
+    File tmp = new File(chunk.getPath() + ".tmp");
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+    try {
+      for (String line : chunkLines) {
+        writer.write(line);
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+    if (!tmp.renameTo(chunk)) {
+      throw new IOException("Cannot create chunk file " + chunk);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates the tab delimited input files of the benchmarks. Files are generated from a fixed seed, so they are
+ * identical across runs and machines, and are kept in the benchmark directory to be reused by later runs.
+ * <p/>
+ * The directory defaults to gbif-common-benchmarks in java.io.tmpdir and can be set with the system property
+ * {@code benchmark.dir}, e.g. to benchmark on a specific volume.
+ */
+public final class SortInputs {
+
+  public static final String DELIMITER = "\t";
+  public static final String ENCODING = "UTF-8";
+
+  /**
+   * The number of columns of every line.
+   */
+  public static final int COLUMNS = 8;
+
+  private static final long SEED = 20200814L;
+  private static final char[] ALPHABET =
+    "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 -_.\u00e9\u00fc\u00f8\u00df".toCharArray();
+
+  private SortInputs() {
+    throw new UnsupportedOperationException("Can't initialize class");
+  }
+
+  /**
+   * @return the directory keeping the generated files, created if needed
+   */
+  public static File directory() throws IOException {
+    File dir = new File(System.getProperty("benchmark.dir",
+      new File(System.getProperty("java.io.tmpdir"), "gbif-common-benchmarks").getAbsolutePath()));
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create benchmark directory " + dir);
+    }
+    return dir;
+  }
+
+  /**
+   * Returns a file of random lines with {@link #COLUMNS} columns. Every column has between 1 and columnWidth
+   * characters, the first column only takes lines / 4 distinct values so it has duplicates like a core id.
+   *
+   * @param lines the number of lines
+   * @param columnWidth the maximum characters per column
+   */
+  public static File lines(long lines, int columnWidth) throws IOException {
+    File file = new File(directory(), "lines-" + lines + '-' + columnWidth + ".txt");
+    if (!file.exists()) {
+      File tmp = new File(file.getPath() + ".tmp");
+      Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8),
+        1024 * 1024);
+      try {
+        write(writer, lines, columnWidth, new Random(SEED + columnWidth));
+      } finally {
+        writer.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Cannot create benchmark file " + file);
+      }
+    }
+    return file;
+  }
+
+  /**
+   * @return a random line with {@link #COLUMNS} columns
+   */
+  public static String line(Random random, long distinctIds, int columnWidth) {
+    StringBuilder sb = new StringBuilder(COLUMNS * (columnWidth + 1));
+    appendLine(sb, random, distinctIds, columnWidth);
+    return sb.toString();
+  }
+
+  private static void write(Writer writer, long lines, int columnWidth, Random random) throws IOException {
+    long distinctIds = Math.max(1, lines / 4);
+    StringBuilder sb = new StringBuilder(COLUMNS * (columnWidth + 1) + 1);
+    for (long i = 0; i < lines; i++) {
+      sb.setLength(0);
+      appendLine(sb, random, distinctIds, columnWidth);
+      sb.append('\n');
+      writer.append(sb);
+    }
+  }
+
+  private static void appendLine(StringBuilder sb, Random random, long distinctIds, int columnWidth) {
+    // the id has the full column width and is derived from one of the distinct id numbers
+    Random id = new Random((long) (random.nextDouble() * distinctIds));
+    appendValue(sb, id, columnWidth);
+    for (int c = 1; c < COLUMNS; c++) {
+      sb.append(DELIMITER);
+      appendValue(sb, random, 1 + random.nextInt(columnWidth));
+    }
+  }
+
+  private static void appendValue(StringBuilder sb, Random random, int length) {
+    for (int i = 0; i < length; i++) {
+      sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import org.gbif.utils.file.SortInputs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates CSV files with a header row, from a fixed seed and kept in the benchmark directory like
+ * {@link SortInputs}. About a quarter of the values are quoted, some of them containing delimiters and escaped quotes.
+ */
+public final class CsvInputs {
+
+  public static final int COLUMNS = 12;
+
+  private static final char[] ALPHABET =
+    "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 -_.\u00e9\u00fc\u00f8\u00df".toCharArray();
+
+  private CsvInputs() {
+    throw new UnsupportedOperationException("Can't initialize class");
+  }
+
+  /**
+   * @param rows the number of rows after the header
+   * @param columnWidth the maximum characters per value
+   */
+  public static File csv(long rows, int columnWidth) throws IOException {
+    File file = new File(SortInputs.directory(), "rows-" + rows + '-' + columnWidth + ".csv");
+    if (!file.exists()) {
+      File tmp = new File(file.getPath() + ".tmp");
+      Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8),
+        1024 * 1024);
+      try {
+        Random random = new Random(rows + columnWidth);
+        for (int c = 0; c < COLUMNS; c++) {
+          writer.write(c == 0 ? "id" : ",column" + c);
+        }
+        writer.write('\n');
+        StringBuilder sb = new StringBuilder();
+        for (long r = 0; r < rows; r++) {
+          sb.setLength(0);
+          for (int c = 0; c < COLUMNS; c++) {
+            if (c > 0) {
+              sb.append(',');
+            }
+            appendValue(sb, random, random.nextInt(columnWidth + 1));
+          }
+          sb.append('\n');
+          writer.append(sb);
+        }
+      } finally {
+        writer.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Cannot create benchmark file " + file);
+      }
+    }
+    return file;
+  }
+
+  private static void appendValue(StringBuilder sb, Random random, int length) {
+    boolean quoted = random.nextInt(4) == 0;
+    if (quoted) {
+      sb.append('"');
+    }
+    for (int i = 0; i < length; i++) {
+      if (quoted && random.nextInt(16) == 0) {
+        sb.append(random.nextBoolean() ? "," : "\"\"");
+      } else {
+        sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+      }
+    }
+    if (quoted) {
+      sb.append('"');
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import org.gbif.utils.file.tabular.TabularDataFileReader;
+import org.gbif.utils.file.tabular.TabularFiles;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.text.StrTokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads a whole generated CSV file with the {@link CSVReader}, as strings and as row views, with the
+ * {@link ParallelCSVReader}, with the line by line StrTokenizer approach the
+ * CSVReader used before, and with the Jackson based {@link TabularDataFileReader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CsvReaderBenchmark {
+
+  @Param({"1000000"})
+  public long rows;
+
+  @Param({"8", "64"})
+  public int columnWidth;
+
+  private File csv;
+
+  @Setup
+  public void setUp() throws IOException {
+    csv = CsvInputs.csv(rows, columnWidth);
+  }
+
+  @Benchmark
+  public void csvReader(Blackhole bh) throws IOException {
+    try (CSVReader reader = new CSVReader(csv, "UTF-8", ",", '"', 1)) {
+      while (reader.hasNext()) {
+        bh.consume(reader.next());
+      }
+    }
+  }
+
+  /**
+   * Only looks at two columns of the reused row views, like most lookup jobs.
+   */
+  @Benchmark
+  public void csvReaderRows(Blackhole bh) throws IOException {
+    try (CSVReader reader = new CSVReader(csv, "UTF-8", ",", '"', 1)) {
+      CSVRow row;
+      while ((row = reader.nextRow()) != null) {
+        bh.consume(row.isEmpty(1));
+        bh.consume(row.get(3).length());
+      }
+    }
+  }
+
+  /**
+   * Only creates strings of two projected columns.
+   */
+  @Benchmark
+  public void csvReaderProjection(Blackhole bh) throws IOException {
+    try (CSVReader reader = new CSVReader(csv, "UTF-8", ",", '"', 1)) {
+      reader.setProjection(1, 3);
+      while (reader.hasNext()) {
+        bh.consume(reader.next());
+      }
+    }
+  }
+
+  @Benchmark
+  public void mappedCsvReader(Blackhole bh) throws IOException {
+    try (MappedCSVReader reader = new MappedCSVReader(csv, "UTF-8", ",", '"', 1)) {
+      while (reader.hasNext()) {
+        bh.consume(reader.next());
+      }
+    }
+  }
+
+  /**
+   * Only decodes two columns of the reused row views.
+   */
+  @Benchmark
+  public void mappedCsvReaderRows(Blackhole bh) throws IOException {
+    try (MappedCSVReader reader = new MappedCSVReader(csv, "UTF-8", ",", '"', 1)) {
+      CSVRow row;
+      while ((row = reader.nextRow()) != null) {
+        bh.consume(row.isEmpty(1));
+        bh.consume(row.get(3).length());
+      }
+    }
+  }
+
+  @Benchmark
+  public void parallelCsvReader(Blackhole bh) throws IOException {
+    ParallelCSVReader reader = new ParallelCSVReader(csv, "UTF-8", ",", '"', 1);
+    reader.setChunkSize(4 * 1024 * 1024);
+    try (Stream<String[]> rows = reader.rows()) {
+      rows.forEach(bh::consume);
+    }
+  }
+
+  @Benchmark
+  public void strTokenizer(Blackhole bh) throws IOException {
+    StrTokenizer tokenizer = new StrTokenizer();
+    tokenizer.setDelimiterString(",");
+    tokenizer.setQuoteChar('"');
+    tokenizer.setIgnoreEmptyTokens(false);
+    try (BufferedReader reader =
+           new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8))) {
+      // skip the header
+      String line = reader.readLine();
+      while ((line = reader.readLine()) != null) {
+        tokenizer.reset(line);
+        bh.consume(tokenizer.getTokenArray());
+      }
+    }
+  }
+
+  @Benchmark
+  public void jacksonCsvFileReader(Blackhole bh) throws IOException, ParseException {
+    try (TabularDataFileReader<List<String>> reader = TabularFiles.newTabularFileReader(
+      new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8), ',', "\n", '"', true)) {
+      List<String> row;
+      while ((row = reader.read()) != null) {
+        bh.consume(row);
+      }
+    }
+  }
+}
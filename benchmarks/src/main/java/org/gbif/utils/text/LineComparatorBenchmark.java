@@ -0,0 +1,81 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.text;
+
+import org.gbif.utils.file.SortInputs;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares pairs of generated lines with a {@link LineComparator}, the cost paid for every comparison of a Java sort
+ * with a String comparator.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LineComparatorBenchmark {
+
+  // a power of two, to pick pairs with a mask
+  private static final int LINES = 4096;
+
+  @Param({"8", "64"})
+  public int columnWidth;
+
+  @Param({"0", "5"})
+  public int column;
+
+  @Param({"false", "true"})
+  public boolean quoted;
+
+  private String[] lines;
+  private Comparator<String> comparator;
+  private int index;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(LINES + columnWidth);
+    lines = new String[LINES];
+    for (int i = 0; i < LINES; i++) {
+      lines[i] = SortInputs.line(random, LINES / 4, columnWidth);
+    }
+    comparator = quoted ? new LineComparator(column, SortInputs.DELIMITER, '"')
+      : new LineComparator(column, SortInputs.DELIMITER);
+  }
+
+  @Benchmark
+  public int compare() {
+    index = (index + 1) & (LINES - 1);
+    return comparator.compare(lines[index], lines[(index * 31 + 7) & (LINES - 1)]);
+  }
+}
@@ -18,6 +18,9 @@ package org.gbif.utils.file;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
 
 /**
  * A wrapper for an input stream that removes UTF8 BOM sequences at the start of the file.
@@ -28,7 +31,8 @@ import java.io.InputStream;
  *  <li>https://de.wikipedia.org/wiki/Byte_Order_Mark</li>
  * </ul>
  *
- * @deprecated use org.apache.commons.io.input.BOMInputStream instead
+ * @deprecated use org.apache.commons.io.input.BOMInputStream instead, or {@link CharsetDetection#newReader(InputStream)}
+ *             to read text in its detected encoding
  */
 @Deprecated
 public class BomSafeInputStreamWrapper extends InputStream {
@@ -36,7 +40,9 @@ public class BomSafeInputStreamWrapper extends InputStream {
   private static final int BUFFER_SIZE = 4;
   private final InputStream stream;
   private final byte[] buffer = new byte[BUFFER_SIZE];
+  // the bytes read ahead and not consumed yet are buffer[pointer, length)
   private int pointer = 0;
+  private int length = 0;
 
   public BomSafeInputStreamWrapper(InputStream stream) {
     this.stream = stream;
@@ -45,21 +51,76 @@ public class BomSafeInputStreamWrapper extends InputStream {
 
   @Override
   public int read() throws IOException {
-    if (pointer < BUFFER_SIZE) {
-      pointer++;
-      return buffer[pointer - 1];
+    if (pointer < length) {
+      return buffer[pointer++] & 0xff;
     } else {
       return stream.read();
     }
   }
 
+  /**
+   * Returns only the remaining bytes read ahead, if any, so the call never blocks on the stream for more.
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (pointer < length) {
+      int count = Math.min(len, length - pointer);
+      System.arraycopy(buffer, pointer, b, off, count);
+      pointer += count;
+      return count;
+    }
+    return stream.read(b, off, len);
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) {
+      return 0;
+    }
+    int count = (int) Math.min(n, length - pointer);
+    pointer += count;
+    return count < n ? count + stream.skip(n - count) : count;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return length - pointer + stream.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    stream.close();
+  }
+
+  /**
+   * Copies all remaining bytes to the output stream without closing either, like InputStream.transferTo of Java 9.
+   *
+   * @return the number of bytes copied
+   */
+  public long transferTo(OutputStream out) throws IOException {
+    long count = length - pointer;
+    out.write(buffer, pointer, length - pointer);
+    pointer = length;
+    return count + IOUtils.copyLarge(stream, out);
+  }
+
   private void skipBom() {
     try {
-      stream.read(buffer, 0, BUFFER_SIZE);
-      if (CharsetDetection.hasUTF16BEBom(buffer) || CharsetDetection.hasUTF16LEBom(buffer)) {
+      // the stream can return less than asked for
+      int read;
+      while (length < BUFFER_SIZE && (read = stream.read(buffer, length, BUFFER_SIZE - length)) > 0) {
+        length += read;
+      }
+      if (length >= 2 && (CharsetDetection.hasUTF16BEBom(buffer) || CharsetDetection.hasUTF16LEBom(buffer))) {
         // SQX Parser handles UTF16 BOMs fine
         pointer = 2;
-      } else if (CharsetDetection.hasUTF8Bom(buffer)) {
+      } else if (length >= 3 && CharsetDetection.hasUTF8Bom(buffer)) {
         pointer = 3;
       }
     } catch (IOException ignored) {
@@ -0,0 +1,174 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Reads lines as raw bytes and sorts them by the bytes of a single column, without ever decoding them.
+ * <p/>
+ * The order is the one of GNU sort in the C locale with a key like {@code -k2,2 -t';'}: keys are compared as unsigned
+ * bytes and lines with equal keys are compared as a whole, again as unsigned bytes. A line without the column has an
+ * empty key. For UTF-8 this is the order of the Unicode code points.
+ * <p/>
+ * Ignoring case folds the ASCII letters a-z to upper case in keys, like the {@code --ignore-case} option. Lines with
+ * keys that are equal ignoring case are still compared as a whole with their case.
+ * <p/>
+ * If a quote character is given, delimiters within quotes do not separate columns, and the key still contains the
+ * quotes. GNU sort does not know about quotes and splits on every delimiter, so the order only matches GNU sort if no
+ * quoted value contains the delimiter.
+ * <p/>
+ * Lines are terminated by \n only, a \r before it is part of the line. This requires an ASCII compatible encoding,
+ * see {@link #supports(Charset)}.
+ */
+class ByteKeyLineFormat implements LineFormat<KeyedLine> {
+
+  /**
+   * Estimated heap bytes used by a line on top of its bytes: the line and array headers, the list reference and
+   * alignment.
+   */
+  private static final int LINE_OVERHEAD_BYTES = 48;
+
+  private static final Comparator<KeyedLine> COMPARATOR = new Comparator<KeyedLine>() {
+    @Override
+    public int compare(KeyedLine o1, KeyedLine o2) {
+      int c = compareBytes(o1.line, o1.keyStart, o1.keyEnd, o2.line, o2.keyStart, o2.keyEnd);
+      return c != 0 ? c : compareBytes(o1.line, 0, o1.line.length, o2.line, 0, o2.line.length);
+    }
+  };
+
+  private static final Comparator<KeyedLine> IGNORE_CASE_COMPARATOR = new Comparator<KeyedLine>() {
+    @Override
+    public int compare(KeyedLine o1, KeyedLine o2) {
+      int c = compareBytesIgnoreCase(o1.line, o1.keyStart, o1.keyEnd, o2.line, o2.keyStart, o2.keyEnd);
+      return c != 0 ? c : compareBytes(o1.line, 0, o1.line.length, o2.line, 0, o2.line.length);
+    }
+  };
+
+  private final int column;
+  private final ColumnSplitter splitter;
+  private final boolean ignoreCase;
+
+  /**
+   * @param column the column that keeps the values to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param encoding of the file, must be {@link #supports(Charset) supported}
+   * @param ignoreCase compare keys ignoring the case of ASCII letters
+   */
+  ByteKeyLineFormat(int column, String columnDelimiter, Character enclosedBy, Charset encoding, boolean ignoreCase) {
+    if (!supports(encoding)) {
+      throw new IllegalArgumentException("Sorting raw lines requires an ASCII compatible encoding, not " + encoding);
+    }
+    this.column = column;
+    this.splitter = new ColumnSplitter(columnDelimiter, enclosedBy, encoding);
+    this.ignoreCase = ignoreCase;
+  }
+
+  /**
+   * Raw lines can be split on single newline bytes and into columns by the bytes of the delimiter for UTF-8 and all
+   * single byte encodings that are ASCII compatible. Other multibyte encodings may contain those bytes within
+   * characters.
+   */
+  static boolean supports(Charset encoding) {
+    if (StandardCharsets.UTF_8.equals(encoding)) {
+      return true;
+    }
+    if (!encoding.canEncode() || encoding.newEncoder().maxBytesPerChar() != 1) {
+      return false;
+    }
+    byte[] ascii = new byte[128];
+    for (int i = 0; i < ascii.length; i++) {
+      ascii[i] = (byte) i;
+    }
+    return Arrays.equals(ascii, new String(ascii, StandardCharsets.US_ASCII).getBytes(encoding));
+  }
+
+  @Override
+  public Comparator<KeyedLine> getComparator() {
+    return ignoreCase ? IGNORE_CASE_COMPARATOR : COMPARATOR;
+  }
+
+  @Override
+  public long estimateSize(KeyedLine line) {
+    return LINE_OVERHEAD_BYTES + line.line.length;
+  }
+
+  @Override
+  public LineReader<KeyedLine> newReader(InputStream in) {
+    return RawLines.newReader(in, this::toKeyedLine);
+  }
+
+  @Override
+  public LineWriter<KeyedLine> newWriter(OutputStream out) {
+    return RawLines.newWriter(out, line -> line.line);
+  }
+
+  /**
+   * Locates the key of a line.
+   */
+  KeyedLine toKeyedLine(byte[] line) {
+    int start = 0;
+    for (int c = 0; c < column; c++) {
+      int end = splitter.endOfColumn(line, start);
+      if (end == line.length) {
+        // the column does not exist
+        return new KeyedLine(line, line.length, line.length);
+      }
+      start = end + splitter.delimiterLength();
+    }
+    return new KeyedLine(line, start, splitter.endOfColumn(line, start));
+  }
+
+  /**
+   * Compares two byte ranges lexicographically as unsigned bytes.
+   */
+  static int compareBytes(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+    int len = Math.min(aTo - aFrom, bTo - bFrom);
+    for (int i = 0; i < len; i++) {
+      int c = (a[aFrom + i] & 0xff) - (b[bFrom + i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return (aTo - aFrom) - (bTo - bFrom);
+  }
+
+  /**
+   * Compares two byte ranges lexicographically as unsigned bytes, with ASCII letters folded to upper case.
+   */
+  static int compareBytesIgnoreCase(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+    int len = Math.min(aTo - aFrom, bTo - bFrom);
+    for (int i = 0; i < len; i++) {
+      int c = toUpper(a[aFrom + i]) - toUpper(b[bFrom + i]);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return (aTo - aFrom) - (bTo - bFrom);
+  }
+
+  private static int toUpper(byte b) {
+    int i = b & 0xff;
+    return i >= 'a' && i <= 'z' ? i - ('a' - 'A') : i;
+  }
+}
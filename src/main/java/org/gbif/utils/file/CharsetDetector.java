@@ -0,0 +1,434 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.function.IntPredicate;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Detects the encoding of bytes given block by block, with the heuristics of {@link CharsetDetection} but without
+ * keeping the bytes: only the byte order mark, the UTF-16 zero and surrogate statistics, the state of the UTF-8
+ * validation and the counts of the non-ASCII bytes for the 8-bit penalties are kept.
+ * <p/>
+ * The detected charset is the one of all bytes given so far, see {@link #getCharset()}. It can change with more bytes,
+ * unless {@link #isCertain()}.
+ * <p/>
+ * All bytes are validated as UTF-8, only a multi-byte sequence truncated by the end of the bytes is ignored. Runs of
+ * ASCII are checked a long word of 8 bytes at a time. UTF-16 is given up once the first
+ * {@link #UTF16_DECISION_LENGTH} bytes have hardly any zeros, or are invalid in both byte orders, as the UTF-16
+ * heuristic of {@link #getCharset()} can then only win with bytes of a different encoding following.
+ * <p/>
+ * Not thread safe.
+ */
+public class CharsetDetector {
+
+  private static final int CERTAIN = Integer.MAX_VALUE;
+
+  // the bytes after which UTF-16 is given up if less than 1 in UTF16_MIN_ZEROS of them are zeros, checked every as
+  // many bytes
+  static final int UTF16_DECISION_LENGTH = 64 * 1024;
+  private static final int UTF16_MIN_ZEROS = 100;
+
+  // the states of the UTF-8 validation are the continuation bytes expected, or 6 if INVALID, times the bits of a state
+  private static final int UTF8_STATE_BITS = 6;
+  private static final int INVALID = 6 * UTF8_STATE_BITS;
+  // the states of the UTF-16 validation
+  private static final int VALID = 0;
+  private static final int HIGH_SURROGATE = 1;
+  private static final int MALFORMED = 2;
+
+  private static final long HIGH_BITS = 0x8080808080808080L;
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  // the high bits of the bytes at even and odd positions of a little endian word
+  private static final long EVEN_HIGH_BITS = 0x0080008000800080L;
+  private static final long ODD_HIGH_BITS = 0x8000800080008000L;
+
+  // the suspicion of every non-ASCII byte in the 8 bit encodings, CERTAIN if the byte is not defined in the encoding
+  // range 7f-9f undefined, see http://de.wikipedia.org/wiki/ISO_8859-1
+  private static final int[] LATIN1_SUSPICION = suspicion(CharsetDetection.LATIN1, u -> u <= 0x9f);
+  // 5 undefined chars
+  private static final int[] WINDOWS1252_SUSPICION = suspicion(CharsetDetection.WINDOWS1252,
+    u -> u == 0x81 || u == 0x8d || u == 0x8f || u == 0x90 || u == 0x9d);
+  // all ranges defined
+  private static final int[] MACROMAN_SUSPICION = suspicion(CharsetDetection.MACROMAN, u -> false);
+
+  // the next UTF-8 state of every byte and state, in the UTF8_STATE_BITS at the state, so that the state is not a
+  // dependency of the table lookup
+  private static final long[] UTF8_NEXT = new long[256];
+  // the UTF-16 class of every high byte of a unit: 0, or a high or low surrogate
+  private static final byte[] UTF16_CLASS = new byte[256];
+  // the class of a reversed byte order mark, which is never valid
+  private static final int REVERSED_BOM = 3;
+  // the next UTF-16 state of every state and class, at state * 4 + class
+  private static final byte[] UTF16_NEXT = {
+    VALID, HIGH_SURROGATE, MALFORMED, MALFORMED,
+    MALFORMED, MALFORMED, VALID, MALFORMED,
+    MALFORMED, MALFORMED, MALFORMED, MALFORMED
+  };
+
+  static {
+    for (int u = 0; u < 256; u++) {
+      for (int state = 0; state <= INVALID; state += UTF8_STATE_BITS) {
+        UTF8_NEXT[u] |= (long) utf8Transition(state, u) << state;
+      }
+    }
+    for (int u = 0xD8; u <= 0xDF; u++) {
+      UTF16_CLASS[u] = (byte) (u <= 0xDB ? 1 : 2);
+    }
+  }
+
+  private final byte[] bom = new byte[3];
+  private long length;
+
+  // UTF-16
+  private long zerosBE;
+  private long zerosLE;
+  private int previous;
+  private int utf16BE;
+  private int utf16LE;
+
+  // UTF-8, the continuation bytes expected or INVALID
+  private int continuations;
+
+  // 8 bit, the count of every byte in words with non-ASCII bytes
+  private final long[] counts = new long[256];
+
+  /**
+   * Adds the next block of bytes.
+   */
+  public void update(byte[] bytes, int offset, int count) {
+    update(ByteBuffer.wrap(bytes, offset, count));
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer, heap or direct, consuming them.
+   */
+  public void update(ByteBuffer bytes) {
+    if (!isCertain()) {
+      // absolute gets, in little endian so the first byte of a word is the lowest
+      scan(bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN), bytes.position(), bytes.limit());
+    } else {
+      length += bytes.remaining();
+    }
+    bytes.position(bytes.limit());
+  }
+
+  /**
+   * Scans the bytes for all encodings as long as UTF-16 is possible, checking every {@link #UTF16_DECISION_LENGTH}
+   * bytes whether it still is, and then for UTF-8 and the 8 bit encodings only.
+   */
+  private void scan(ByteBuffer bytes, int from, int to) {
+    int i = from;
+    while (i < to && isUtf16Possible()) {
+      int end = i + Math.min(to - i, UTF16_DECISION_LENGTH);
+      scanUtf16(bytes, i, end);
+      i = end;
+      if (length >= UTF16_DECISION_LENGTH && Math.max(zerosBE, zerosLE) < length / UTF16_MIN_ZEROS) {
+        // far from the zeros of the UTF-16 heuristic, see getCharset()
+        utf16BE = MALFORMED;
+        utf16LE = MALFORMED;
+      }
+    }
+    if (i < to) {
+      scanUtf8(bytes, i, to);
+    }
+  }
+
+  /**
+   * @return false once the bytes cannot be UTF-16 without a byte order mark, which does not change with more bytes
+   */
+  private boolean isUtf16Possible() {
+    return utf16BE != MALFORMED || utf16LE != MALFORMED;
+  }
+
+  /**
+   * Skips runs of ASCII 8 bytes at once, only the bytes of words with the high bit set go through the UTF-8 and UTF-16
+   * state machines and the 8 bit counters byte by byte. The state is kept in locals during the scan.
+   */
+  private void scanUtf16(ByteBuffer bytes, int from, int to) {
+    long length = this.length;
+    long zerosBE = this.zerosBE;
+    long zerosLE = this.zerosLE;
+    int previous = this.previous;
+    int utf16BE = this.utf16BE;
+    int utf16LE = this.utf16LE;
+    int continuations = this.continuations;
+
+    int i = from;
+    while (i < to) {
+      // ASCII bytes cannot change any state at the start of a UTF-16 unit and of a UTF-8 character, once the byte
+      // order mark is known and without an open surrogate pair
+      if (length >= bom.length && (length & 1) == 0 && (continuations == 0 || continuations == INVALID)
+          && utf16BE != HIGH_SURROGATE && utf16LE != HIGH_SURROGATE) {
+        int start = i;
+        while (i <= to - 8) {
+          long word = bytes.getLong(i);
+          if ((word & HIGH_BITS) != 0) {
+            break;
+          }
+          // a byte below 0x80 is not zero if adding 0x7f to it sets its high bit, without carrying over
+          long nonZero = (word + LOW_BITS) & HIGH_BITS;
+          if (nonZero != HIGH_BITS) {
+            zerosBE += 4 - Long.bitCount(nonZero & EVEN_HIGH_BITS);
+            zerosLE += 4 - Long.bitCount(nonZero & ODD_HIGH_BITS);
+          }
+          i += 8;
+        }
+        if (i > start) {
+          length += i - start;
+          previous = bytes.get(i - 1) & 0xff;
+        }
+      }
+
+      // the next word has a non-ASCII byte, or is the end of the bytes, table driven to avoid unpredictable branches
+      for (int end = Math.min(i + 8, to); i < end; i++) {
+        int u = bytes.get(i) & 0xff;
+        if (length < bom.length) {
+          bom[(int) length] = (byte) u;
+        }
+
+        // zeros are frequent in one of the bytes of UTF-16 with latin characters, the first byte is the high one in BE
+        int zero = (u - 1) >>> 31;
+        if ((length & 1) == 0) {
+          zerosBE += zero;
+        } else {
+          zerosLE += zero;
+          utf16BE = UTF16_NEXT[utf16BE << 2 | utf16Class(previous, u)];
+          utf16LE = UTF16_NEXT[utf16LE << 2 | utf16Class(u, previous)];
+        }
+        previous = u;
+
+        continuations = utf8Next(UTF8_NEXT[u], continuations);
+        counts[u]++;
+        length++;
+      }
+    }
+
+    this.length = length;
+    this.zerosBE = zerosBE;
+    this.zerosLE = zerosLE;
+    this.previous = previous;
+    this.utf16BE = utf16BE;
+    this.utf16LE = utf16LE;
+    this.continuations = continuations;
+  }
+
+  /**
+   * Scans like {@link #scanUtf16(ByteBuffer, int, int)} once UTF-16 is not possible, and the byte order mark is known:
+   * only the UTF-8 state machine and the 8 bit counters remain, and ASCII runs no longer need to start at an even
+   * position.
+   */
+  private void scanUtf8(ByteBuffer bytes, int from, int to) {
+    int continuations = this.continuations;
+    int i = from;
+    for (; i <= to - 8; i += 8) {
+      long word = bytes.getLong(i);
+      if ((word & HIGH_BITS) != 0 || continuations != 0 && continuations != INVALID) {
+        for (int shift = 0; shift < 64; shift += 8) {
+          int u = (int) (word >>> shift) & 0xff;
+          continuations = utf8Next(UTF8_NEXT[u], continuations);
+          counts[u]++;
+        }
+      }
+    }
+    for (; i < to; i++) {
+      int u = bytes.get(i) & 0xff;
+      continuations = utf8Next(UTF8_NEXT[u], continuations);
+      counts[u]++;
+    }
+    length += to - from;
+    this.continuations = continuations;
+  }
+
+  /**
+   * @return the UTF-8 state after a byte, to build the table
+   */
+  private static int utf8Transition(int state, int u) {
+    // 0xxxxxxx, 110xxxxx, 1110xxxx, 11110xxx, 111110xx, 1111110x start a character, 10xxxxxx continue it
+    if (state == 0 && u < 0x80) {
+      return 0;
+    } else if (state == 0 && u >= 0xC0 && u <= 0xFD) {
+      return (u < 0xE0 ? 1 : u < 0xF0 ? 2 : u < 0xF8 ? 3 : u < 0xFC ? 4 : 5) * UTF8_STATE_BITS;
+    } else if (state > 0 && state < INVALID && u >= 0x80 && u < 0xC0) {
+      return state - UTF8_STATE_BITS;
+    }
+    return INVALID;
+  }
+
+  /**
+   * @return the UTF-8 state after a byte, a shift of the transitions of the byte
+   */
+  private static int utf8Next(long transitions, int state) {
+    return (int) (transitions >>> state) & ((1 << UTF8_STATE_BITS) - 1);
+  }
+
+  /**
+   * Classifies the 16 bit units of UTF-16 to validate them like the JDK decoder: surrogates must be paired and a
+   * reversed byte order mark is not allowed.
+   */
+  private static int utf16Class(int high, int low) {
+    return (high << 8 | low) == 0xFFFE ? REVERSED_BOM : UTF16_CLASS[high];
+  }
+
+  /**
+   * @param state of the validation
+   * @return true if the UTF-16 bytes are valid, they must end with a complete unit
+   */
+  private boolean isValidUtf16(int state) {
+    return state == VALID && (length & 1) == 0;
+  }
+
+  /**
+   * @return the number of bytes given so far
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @return the number of bytes given so far that are not ASCII, only those tell UTF-8 and the 8 bit encodings apart
+   */
+  public long getNonAsciiCount() {
+    long count = 0;
+    for (int u = 0x80; u < counts.length; u++) {
+      count += counts[u];
+    }
+    return count;
+  }
+
+  /**
+   * @return true if more bytes cannot change the detected charset, which is the case with a byte order mark
+   */
+  public boolean isCertain() {
+    return bomCharset() != null;
+  }
+
+  /**
+   * @return the length of the byte order mark, 0 if there is none
+   */
+  int getBomLength() {
+    Charset charset = bomCharset();
+    return charset == null ? 0 : Charsets.UTF_8.equals(charset) ? 3 : 2;
+  }
+
+  private Charset bomCharset() {
+    if (length >= 3 && CharsetDetection.hasUTF8Bom(bom)) {
+      return Charsets.UTF_8;
+    }
+    if (length >= 2 && CharsetDetection.hasUTF16LEBom(bom)) {
+      return Charsets.UTF_16LE;
+    }
+    if (length >= 2 && CharsetDetection.hasUTF16BEBom(bom)) {
+      return Charsets.UTF_16BE;
+    }
+    return null;
+  }
+
+  /**
+   * @return the charset of the bytes given so far, UTF-8 if none were given
+   */
+  public Charset getCharset() {
+    Charset charset = bomCharset();
+    if (charset != null) {
+      return charset;
+    }
+
+    // a UTF16 encoding with many latin characters would have either lots of even or uneven bytes as zero - but not both
+    long min = length / 10;
+    if ((zerosBE > min || zerosLE > min) && Math.abs(zerosBE - zerosLE) > min) {
+      if (isValidUtf16(zerosBE > zerosLE ? utf16BE : utf16LE)) {
+        return zerosBE > zerosLE ? Charsets.UTF_16BE : Charsets.UTF_16LE;
+      }
+      // without a byte order mark plain UTF-16 is big endian
+      if (isValidUtf16(utf16BE)) {
+        return Charsets.UTF_16;
+      }
+    }
+
+    if (continuations != INVALID) {
+      return Charsets.UTF_8;
+    }
+
+    // finally it must be some 8bit encoding, the first one with the least suspicious chars
+    charset = CharsetDetection.LATIN1;
+    long leastSuspicion = suspicion(LATIN1_SUSPICION);
+    long suspicion = suspicion(WINDOWS1252_SUSPICION);
+    if (suspicion < leastSuspicion) {
+      charset = CharsetDetection.WINDOWS1252;
+      leastSuspicion = suspicion;
+    }
+    if (suspicion(MACROMAN_SUSPICION) < leastSuspicion) {
+      charset = CharsetDetection.MACROMAN;
+    }
+    return charset;
+  }
+
+  /**
+   * @return the suspicion of the bytes given so far in an 8 bit encoding, Long.MAX_VALUE if they cannot be decoded
+   */
+  private long suspicion(int[] suspicions) {
+    if (suspicions == null) {
+      return Long.MAX_VALUE;
+    }
+    long suspicion = 0;
+    for (int u = 0x80; u < counts.length; u++) {
+      if (counts[u] > 0) {
+        if (suspicions[u] == CERTAIN) {
+          return Long.MAX_VALUE;
+        }
+        suspicion += counts[u] * suspicions[u];
+      }
+    }
+    return suspicion;
+  }
+
+  /**
+   * The suspicion of every non-ASCII byte in an 8 bit encoding: -1 for common characters, a penalty for rarely used
+   * ones and CERTAIN for bytes that cannot be decoded.
+   *
+   * @param rare the bytes that are rarely used
+   * @return the suspicion of every byte, or null if the encoding is not supported
+   */
+  private static int[] suspicion(Charset charset, IntPredicate rare) {
+    if (charset == null) {
+      return null;
+    }
+    int[] suspicion = new int[256];
+    CharsetDecoder decoder = charset.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPORT)
+      .onUnmappableCharacter(CodingErrorAction.REPORT);
+    for (int u = 0x80; u < 256; u++) {
+      try {
+        char c = decoder.reset().decode(ByteBuffer.wrap(new byte[] {(byte) u})).get();
+        suspicion[u] = CharsetDetection.isCommonChar(c) ? -1 : 0;
+        if (rare.test(u)) {
+          suspicion[u] += CharsetDetection.UNDEFINED_PENALTY;
+        }
+      } catch (CharacterCodingException e) {
+        suspicion[u] = CERTAIN;
+      }
+    }
+    return suspicion;
+  }
+}
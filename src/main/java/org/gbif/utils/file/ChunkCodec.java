@@ -0,0 +1,42 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes the chunk files an external Java sort spills to disk and merges back, e.g. to compress them when the sort is
+ * I/O bound. See {@link ChunkCodecs} for the built in codecs.
+ * <p/>
+ * Implementations must be thread safe, as chunks are written and read concurrently.
+ */
+public interface ChunkCodec {
+
+  /**
+   * @param out the buffered stream of a new chunk file
+   * @return a stream encoding everything written to it into the chunk file, closing it closes the chunk file
+   */
+  OutputStream encode(OutputStream out) throws IOException;
+
+  /**
+   * @param in the buffered stream of a chunk file written by {@link #encode(OutputStream)}
+   * @return a stream of the decoded chunk, closing it closes the chunk file
+   */
+  InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,118 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.snappy.FramedSnappyCompressorInputStream;
+import org.apache.commons.compress.compressors.snappy.FramedSnappyCompressorOutputStream;
+
+/**
+ * The built in chunk codecs. The fast compressions trade some CPU for less disk I/O, which pays off on slow or
+ * network volumes.
+ */
+public enum ChunkCodecs implements ChunkCodec {
+
+  /**
+   * Plain chunk files, the default.
+   */
+  NONE {
+    @Override
+    public OutputStream encode(OutputStream out) {
+      return out;
+    }
+
+    @Override
+    public InputStream decode(InputStream in) {
+      return in;
+    }
+  },
+
+  /**
+   * Deflate with the fastest compression level.
+   */
+  DEFLATE {
+    @Override
+    public OutputStream encode(OutputStream out) {
+      final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      return new DeflaterOutputStream(out, deflater, ExternalSorter.BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            // a deflater given to the stream is not released by it
+            deflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public InputStream decode(InputStream in) {
+      final Inflater inflater = new Inflater();
+      return new InflaterInputStream(in, inflater, ExternalSorter.BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+  },
+
+  /**
+   * The LZ4 frame format.
+   */
+  LZ4 {
+    @Override
+    public OutputStream encode(OutputStream out) throws IOException {
+      return new FramedLZ4CompressorOutputStream(out);
+    }
+
+    @Override
+    public InputStream decode(InputStream in) throws IOException {
+      return new FramedLZ4CompressorInputStream(in);
+    }
+  },
+
+  /**
+   * The Snappy framing format.
+   */
+  SNAPPY {
+    @Override
+    public OutputStream encode(OutputStream out) throws IOException {
+      return new FramedSnappyCompressorOutputStream(out);
+    }
+
+    @Override
+    public InputStream decode(InputStream in) throws IOException {
+      return new FramedSnappyCompressorInputStream(in);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens the chunk files of a sort through a {@link ChunkCodec} and counts the bytes written to and read from disk.
+ * Thread safe.
+ */
+final class ChunkFiles {
+
+  private final ChunkCodec codec;
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+
+  ChunkFiles(ChunkCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * @return a stream writing to a new chunk file, or replacing an existing one
+   */
+  OutputStream create(File chunk) throws IOException {
+    OutputStream out = new FileOutputStream(chunk);
+    try {
+      return codec.encode(new BufferedOutputStream(new CountingOutputStream(out), ExternalSorter.BUFFER_SIZE));
+    } catch (IOException | RuntimeException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return a stream reading a chunk file
+   */
+  InputStream open(File chunk) throws IOException {
+    InputStream in = new FileInputStream(chunk);
+    try {
+      return codec.decode(new BufferedInputStream(new CountingInputStream(in), ExternalSorter.BUFFER_SIZE));
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the bytes written to all chunk files so far
+   */
+  long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * @return the bytes read from all chunk files so far
+   */
+  long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  private class CountingOutputStream extends FilterOutputStream {
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      bytesWritten.incrementAndGet();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      bytesWritten.addAndGet(len);
+    }
+  }
+
+  private class CountingInputStream extends FilterInputStream {
+
+    private CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        bytesRead.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        bytesRead.addAndGet(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      bytesRead.addAndGet(skipped);
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.nio.charset.Charset;
+
+/**
+ * Finds the columns of a raw, undecoded line by the bytes of the column delimiter.
+ * If a quote character is given, delimiters within quotes do not separate columns.
+ */
+final class ColumnSplitter {
+
+  private final byte[] delimiter;
+  // the unsigned quote byte, or -1 if there is none
+  private final int quote;
+
+  /**
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param encoding of the lines, must be ASCII compatible
+   */
+  ColumnSplitter(String columnDelimiter, Character enclosedBy, Charset encoding) {
+    if (columnDelimiter == null || columnDelimiter.isEmpty()) {
+      throw new IllegalArgumentException("A column delimiter is required");
+    }
+    if (enclosedBy != null && enclosedBy > 127) {
+      throw new IllegalArgumentException("Only ASCII characters are supported as quotes, not " + enclosedBy);
+    }
+    this.delimiter = columnDelimiter.getBytes(encoding);
+    this.quote = enclosedBy == null ? -1 : enclosedBy;
+  }
+
+  /**
+   * @return the number of bytes of the delimiter
+   */
+  int delimiterLength() {
+    return delimiter.length;
+  }
+
+  /**
+   * @return the offset of the delimiter ending the column starting at the given offset, or the line length
+   */
+  int endOfColumn(byte[] line, int start) {
+    boolean quoted = false;
+    for (int i = start; i < line.length; i++) {
+      byte b = line[i];
+      if ((b & 0xff) == quote) {
+        quoted = !quoted;
+      } else if (!quoted && b == delimiter[0] && isDelimiterAt(line, i)) {
+        return i;
+      }
+    }
+    return line.length;
+  }
+
+  private boolean isDelimiterAt(byte[] line, int offset) {
+    if (offset + delimiter.length > line.length) {
+      return false;
+    }
+    for (int i = 1; i < delimiter.length; i++) {
+      if (line[offset + i] != delimiter[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
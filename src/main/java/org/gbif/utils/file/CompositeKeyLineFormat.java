@@ -0,0 +1,292 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import org.gbif.utils.file.SortKey.Collation;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads lines as raw bytes and sorts them by a composite {@link SortKey}, without decoding more than the date columns.
+ * <p/>
+ * The key columns are located and numbers and dates parsed once when a line is read, so comparisons never split or
+ * parse lines. The order is the one of GNU sort in the C locale with a key list like {@code -k1,1 -k4,4n}, see
+ * {@link ByteKeyLineFormat} for the rules shared with single column keys.
+ */
+class CompositeKeyLineFormat implements LineFormat<CompositeKeyedLine> {
+
+  /**
+   * Estimated heap bytes used by a line on top of its bytes: the line, array headers, the list reference and
+   * alignment.
+   */
+  private static final int LINE_OVERHEAD_BYTES = 80;
+
+  /**
+   * Estimated heap bytes of a parsed number or date.
+   */
+  private static final int VALUE_BYTES = 64;
+
+  /**
+   * Integers with up to this number of digits fit into a long.
+   */
+  private static final int MAX_LONG_DIGITS = 18;
+
+  private final ColumnSplitter splitter;
+  private final Charset encoding;
+  private final Collation[] collations;
+  private final DateTimeFormatter[] dateFormats;
+  // the keys of each column up to the last key column
+  private final int[][] keysByColumn;
+  private final boolean parsesValues;
+  private final Comparator<CompositeKeyedLine> comparator = new Comparator<CompositeKeyedLine>() {
+    @Override
+    public int compare(CompositeKeyedLine o1, CompositeKeyedLine o2) {
+      for (int k = 0; k < collations.length; k++) {
+        int c = compareKey(k, o1, o2);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return ByteKeyLineFormat.compareBytes(o1.line, 0, o1.line.length, o2.line, 0, o2.line.length);
+    }
+  };
+
+  /**
+   * @param key the columns to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param encoding of the file, must be {@link ByteKeyLineFormat#supports(Charset) supported}
+   */
+  CompositeKeyLineFormat(SortKey key, String columnDelimiter, Character enclosedBy, Charset encoding) {
+    if (!ByteKeyLineFormat.supports(encoding)) {
+      throw new IllegalArgumentException("Sorting raw lines requires an ASCII compatible encoding, not " + encoding);
+    }
+    this.splitter = new ColumnSplitter(columnDelimiter, enclosedBy, encoding);
+    this.encoding = encoding;
+    List<SortKey.Column> columns = key.getColumns();
+    collations = new Collation[columns.size()];
+    dateFormats = new DateTimeFormatter[columns.size()];
+    int maxColumn = 0;
+    boolean values = false;
+    for (int k = 0; k < columns.size(); k++) {
+      collations[k] = columns.get(k).getCollation();
+      dateFormats[k] = columns.get(k).getDateFormat();
+      maxColumn = Math.max(maxColumn, columns.get(k).getIndex());
+      values |= collations[k] == Collation.NUMERIC || collations[k] == Collation.DATE;
+    }
+    parsesValues = values;
+    keysByColumn = new int[maxColumn + 1][];
+    for (int c = 0; c <= maxColumn; c++) {
+      List<Integer> keys = new ArrayList<Integer>();
+      for (int k = 0; k < columns.size(); k++) {
+        if (columns.get(k).getIndex() == c) {
+          keys.add(k);
+        }
+      }
+      keysByColumn[c] = new int[keys.size()];
+      for (int i = 0; i < keys.size(); i++) {
+        keysByColumn[c][i] = keys.get(i);
+      }
+    }
+  }
+
+  @Override
+  public Comparator<CompositeKeyedLine> getComparator() {
+    return comparator;
+  }
+
+  @Override
+  public long estimateSize(CompositeKeyedLine line) {
+    return LINE_OVERHEAD_BYTES + line.line.length + 4L * line.keyBounds.length
+      + (line.keyValues == null ? 0 : (8L + VALUE_BYTES) * line.keyValues.length);
+  }
+
+  @Override
+  public LineReader<CompositeKeyedLine> newReader(InputStream in) {
+    return RawLines.newReader(in, this::toKeyedLine);
+  }
+
+  @Override
+  public LineWriter<CompositeKeyedLine> newWriter(OutputStream out) {
+    return RawLines.newWriter(out, line -> line.line);
+  }
+
+  /**
+   * Locates all key columns of a line in a single pass and parses their values.
+   */
+  CompositeKeyedLine toKeyedLine(byte[] line) {
+    int[] bounds = new int[collations.length * 2];
+    int start = 0;
+    boolean missing = false;
+    for (int c = 0; c < keysByColumn.length; c++) {
+      int end;
+      if (missing) {
+        start = line.length;
+        end = line.length;
+      } else {
+        end = splitter.endOfColumn(line, start);
+      }
+      for (int k : keysByColumn[c]) {
+        bounds[2 * k] = start;
+        bounds[2 * k + 1] = end;
+      }
+      if (end == line.length) {
+        // all further columns do not exist
+        missing = true;
+      } else {
+        start = end + splitter.delimiterLength();
+      }
+    }
+
+    Object[] values = null;
+    if (parsesValues) {
+      values = new Object[collations.length];
+      for (int k = 0; k < collations.length; k++) {
+        if (collations[k] == Collation.NUMERIC) {
+          values[k] = parseNumber(line, bounds[2 * k], bounds[2 * k + 1]);
+        } else if (collations[k] == Collation.DATE) {
+          values[k] = parseDate(new String(line, bounds[2 * k], bounds[2 * k + 1] - bounds[2 * k], encoding),
+            dateFormats[k]);
+        }
+      }
+    }
+    return new CompositeKeyedLine(line, bounds, values);
+  }
+
+  private int compareKey(int k, CompositeKeyedLine o1, CompositeKeyedLine o2) {
+    switch (collations[k]) {
+      case TEXT:
+        return ByteKeyLineFormat.compareBytes(o1.line, o1.keyBounds[2 * k], o1.keyBounds[2 * k + 1], o2.line,
+          o2.keyBounds[2 * k], o2.keyBounds[2 * k + 1]);
+      case IGNORE_CASE:
+        return ByteKeyLineFormat.compareBytesIgnoreCase(o1.line, o1.keyBounds[2 * k], o1.keyBounds[2 * k + 1], o2.line,
+          o2.keyBounds[2 * k], o2.keyBounds[2 * k + 1]);
+      case NUMERIC:
+        return ((BigDecimal) o1.keyValues[k]).compareTo((BigDecimal) o2.keyValues[k]);
+      case DATE:
+        LocalDateTime d1 = (LocalDateTime) o1.keyValues[k];
+        LocalDateTime d2 = (LocalDateTime) o2.keyValues[k];
+        if (d1 == null || d2 == null) {
+          return d1 == null ? (d2 == null ? 0 : -1) : 1;
+        }
+        return d1.compareTo(d2);
+      default:
+        throw new IllegalStateException("Unknown collation " + collations[k]);
+    }
+  }
+
+  /**
+   * Parses the number at the start of a value like GNU sort does in the C locale: leading blanks, an optional minus
+   * sign, digits and an optional fraction after a dot. Values without any digit are 0.
+   */
+  static BigDecimal parseNumber(byte[] line, int from, int to) {
+    int i = from;
+    while (i < to && (line[i] == ' ' || line[i] == '\t')) {
+      i++;
+    }
+    boolean negative = i < to && line[i] == '-';
+    if (negative) {
+      i++;
+    }
+    int intStart = i;
+    while (i < to && isDigit(line[i])) {
+      i++;
+    }
+    int intEnd = i;
+    int fractionStart = i;
+    if (i < to && line[i] == '.') {
+      fractionStart = ++i;
+      while (i < to && isDigit(line[i])) {
+        i++;
+      }
+    }
+    int fractionEnd = i;
+    if (intEnd == intStart && fractionEnd == fractionStart) {
+      return BigDecimal.ZERO;
+    }
+    if (fractionEnd == fractionStart && intEnd - intStart <= MAX_LONG_DIGITS) {
+      long value = 0;
+      for (int d = intStart; d < intEnd; d++) {
+        value = value * 10 + (line[d] - '0');
+      }
+      return BigDecimal.valueOf(negative ? -value : value);
+    }
+    StringBuilder sb = new StringBuilder(fractionEnd - intStart + 3);
+    if (negative) {
+      sb.append('-');
+    }
+    if (intEnd == intStart) {
+      sb.append('0');
+    }
+    for (int d = intStart; d < intEnd; d++) {
+      sb.append((char) line[d]);
+    }
+    if (fractionEnd > fractionStart) {
+      sb.append('.');
+      for (int d = fractionStart; d < fractionEnd; d++) {
+        sb.append((char) line[d]);
+      }
+    }
+    return new BigDecimal(sb.toString());
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  /**
+   * @return the date and optional time of the value or of the start of an interval, in UTC if it has an offset, or
+   *         null if it cannot be parsed
+   */
+  static LocalDateTime parseDate(String value, DateTimeFormatter format) {
+    String text = value.trim();
+    int interval = text.indexOf('/');
+    if (interval > 0) {
+      text = text.substring(0, interval);
+    }
+    if (text.isEmpty()) {
+      return null;
+    }
+    try {
+      TemporalAccessor parsed = format.parse(text);
+      LocalDate date = parsed.query(TemporalQueries.localDate());
+      if (date == null) {
+        return null;
+      }
+      LocalTime time = parsed.query(TemporalQueries.localTime());
+      LocalDateTime dateTime = date.atTime(time == null ? LocalTime.MIDNIGHT : time);
+      ZoneOffset offset = parsed.query(TemporalQueries.offset());
+      return offset == null ? dateTime : dateTime.minusSeconds(offset.getTotalSeconds());
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+/**
+ * A raw, undecoded line together with the values of its composite sort key, which are extracted once when the line is
+ * read.
+ */
+final class CompositeKeyedLine {
+
+  final byte[] line;
+  final int[] keyBounds;
+  final Object[] keyValues;
+
+  /**
+   * @param line the line bytes, excluding the line terminator
+   * @param keyBounds the start and end offset of each key column in the line, in pairs
+   * @param keyValues the parsed value of each key column that is not compared by its bytes, null if there are none
+   */
+  CompositeKeyedLine(byte[] line, int[] keyBounds, Object[] keyValues) {
+    this.line = line;
+    this.keyBounds = keyBounds;
+    this.keyValues = keyValues;
+  }
+}
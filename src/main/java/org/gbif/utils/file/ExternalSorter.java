@@ -0,0 +1,339 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import org.gbif.utils.concurrent.DirectExecutor;
+import org.gbif.utils.concurrent.ExecutorUtils;
+import org.gbif.utils.concurrent.NamedThreadFactory;
+import org.gbif.utils.file.LineFormat.LineReader;
+import org.gbif.utils.file.LineFormat.LineWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts a stream of lines larger than memory: a single reader cuts the lines into chunks, which are sorted and written
+ * to chunk files by a pool of threads, and finally merged into the sorted output.
+ * <p/>
+ * Lines that all fit into a single chunk are sorted in memory and written straight to the output, without any chunk
+ * file. With a memory budget the whole budget is used to try this, and only if it is exceeded are the lines read so
+ * far spilled as regular chunks.
+ * <p/>
+ * The sort is stable, and the result does not depend on the number of threads or the size of the chunks.
+ *
+ * @param <T> the in memory representation of a line
+ */
+class ExternalSorter<T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExternalSorter.class);
+
+  /**
+   * Buffer size used for reading and writing lines.
+   */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private final LineFormat<T> format;
+  private final int threads;
+  private final long memoryBudget;
+  private final int linesPerChunk;
+  private final int maxMergeFiles;
+  private final ChunkFiles chunkFiles;
+
+  /**
+   * @param format of the lines to sort
+   * @param threads the number of threads sorting chunks concurrently
+   * @param memoryBudget the heap in bytes all chunks held in memory at once may use, 0 to cut chunks by lines
+   * @param linesPerChunk the number of lines per chunk, if there is no memory budget
+   * @param maxMergeFiles the maximum number of chunk files merged at once
+   * @param chunkCodec to write and read the chunk files with
+   */
+  ExternalSorter(LineFormat<T> format, int threads, long memoryBudget, int linesPerChunk, int maxMergeFiles,
+    ChunkCodec chunkCodec) {
+    this.format = format;
+    this.threads = threads;
+    this.memoryBudget = memoryBudget;
+    this.linesPerChunk = linesPerChunk;
+    this.maxMergeFiles = maxMergeFiles;
+    this.chunkFiles = new ChunkFiles(chunkCodec);
+  }
+
+  /**
+   * @return the bytes written to chunk files by this sorter, after encoding
+   */
+  long getChunkBytesWritten() {
+    return chunkFiles.getBytesWritten();
+  }
+
+  /**
+   * @return the bytes read from chunk files by this sorter, before decoding
+   */
+  long getChunkBytesRead() {
+    return chunkFiles.getBytesRead();
+  }
+
+  /**
+   * Sorts all lines of the input file, except for the header lines which are copied first, into the output file.
+   * The output is only opened once the input has been read completely, so a file can be sorted in place.
+   *
+   * @param chunkDirectory the directory to write the chunk files to, null for the default temporary directory
+   * @param chunkPrefix the name prefix of the chunk files
+   * @return the number of chunk files the lines were sorted in, 0 if they were sorted in memory
+   */
+  int sort(File input, File output, int ignoreHeaderLines, File chunkDirectory, String chunkPrefix)
+    throws IOException {
+    long start = System.currentTimeMillis();
+    List<Future<File>> chunks = new ArrayList<Future<File>>();
+    List<T> headerLines = new LinkedList<T>();
+    ExecutorService exec = null;
+    Executor executor = new DirectExecutor();
+    if (threads > 1) {
+      exec = Executors.newFixedThreadPool(threads, new NamedThreadFactory("file-sort"));
+      executor = exec;
+    }
+    // limits the chunks waiting to be sorted, so the reader cannot run ahead of the sorting threads
+    Semaphore inFlight = new Semaphore(threads);
+    // the budget is shared by the chunks being sorted and the one being read
+    long chunkBudget = memoryBudget / (threads + 1);
+    boolean chunked = false;
+    List<T> linesToSort = new ArrayList<T>();
+    try (InputStream in = new FileInputStream(input); LineReader<T> reader = format.newReader(in)) {
+      T line = reader.readLine();
+
+      long chunkBytes = 0;
+      while (line != null) {
+        if (ignoreHeaderLines > 0) {
+          headerLines.add(line);
+          ignoreHeaderLines--;
+        } else {
+          linesToSort.add(line);
+          chunkBytes += format.estimateSize(line);
+
+          if (memoryBudget > 0 && chunks.isEmpty()) {
+            // until the first spill all lines may use the whole budget, in the hope they fit
+            if (chunkBytes >= memoryBudget) {
+              spill(executor, inFlight, chunkDirectory, chunkPrefix, chunks, linesToSort, chunkBudget);
+              linesToSort = new ArrayList<T>();
+              chunkBytes = 0;
+            }
+          } else if (memoryBudget > 0 ? chunkBytes >= chunkBudget : linesToSort.size() == linesPerChunk) {
+            // if buffer is full, then sort and write to file
+            chunks.add(submitChunk(executor, inFlight, chunkDirectory, chunkPrefix, chunks.size(), linesToSort));
+            linesToSort = new ArrayList<T>();
+            chunkBytes = 0;
+          }
+        }
+        line = reader.readLine();
+      }
+      // catch the last lot, unless all lines fit into memory
+      if (!chunks.isEmpty() && !linesToSort.isEmpty()) {
+        chunks.add(submitChunk(executor, inFlight, chunkDirectory, chunkPrefix, chunks.size(), linesToSort));
+      }
+      chunked = true;
+    } finally {
+      if (exec != null) {
+        ExecutorUtils.stop(exec);
+      }
+      if (!chunked) {
+        // don't leave already sorted chunks behind
+        discardChunkFiles(chunks);
+      }
+    }
+    if (chunks.isEmpty()) {
+      sortInMemory(headerLines, linesToSort, output);
+      LOG.debug(
+        "Sorted " + linesToSort.size() + " lines in memory in " + (System.currentTimeMillis() - start) + " msecs");
+      return 0;
+    }
+
+    List<File> sortFiles = getChunkFiles(chunks);
+    LOG.debug(
+      sortFiles.size() + " sorted file chunks created in " + (System.currentTimeMillis() - start) / 1000 + " secs");
+
+    // now merge the sorted files into one single sorted file
+    try (OutputStream out = new FileOutputStream(output); LineWriter<T> writer = format.newWriter(out)) {
+      // first write the old header lines if existing
+      for (T h : headerLines) {
+        writer.writeLine(h);
+      }
+      new SortedFilesMerger<T>(format, maxMergeFiles, chunkFiles).merge(sortFiles, writer);
+    } finally {
+      // the merge deletes them, unless the output could not be opened
+      for (File f : sortFiles) {
+        f.delete();
+      }
+    }
+    return sortFiles.size();
+  }
+
+  /**
+   * Writes the header lines and all other lines sorted to the output, without any chunk file.
+   */
+  private void sortInMemory(List<T> headerLines, List<T> lines, File output) throws IOException {
+    Collections.sort(lines, format.getComparator());
+    try (OutputStream out = new FileOutputStream(output); LineWriter<T> writer = format.newWriter(out)) {
+      for (T h : headerLines) {
+        writer.writeLine(h);
+      }
+      for (T line : lines) {
+        writer.writeLine(line);
+      }
+    }
+  }
+
+  /**
+   * Cuts lines that did not fit into memory into chunks of the chunk budget and hands them over for sorting.
+   * Every line is released from the given list once it is part of a chunk.
+   */
+  private void spill(Executor executor, Semaphore inFlight, File chunkDirectory, String chunkPrefix,
+    List<Future<File>> chunks, List<T> lines, long chunkBudget) throws IOException {
+    List<T> linesToSort = new ArrayList<T>();
+    long chunkBytes = 0;
+    for (int i = 0; i < lines.size(); i++) {
+      T line = lines.set(i, null);
+      linesToSort.add(line);
+      chunkBytes += format.estimateSize(line);
+      if (chunkBytes >= chunkBudget) {
+        chunks.add(submitChunk(executor, inFlight, chunkDirectory, chunkPrefix, chunks.size(), linesToSort));
+        linesToSort = new ArrayList<T>();
+        chunkBytes = 0;
+      }
+    }
+    if (!linesToSort.isEmpty()) {
+      chunks.add(submitChunk(executor, inFlight, chunkDirectory, chunkPrefix, chunks.size(), linesToSort));
+    }
+  }
+
+  /**
+   * Hands a chunk of lines over to the executor for sorting and writing, blocking while the maximum number of chunks
+   * is already being sorted.
+   *
+   * @return the future chunk file
+   */
+  private Future<File> submitChunk(Executor executor, final Semaphore inFlight, final File chunkDirectory,
+    final String chunkPrefix, final int fileCount, final List<T> linesToSort) throws IOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to sort chunk " + fileCount);
+    }
+    FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+      @Override
+      public File call() throws IOException {
+        try {
+          return sortAndWrite(chunkDirectory, chunkPrefix, fileCount, linesToSort);
+        } finally {
+          inFlight.release();
+        }
+      }
+    });
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * Sorts the lines and writes them to a new, uniquely named chunk file.
+   * Unique names allow sorting the same file concurrently.
+   *
+   * @param fileCount Used for the file name
+   * @param linesToSort To actually sort
+   * @return The written file
+   */
+  private File sortAndWrite(File chunkDirectory, String chunkPrefix, int fileCount, List<T> linesToSort)
+    throws IOException {
+    long start = System.currentTimeMillis();
+    Collections.sort(linesToSort, format.getComparator());
+    // When implementing a comparator, make it SUPER quick!!!
+    LOG.debug(
+      "Collections.sort took msec[" + (System.currentTimeMillis() - start) + "] to sort records[" + linesToSort.size()
+        + ']');
+    File sortFile = File.createTempFile(chunkPrefix + '_' + fileCount + '_', ".sort", chunkDirectory);
+    LineWriter<T> writer = format.newWriter(chunkFiles.create(sortFile));
+    try {
+      for (T line : linesToSort) {
+        writer.writeLine(line);
+      }
+    } finally {
+      writer.close();
+    }
+    return sortFile;
+  }
+
+  /**
+   * Deletes the files of all chunks that were sorted successfully.
+   */
+  private static void discardChunkFiles(List<Future<File>> chunks) {
+    for (Future<File> chunk : chunks) {
+      if (chunk.isDone() && !chunk.isCancelled()) {
+        try {
+          chunk.get().delete();
+        } catch (InterruptedException | ExecutionException e) {
+          // nothing was written for this chunk
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for all chunks to be sorted and returns their files in the order the chunks were read.
+   * If any chunk failed, all chunk files written are deleted and the first error is thrown.
+   */
+  private static List<File> getChunkFiles(List<Future<File>> chunks) throws IOException {
+    List<File> sortFiles = new LinkedList<File>();
+    IOException error = null;
+    for (Future<File> chunk : chunks) {
+      try {
+        sortFiles.add(chunk.get());
+      } catch (ExecutionException e) {
+        if (error == null) {
+          error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+            : new IOException("Failed to sort file chunk", e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (error == null) {
+          error = new InterruptedIOException("Interrupted while waiting for sorted file chunks");
+        }
+      }
+    }
+    if (error != null) {
+      discardChunkFiles(chunks);
+      throw error;
+    }
+    return sortFiles;
+  }
+}
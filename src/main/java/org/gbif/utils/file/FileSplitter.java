@@ -44,33 +44,42 @@ public class FileSplitter {
   public static final String SEPARATOR = "_";
   public static final int READ_AHEAD_BYTES = 256;
 
-  // for the file, gives the Byte markers for reading lines, such that the lines read will approximately
-  // equate be the chunk size (slightly more as it reads to the end of the row)
+  /**
+   * Gives the byte offsets to split a file at into chunks of about the given size. Every offset is the start of a line,
+   * found by reading ahead from a multiple of the chunk size to the end of the line, so chunks are slightly larger
+   * than the chunk size unless lines are very long.
+   *
+   * @return the offsets in increasing order, excluding 0 and the end of the file
+   */
   public static List<Long> scanToChunk(File from, long chunkSizeBytes) throws IOException {
     List<Long> chunkBytes = new ArrayList<Long>();
-    FileInputStream fis = new FileInputStream(from);
-    FileChannel fcin = fis.getChannel();
-
-    long byteCount = chunkSizeBytes;
-
-    // now we need to read and transfer to the end of the line...
-    ByteBuffer bb = ByteBuffer.allocate(READ_AHEAD_BYTES);
+    try (FileInputStream fis = new FileInputStream(from); FileChannel fcin = fis.getChannel()) {
+      long size = fcin.size();
+      long byteCount = chunkSizeBytes;
+      ByteBuffer bb = ByteBuffer.allocate(READ_AHEAD_BYTES);
 
-    while (byteCount < fcin.size()) {
-      fcin.read(bb, byteCount);
-      int i = 0;
-      for (i = 0; i < bb.limit(); i++) {
-        if ((char) bb.get(i) == '\n') {
-          i++;
+      while (byteCount < size) {
+        // read ahead to the end of the line, in steps of READ_AHEAD_BYTES
+        long lineEnd = -1;
+        long readAhead = byteCount;
+        while (lineEnd < 0 && readAhead < size) {
+          bb.clear();
+          int read = fcin.read(bb, readAhead);
+          for (int i = 0; i < read && lineEnd < 0; i++) {
+            if (bb.get(i) == '\n') {
+              lineEnd = readAhead + i + 1;
+            }
+          }
+          readAhead += Math.max(read, 0);
+        }
+        if (lineEnd < 0 || lineEnd >= size) {
           break;
         }
+        chunkBytes.add(lineEnd);
+        // a line can be longer than the chunk size
+        byteCount = Math.max(byteCount + chunkSizeBytes, lineEnd);
       }
-      // bb.rewind();
-      chunkBytes.add(i + byteCount);
-      byteCount += chunkSizeBytes;
     }
-    fcin.close();
-    fis.close();
     return chunkBytes;
   }
 
@@ -19,7 +19,6 @@ package org.gbif.utils.file;
 import org.gbif.utils.collection.CompactHashSet;
 import org.gbif.utils.text.LineComparator;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -38,16 +37,22 @@ import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
+import java.nio.file.StandardOpenOption;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.io.Files;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.LineIterator;
@@ -70,7 +75,33 @@ public class FileUtils {
 
   private static Boolean gnuSortAvailable = null;
 
-  private static final Object sortLock = new Object();
+  /**
+   * Locks for the destination files currently being sorted, keyed by canonical path.
+   * Locks are only kept as long as a sort holds them.
+   */
+  private static final LoadingCache<String, Object> SORT_LOCKS =
+    CacheBuilder.newBuilder().weakValues().build(new CacheLoader<String, Object>() {
+      @Override
+      public Object load(String path) {
+        return new Object();
+      }
+    });
+
+  private long sortMemoryBudget = 0;
+
+  private int sortThreads = 1;
+
+  private int maxMergeFiles = 256;
+
+  private boolean gnuSortEnabled = true;
+
+  private File sortTempDirectory = null;
+
+  private ChunkCodec sortChunkCodec = ChunkCodecs.NONE;
+
+  private final AtomicLong sortBytesWritten = new AtomicLong();
+
+  private final AtomicLong sortBytesRead = new AtomicLong();
 
   public static String classpath2Filepath(String path) {
     return new File(ClassLoader.getSystemResource(path).getFile()).getAbsolutePath();
@@ -268,30 +299,63 @@ public class FileUtils {
 
   /**
    * Reads the first bytes of a file into a byte buffer.
+   * The buffer has the given capacity and backing array, its position is after the bytes read.
    *
    * @param bufferSize the number of bytes to read from the file
    */
   public static ByteBuffer readByteBuffer(File file, int bufferSize) throws IOException {
-    ByteBuffer bbuf = ByteBuffer.allocate(bufferSize);
-    BufferedInputStream f = new BufferedInputStream(new FileInputStream(file), bufferSize);
+    ByteBuffer bbuf = readByteBuffer(file, ByteBuffer.allocate(bufferSize));
+    bbuf.position(bbuf.limit());
+    bbuf.limit(bbuf.capacity());
+    return bbuf;
+  }
 
-    int b;
-    while ((b = f.read()) != -1) {
-      if (!bbuf.hasRemaining()) {
-        break;
+  /**
+   * Reads the first bytes of a file into the remaining space of a buffer with bulk channel reads.
+   * The buffer can be direct and reused across reads, see {@link #threadLocalBuffer(ThreadLocal, int, boolean)}.
+   *
+   * @param buffer to read into, up to its limit
+   * @return the buffer, flipped to be read from
+   */
+  public static ByteBuffer readByteBuffer(File file, ByteBuffer buffer) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // read until the buffer is full or the file ends
       }
-      bbuf.put((byte) b);
     }
-    f.close();
+    buffer.flip();
+    return buffer;
+  }
 
-    return bbuf;
+  /**
+   * Gets the buffer of the current thread, replaced by a new one if it is smaller than the requested capacity.
+   * Reusing buffers avoids allocating, and for direct buffers the costly freeing, of a buffer per read.
+   *
+   * @param buffers the buffers of all threads, initially empty
+   * @param capacity the minimal capacity of the buffer
+   * @param direct if a new buffer should be a direct one
+   * @return the cleared buffer with a limit of the requested capacity
+   */
+  public static ByteBuffer threadLocalBuffer(ThreadLocal<ByteBuffer> buffers, int capacity, boolean direct) {
+    ByteBuffer buffer = buffers.get();
+    if (buffer == null || buffer.capacity() < capacity) {
+      buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+      buffers.set(buffer);
+    }
+    buffer.clear();
+    buffer.limit(capacity);
+    return buffer;
   }
 
   /**
    * @param linesPerMemorySort are the number of lines that should be sorted in memory, determining the number of file
    *        segments to be sorted when doing a Java file sort. Defaults to 100000, if you have
    *        memory available a higher value increases performance.
+   *        Only used by instances without a sort memory budget.
+   * @deprecated this applies to all instances and the memory used varies with the line length, use
+   *             {@link #setSortMemoryBudget(long)} on the instance instead
    */
+  @Deprecated
   public static void setLinesPerMemorySort(int linesPerMemorySort) {
     FileUtils.linesPerMemorySort = linesPerMemorySort;
   }
@@ -450,30 +514,6 @@ public class FileUtils {
     return f;
   }
 
-  /**
-   * For the given list, finds the index of the lowest value using the given comparator.
-   *
-   * @param values To compare
-   * @param comparator To use
-   * @return The index of the lowest value, or -1 if they are all null
-   */
-  static int lowestValueIndex(List<String> values, Comparator<String> comparator) {
-    int index = 0;
-    String lowestValue = null;
-    for (int i = 0; i < values.size(); i++) {
-      String value = values.get(i);
-      if (lowestValue == null) {
-        lowestValue = value;
-        index = i;
-      } else if (comparator.compare(lowestValue, value) > 0) {
-        lowestValue = value;
-        index = i;
-      }
-    }
-
-    return lowestValue == null ? -1 : index;
-  }
-
   /**
    * For the given file's path, returns a proposed new filename (including path) with the extension
    * index and suffix. So a file of "/tmp/input.txt" -> "/tmp/input_part_10.txt".
@@ -495,9 +535,126 @@ public class FileUtils {
     return linesPerMemorySort;
   }
 
+  public long getSortMemoryBudget() {
+    return sortMemoryBudget;
+  }
+
+  /**
+   * Sizes the chunks of a Java file sort by memory instead of by the global number of lines per memory sort.
+   * The budget is shared by all chunks held in memory at once (see {@link #setSortThreads(int)}), and the memory of
+   * each line is estimated from its length.
+   *
+   * @param sortMemoryBudget the heap in bytes the lines being sorted may use, 0 to use the lines per memory sort
+   */
+  public void setSortMemoryBudget(long sortMemoryBudget) {
+    if (sortMemoryBudget < 0) {
+      throw new IllegalArgumentException("The sort memory budget cannot be negative");
+    }
+    this.sortMemoryBudget = sortMemoryBudget;
+  }
+
+  /**
+   * Sets the sort memory budget to a fraction of the maximum heap of this JVM.
+   *
+   * @param fraction of the maximum heap, between 0 and 1
+   * @see #setSortMemoryBudget(long)
+   */
+  public void setSortMemoryFraction(double fraction) {
+    if (fraction <= 0 || fraction > 1) {
+      throw new IllegalArgumentException("The fraction of the heap must be larger than 0 and at most 1");
+    }
+    setSortMemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+  }
+
+  public int getMaxMergeFiles() {
+    return maxMergeFiles;
+  }
+
+  /**
+   * @param maxMergeFiles the maximum number of sorted chunk files opened at once when merging a Java file sort.
+   *        If a sort produces more chunks they are merged in several passes. Defaults to 256.
+   */
+  public void setMaxMergeFiles(int maxMergeFiles) {
+    if (maxMergeFiles < 2) {
+      throw new IllegalArgumentException("At least 2 files must be merged at once");
+    }
+    this.maxMergeFiles = maxMergeFiles;
+  }
+
+  public boolean isGnuSortEnabled() {
+    return gnuSortEnabled;
+  }
+
+  /**
+   * @param gnuSortEnabled false to never sort with an external GNU sort command, e.g. where no shell can be started.
+   *        Sorting then gives the same results in Java. Defaults to true.
+   */
+  public void setGnuSortEnabled(boolean gnuSortEnabled) {
+    this.gnuSortEnabled = gnuSortEnabled;
+  }
+
+  public File getSortTempDirectory() {
+    return sortTempDirectory;
+  }
+
+  /**
+   * @param sortTempDirectory the directory a Java file sort writes its chunk files to, if the lines do not fit into
+   *        a single chunk. Defaults to null, which uses the java.io.tmpdir directory.
+   */
+  public void setSortTempDirectory(File sortTempDirectory) {
+    this.sortTempDirectory = sortTempDirectory;
+  }
+
+  public ChunkCodec getSortChunkCodec() {
+    return sortChunkCodec;
+  }
+
+  /**
+   * @param sortChunkCodec encodes the chunk files of a Java file sort, e.g. {@link ChunkCodecs#LZ4} to trade CPU for
+   *        less disk I/O. Defaults to {@link ChunkCodecs#NONE}.
+   */
+  public void setSortChunkCodec(ChunkCodec sortChunkCodec) {
+    if (sortChunkCodec == null) {
+      throw new IllegalArgumentException("A chunk codec is required, use ChunkCodecs.NONE for plain chunk files");
+    }
+    this.sortChunkCodec = sortChunkCodec;
+  }
+
+  /**
+   * @return the bytes all Java file sorts of this instance have written to chunk files, after encoding
+   */
+  public long getSortBytesWritten() {
+    return sortBytesWritten.get();
+  }
+
+  /**
+   * @return the bytes all Java file sorts of this instance have read from chunk files, before decoding
+   */
+  public long getSortBytesRead() {
+    return sortBytesRead.get();
+  }
+
+  public int getSortThreads() {
+    return sortThreads;
+  }
+
+  /**
+   * @param sortThreads the number of threads used to sort and write chunks concurrently when doing a Java file sort.
+   *        A single reader keeps feeding chunks to the threads, so at most sortThreads + 1 chunks are held in memory.
+   *        Defaults to 1, which sorts every chunk on the calling thread.
+   */
+  public void setSortThreads(int sortThreads) {
+    if (sortThreads < 1) {
+      throw new IllegalArgumentException("At least one sort thread is required");
+    }
+    this.sortThreads = sortThreads;
+  }
+
   /**
    * Merges a list of intermediary sort chunk files into a single sorted file. On completion, the intermediary sort
    * chunk files are deleted.
+   * <p/>
+   * The chunk files are read using the default platform encoding.
    *
    * @param sortFiles sort chunk files to merge
    * @param sortedFileWriter writer to merge to. Can already be open and contain data
@@ -506,62 +663,40 @@ public class FileUtils {
    */
   public void mergedSortedFiles(List<File> sortFiles, FileWriter sortedFileWriter, Comparator<String> lineComparator)
     throws IOException {
-    List<BufferedReader> partReaders = new LinkedList<BufferedReader>();
+    mergedSortedFiles(sortFiles, sortedFileWriter, lineComparator, Charset.defaultCharset().name());
+  }
+
+  /**
+   * Merges a list of intermediary sort chunk files into a single sorted file. On completion, the intermediary sort
+   * chunk files are deleted and the writer is closed.
+   * <p/>
+   * At most {@link #getMaxMergeFiles()} chunk files are opened at once, larger lists are merged in several passes.
+   *
+   * @param sortFiles sort chunk files to merge
+   * @param sortedFileWriter writer to merge to. Can already be open and contain data
+   * @param lineComparator To use when determining the order (reuse the one that was used to sort the individual
+   *        files)
+   * @param encoding the encoding of the sort chunk files
+   */
+  public void mergedSortedFiles(List<File> sortFiles, Writer sortedFileWriter, Comparator<String> lineComparator,
+    String encoding) throws IOException {
     try {
-      List<String> partReaderLine = new LinkedList<String>();
-      for (File f : sortFiles) {
-        partReaders.add(new BufferedReader(new FileReader(f)));
-      }
-      boolean moreData = false;
-      // load first line in
-      for (BufferedReader partReader : partReaders) {
-        String partLine = partReader.readLine();
-        if (partLine != null) {
-          moreData = true;
-        }
-        // we still add the "null" to keep the partReaders and partLineReader indexes in sync - ALWAYS
-        partReaderLine.add(partLine);
-      }
-      // keep going until all readers are exhausted
-      while (moreData) {
-        int index = lowestValueIndex(partReaderLine, lineComparator);
-        if (index >= 0) {
-          sortedFileWriter.write(partReaderLine.get(index));
-          sortedFileWriter.write("\n");
-          BufferedReader r = partReaders.get(index);
-          String partLine = r.readLine();
-          // TODO: Synchronization on local variable?
-          synchronized (partReaderLine) {
-            partReaderLine.add(index, partLine);
-            partReaderLine.remove(index + 1);
-          }
-        } else {
-          moreData = false;
-        }
-      }
+      new SortedFilesMerger<String>(new StringLineFormat(lineComparator, Charset.forName(encoding)), maxMergeFiles)
+        .merge(sortFiles, StringLineFormat.newWriter(sortedFileWriter));
     } finally {
-      for (BufferedReader b : partReaders) {
-        try {
-          b.close();
-        } catch (RuntimeException e) {
-        }
-      }
-      // I assume it periodically flushes anyway, so only need to do once at end...
-      sortedFileWriter.flush();
       sortedFileWriter.close();
-      // delete (intermediary) sort chunk files, only the sorted file remains
-      for (File f : sortFiles) {
-        f.delete();
-      }
     }
   }
 
   /**
    * Sorts the input file into the output file using the supplied delimited line parameters.
    *
-   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
-   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
-   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
+   * The order is the one of GNU sort in the C locale, using GNU sort if possible and otherwise sorting the raw bytes
+   * of the column in Java (see {@link #sortInJavaByKey}). Only files with \r line endings, no column delimiter or
+   * encodings that are not ASCII compatible are sorted with a {@link LineComparator} instead.
+   *
+   * GNU sort splits columns on every delimiter, even within quotes, while the Java sorts respect the enclosing
+   * character. If quoted values contain the column delimiter the order therefore depends on GNU sort being available.
    *
    * @param input To sort
    * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
@@ -573,25 +708,23 @@ public class FileUtils {
    */
   public void sort(File input, File sorted, String encoding, int column, String columnDelimiter, Character enclosedBy,
     String newlineDelimiter, int ignoreHeaderLines) throws IOException {
-    Comparator<String> lineComparator;
-    if (enclosedBy == null) {
-      lineComparator = new LineComparator(column, columnDelimiter);
-    } else {
-      lineComparator = new LineComparator(column, columnDelimiter, enclosedBy);
-    }
-    sort(input, sorted, encoding, column, columnDelimiter, enclosedBy, newlineDelimiter, ignoreHeaderLines,
-      lineComparator, false);
+    sort(input, sorted, encoding, column, columnDelimiter, enclosedBy, newlineDelimiter, ignoreHeaderLines, null,
+      false);
   }
 
   /**
    * Sorts the input file into the output file using the supplied delimited line parameters.
    *
-   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
-   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
-   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
+   * GNU sort is used if possible. Otherwise the lines are sorted in Java, using the lineComparator if given or else
+   * the raw bytes of the column (see {@link #sortInJavaByKey}), which gives the same order as GNU sort unless quoted
+   * values contain the column delimiter.
    *
-   * TODO: This method is globally synchronized, in case multiple sorts are attempted to the same file simultaneously.
-   * This could be improved to allow synchronizing against the destination file, rather than for all sorts.
+   * A lineComparator comparing Strings is not reliable when the sort field may contain Unicode codepoints outside the
+   * Basic Multilingual Plane, i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.
+   * This should not be a problem for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis,
+   * arrows and so on.
+   *
+   * Sorts to the same destination file are done one after the other, sorts to different files run concurrently.
    *
    * @param input To sort
    * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
@@ -600,7 +733,7 @@ public class FileUtils {
    * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
    * @param newlineDelimiter the chars used for new lines, usually \n, \r\n or \r
    * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
-   * @param lineComparator used to sort the output
+   * @param lineComparator used to sort the output if GNU sort cannot be used, null to sort like GNU sort
    * @param ignoreCase ignore case order, this parameter couldn't have any effect if the LineComparator is used
    */
   public void sort(File input, File sorted, String encoding, int column, String columnDelimiter, Character enclosedBy,
@@ -611,7 +744,7 @@ public class FileUtils {
       LOG.warn("No encoding specified, assume UTF-8");
       encoding = FileUtils.UTF8;
     }
-    synchronized (sortLock) {
+    synchronized (SORT_LOCKS.getUnchecked(sorted.getCanonicalPath())) {
       if (sorted.exists()) {
         // Delete a file, which will allow processes with it open to continue reading it.
         // The GNU sort truncates and appends, which would mean a partial read otherwise.
@@ -619,15 +752,91 @@ public class FileUtils {
         sorted.delete();
       }
       // if the id is in the first column, first try sorting via shell as its the fastest we can get
-      if (!sortInGnu(input, sorted, encoding, ignoreHeaderLines, column, columnDelimiter, newlineDelimiter, ignoreCase)) {
+      if (gnuSortEnabled && sortInGnu(input, sorted, encoding, ignoreHeaderLines, column, columnDelimiter,
+        newlineDelimiter, ignoreCase)) {
+        return;
+      }
+      if (lineComparator == null && canSortByKey(encoding, columnDelimiter, enclosedBy, newlineDelimiter)) {
+        LOG.debug("No GNU sort available, sorting raw lines in Java");
+        sortInJavaByKey(input, sorted, encoding, column, columnDelimiter, enclosedBy, ignoreHeaderLines, ignoreCase);
+      } else {
         LOG.debug("No GNU sort available, using native Java sorting");
+        if (lineComparator == null) {
+          lineComparator = enclosedBy == null ? new LineComparator(column, columnDelimiter)
+            : new LineComparator(column, columnDelimiter, enclosedBy);
+        }
         sortInJava(input, sorted, encoding, lineComparator, ignoreHeaderLines);
       }
     }
   }
 
+  /**
+   * Sorts the input file into the output file by a composite key of several, optionally numeric or date, columns.
+   *
+   * The order is the one of GNU sort in the C locale with a key list like {@code -k1,1 -k4,4n}. GNU sort is used if
+   * possible, i.e. for keys without date columns and files without an enclosing character, as GNU sort does not know
+   * about quotes. Otherwise the raw lines are sorted in Java (see
+   * {@link #sortInJavaByKey(File, File, String, SortKey, String, Character, int)}), where delimiters within quotes do
+   * not separate columns, unlike in GNU sort.
+   *
+   * Sorts to the same destination file are done one after the other, sorts to different files run concurrently.
+   *
+   * @param input To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param encoding the encoding of the input, must be UTF-8 or an ASCII compatible single byte encoding
+   * @param key the columns to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param newlineDelimiter the chars used for new lines, must be \n or \r\n
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @throws IllegalArgumentException if the encoding or newline delimiter is not supported
+   */
+  public void sort(File input, File sorted, String encoding, SortKey key, String columnDelimiter, Character enclosedBy,
+    String newlineDelimiter, int ignoreHeaderLines) throws IOException {
+    LOG.debug("Sorting " + input.getAbsolutePath() + " by " + key + " as new file " + sorted.getAbsolutePath());
+    if (encoding == null) {
+      LOG.warn("No encoding specified, assume UTF-8");
+      encoding = FileUtils.UTF8;
+    }
+    if (!canSortByKey(encoding, columnDelimiter, enclosedBy, newlineDelimiter)) {
+      throw new IllegalArgumentException("Cannot sort " + encoding + " files with newlines [" + newlineDelimiter
+        + "] and column delimiter [" + columnDelimiter + "] by a composite key");
+    }
+    synchronized (SORT_LOCKS.getUnchecked(sorted.getCanonicalPath())) {
+      if (sorted.exists()) {
+        LOG.warn("Deleting existed sorted file {}", sorted.getAbsoluteFile());
+        sorted.delete();
+      }
+      if (gnuSortEnabled && enclosedBy == null
+        && sortInGnu(input, sorted, ignoreHeaderLines, key, columnDelimiter, newlineDelimiter)) {
+        return;
+      }
+      LOG.debug("Cannot use GNU sort, sorting raw lines in Java");
+      sortInJavaByKey(input, sorted, encoding, key, columnDelimiter, enclosedBy, ignoreHeaderLines);
+    }
+  }
+
+  /**
+   * @return true if the file can be sorted by the raw bytes of a column
+   */
+  private static boolean canSortByKey(String encoding, String columnDelimiter, Character enclosedBy,
+    String newlineDelimiter) {
+    return newlineDelimiter != null && newlineDelimiter.contains("\n") && !StringUtils.isEmpty(columnDelimiter)
+      && (enclosedBy == null || enclosedBy < 128) && Charset.isSupported(encoding)
+      && ByteKeyLineFormat.supports(Charset.forName(encoding));
+  }
+
   /**
    * Sorts the input file into the output file using the supplied lineComparator.
+   * <p/>
+   * The file is sorted in chunks, which are cut when the sort memory budget is reached or, if no budget is set, after
+   * the lines per memory sort. If all lines fit into the first chunk they are sorted in memory and written straight to
+   * the sorted file. Otherwise the chunks are written to the sort temp directory (see
+   * {@link #setSortTempDirectory(File)}) and merged.
+   * <p/>
+   * If more than one sort thread is configured (see {@link #setSortThreads(int)}) the chunks are sorted and written
+   * concurrently, in which case the lineComparator must be thread safe. The result is identical to a single threaded
+   * sort.
    *
    * @param input To sort
    * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
@@ -636,57 +845,96 @@ public class FileUtils {
    */
   public void sortInJava(File input, File sorted, String encoding, Comparator<String> lineComparator,
     int ignoreHeaderLines) throws IOException {
+    sortInJava(input, sorted, new StringLineFormat(lineComparator, Charset.forName(encoding)), ignoreHeaderLines);
+  }
+
+  /**
+   * Sorts the input file into the output file by the raw bytes of a single column, without decoding the lines.
+   * <p/>
+   * The sort key of every line is located once when the line is read, instead of tokenizing both lines in every
+   * comparison. Keys are compared as unsigned bytes and lines with equal keys as a whole, which is the order of
+   * GNU sort in the C locale (see {@link #sortInGnu}). For UTF-8 this is the order of the Unicode code points.
+   * <p/>
+   * Lines are only split on \n and are written unchanged. Quotes prevent delimiters within them from separating
+   * columns, but are kept as part of the key. GNU sort splits on every delimiter, so if quoted values contain the
+   * delimiter the order differs from GNU sort. Chunking, threads and merging are configured as for
+   * {@link #sortInJava(File, File, String, Comparator, int)}.
+   *
+   * @param input To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param encoding the encoding of the input, must be UTF-8 or an ASCII compatible single byte encoding
+   * @param column the column that keeps the values to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @throws IllegalArgumentException if the encoding is not supported
+   */
+  public void sortInJavaByKey(File input, File sorted, String encoding, int column, String columnDelimiter,
+    Character enclosedBy, int ignoreHeaderLines) throws IOException {
+    sortInJavaByKey(input, sorted, encoding, column, columnDelimiter, enclosedBy, ignoreHeaderLines, false);
+  }
+
+  /**
+   * Sorts the input file into the output file by the raw bytes of a single column, like
+   * {@code LC_ALL=C sort -k N,N -t D}, optionally with {@code --ignore-case}.
+   *
+   * @param ignoreCase compare the keys ignoring the case of the ASCII letters, like GNU sort in the C locale
+   * @see #sortInJavaByKey(File, File, String, int, String, Character, int)
+   */
+  public void sortInJavaByKey(File input, File sorted, String encoding, int column, String columnDelimiter,
+    Character enclosedBy, int ignoreHeaderLines, boolean ignoreCase) throws IOException {
+    sortInJava(input, sorted,
+      new ByteKeyLineFormat(column, columnDelimiter, enclosedBy, Charset.forName(encoding), ignoreCase),
+      ignoreHeaderLines);
+  }
+
+  /**
+   * Sorts the input file into the output file by the raw bytes of a composite key, without decoding the lines.
+   * <p/>
+   * All key columns are located, and their numbers and dates parsed, once when a line is read. Lines with equal keys
+   * are compared as a whole by their bytes. Apart from dates, which GNU sort cannot compare, this is the order of
+   * GNU sort in the C locale with the corresponding key list. Lines are split and written as for
+   * {@link #sortInJavaByKey(File, File, String, int, String, Character, int)}.
+   *
+   * @param input To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param encoding the encoding of the input, must be UTF-8 or an ASCII compatible single byte encoding
+   * @param key the columns to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @throws IllegalArgumentException if the encoding is not supported
+   */
+  public void sortInJavaByKey(File input, File sorted, String encoding, SortKey key, String columnDelimiter,
+    Character enclosedBy, int ignoreHeaderLines) throws IOException {
+    sortInJava(input, sorted, new CompositeKeyLineFormat(key, columnDelimiter, enclosedBy, Charset.forName(encoding)),
+      ignoreHeaderLines);
+  }
+
+  /**
+   * Sorts the input file into the output file with an external sort configured by this instance.
+   */
+  private <T> void sortInJava(File input, File sorted, LineFormat<T> format, int ignoreHeaderLines)
+    throws IOException {
     LOG.debug("Sorting File[" + input.getAbsolutePath() + ']');
     long start = System.currentTimeMillis();
-    List<File> sortFiles = new LinkedList<File>();
-    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(input), encoding));
-    List<String> headerLines = new LinkedList<String>();
+    ExternalSorter<T> sorter =
+      new ExternalSorter<T>(format, sortThreads, sortMemoryBudget, linesPerMemorySort, maxMergeFiles, sortChunkCodec);
+    int parts;
     try {
-      String line = br.readLine();
-      int fileCount = 0;
-
-      List<String> linesToSort = new LinkedList<String>();
-      while (line != null) {
-        if (ignoreHeaderLines > 0) {
-          headerLines.add(line);
-          ignoreHeaderLines--;
-        } else {
-          linesToSort.add(line);
-
-          // if buffer is full, then sort and write to file
-          if (linesToSort.size() == linesPerMemorySort) {
-            sortFiles.add(sortAndWrite(input, encoding, lineComparator, fileCount, linesToSort));
-            linesToSort = new LinkedList<String>();
-            fileCount++;
-          }
-        }
-        line = br.readLine();
-      }
-      // catch the last lot
-      if (!linesToSort.isEmpty()) {
-        sortFiles.add(sortAndWrite(input, encoding, lineComparator, fileCount, linesToSort));
-      }
+      parts = sorter.sort(input, sorted, ignoreHeaderLines, sortTempDirectory,
+        FilenameUtils.getBaseName(input.getName()));
     } finally {
-      br.close();
+      sortBytesWritten.addAndGet(sorter.getChunkBytesWritten());
+      sortBytesRead.addAndGet(sorter.getChunkBytesRead());
     }
-    LOG.debug(
-      sortFiles.size() + " sorted file chunks created in " + (System.currentTimeMillis() - start) / 1000 + " secs");
-
-    // now merge the sorted files into one single sorted file
-    FileWriter sortedFileWriter = new FileWriter(sorted);
-    // first write the old header lines if existing
-    for (String h : headerLines) {
-      sortedFileWriter.write(h);
-      sortedFileWriter.write("\n");
-    }
-    mergedSortedFiles(sortFiles, sortedFileWriter, lineComparator);
 
     LOG.debug(
-      "File " + input.getAbsolutePath() + " sorted successfully using " + sortFiles.size() + " parts to do sorting in "
-        + (System.currentTimeMillis() - start) / 1000 + " secs");
+      "File " + input.getAbsolutePath() + " sorted successfully using " + parts + " parts to do sorting in "
+        + (System.currentTimeMillis() - start) / 1000 + " secs, " + sorter.getChunkBytesWritten()
+        + " chunk bytes written and " + sorter.getChunkBytesRead() + " read");
   }
 
-
   /**
    * Splits the supplied file into files of set line size and with a suffix.
    *
@@ -801,7 +1049,6 @@ public class FileUtils {
    */
   protected boolean sortInGnu(File input, File sorted, String encoding, int ignoreHeaderLines, int column,
     String columnDelimiter, String lineDelimiter, boolean ignoreCase) throws IOException {
-    String command;
     // GNU sort is checked for use when:
     // • line delimiter is \n
     // • column delimiter is set and we're not using the first column
@@ -813,6 +1060,35 @@ public class FileUtils {
       return false;
     }
 
+    String sortArgs = String.format(" %s -k%d,%d -t'%s'",
+      ignoreCase ? "--ignore-case" : "", column+1, column+1, columnDelimiter);
+    return sortInGnu(input, sorted, ignoreHeaderLines, sortArgs);
+  }
+
+  /**
+   * Sorts the input file into the output file by a composite key with GNU sort, using a key list like
+   * {@code -k1,1 -k4,4n}.
+   *
+   * @return true if GNU sort was used and succeeded
+   */
+  protected boolean sortInGnu(File input, File sorted, int ignoreHeaderLines, SortKey key, String columnDelimiter,
+    String lineDelimiter) throws IOException {
+    if (lineDelimiter == null || !lineDelimiter.contains("\n") || columnDelimiter == null || !key.isGnuSortable()
+      || !gnuSortAvailable()) {
+      LOG.debug("Cannot use GNU sort on this file");
+      return false;
+    }
+    return sortInGnu(input, sorted, ignoreHeaderLines, String.format(" %s -t'%s'", key.toGnuSortKeys(),
+      columnDelimiter));
+  }
+
+  /**
+   * Runs GNU sort in the C locale with the given arguments, copying the header lines first.
+   *
+   * @return true if GNU sort succeeded
+   */
+  private boolean sortInGnu(File input, File sorted, int ignoreHeaderLines, String sortArgs) {
+    String command;
     // keep header rows
     boolean success = false;
     try {
@@ -831,9 +1107,6 @@ public class FileUtils {
       // make sure we use the C locale for sorting
       env.put("LC_ALL", "C");
 
-      String sortArgs = String.format(" %s -k%d,%d -t'%s'",
-        ignoreCase ? "--ignore-case" : "", column+1, column+1, columnDelimiter);
-
       if (ignoreHeaderLines > 0) {
         // copy header lines
         command = "head -n " + ignoreHeaderLines + ' ' + input.getAbsolutePath() + " > " + sorted.getAbsolutePath();
@@ -877,34 +1150,4 @@ public class FileUtils {
     return success;
   }
 
-  /**
-   * Sorts the lines and writes to file using the
-   *
-   * @param input File to base the name on
-   * @param lineComparator To compare the lines for sorting
-   * @param fileCount Used for the file name
-   * @param linesToSort To actually sort
-   * @return The written file
-   */
-  private File sortAndWrite(File input, String encoding, Comparator<String> lineComparator, int fileCount,
-    List<String> linesToSort) throws IOException {
-    long start = System.currentTimeMillis();
-    Collections.sort(linesToSort, lineComparator);
-    // When implementing a comparator, make it SUPER quick!!!
-    LOG.debug(
-      "Collections.sort took msec[" + (System.currentTimeMillis() - start) + "] to sort records[" + linesToSort.size()
-        + ']');
-    File sortFile = getChunkFile(input, fileCount);
-    Writer fw = new OutputStreamWriter(new FileOutputStream(sortFile), encoding);
-    try {
-      for (String s : linesToSort) {
-        fw.write(s);
-        fw.write("\n");
-      }
-    } finally {
-      fw.close();
-    }
-    return sortFile;
-  }
-
 }
@@ -0,0 +1,38 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+/**
+ * A raw, undecoded line together with the position of its sort key, which is extracted once when the line is read.
+ */
+final class KeyedLine {
+
+  final byte[] line;
+  final int keyStart;
+  final int keyEnd;
+
+  /**
+   * @param line the line bytes, excluding the line terminator
+   * @param keyStart offset of the first key byte in the line
+   * @param keyEnd offset after the last key byte in the line
+   */
+  KeyedLine(byte[] line, int keyStart, int keyEnd) {
+    this.line = line;
+    this.keyStart = keyStart;
+    this.keyEnd = keyEnd;
+  }
+}
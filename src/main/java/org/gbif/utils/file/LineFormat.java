@@ -0,0 +1,65 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Comparator;
+
+/**
+ * How the lines of a file are read, compared and written when sorting it with the {@link ExternalSorter}.
+ *
+ * @param <T> the in memory representation of a line
+ */
+interface LineFormat<T> {
+
+  /**
+   * @return the comparator defining the sort order, thread safe
+   */
+  Comparator<T> getComparator();
+
+  /**
+   * @return the estimated heap bytes used by the line while it is held in a sort chunk
+   */
+  long estimateSize(T line);
+
+  LineReader<T> newReader(InputStream in) throws IOException;
+
+  LineWriter<T> newWriter(OutputStream out) throws IOException;
+
+  /**
+   * Reads lines one by one.
+   */
+  interface LineReader<T> extends Closeable {
+
+    /**
+     * @return the next line or null at the end of the stream
+     */
+    T readLine() throws IOException;
+  }
+
+  /**
+   * Writes lines, each terminated by a \n.
+   */
+  interface LineWriter<T> extends Closeable, Flushable {
+
+    void writeLine(T line) throws IOException;
+  }
+}
@@ -0,0 +1,141 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import org.gbif.utils.file.LineFormat.LineReader;
+import org.gbif.utils.file.LineFormat.LineWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Reads and writes lines as raw bytes terminated by \n, for the line formats that never decode them.
+ */
+final class RawLines {
+
+  private static final byte NEWLINE = '\n';
+
+  private RawLines() {
+    throw new UnsupportedOperationException("Can't initialize class");
+  }
+
+  /**
+   * @param parser creates the line representation from the line bytes, excluding the newline
+   */
+  static <T> LineReader<T> newReader(InputStream in, Function<byte[], T> parser) {
+    return new RawLineReader<T>(in, parser);
+  }
+
+  /**
+   * @param bytes gives the bytes of a line to write, excluding the newline
+   */
+  static <T> LineWriter<T> newWriter(OutputStream out, final Function<T, byte[]> bytes) {
+    final OutputStream stream = new BufferedOutputStream(out, ExternalSorter.BUFFER_SIZE);
+    return new LineWriter<T>() {
+      @Override
+      public void writeLine(T line) throws IOException {
+        stream.write(bytes.apply(line));
+        stream.write(NEWLINE);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        stream.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        stream.close();
+      }
+    };
+  }
+
+  /**
+   * Splits a stream into lines on newline bytes, using a single large buffer.
+   */
+  private static class RawLineReader<T> implements LineReader<T> {
+
+    private final InputStream in;
+    private final Function<byte[], T> parser;
+    private final byte[] buffer = new byte[ExternalSorter.BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    private RawLineReader(InputStream in, Function<byte[], T> parser) {
+      this.in = in;
+      this.parser = parser;
+    }
+
+    @Override
+    public T readLine() throws IOException {
+      // the start of a line that did not fit into the buffer
+      byte[] line = null;
+      while (true) {
+        int start = pos;
+        while (pos < limit && buffer[pos] != NEWLINE) {
+          pos++;
+        }
+        if (pos < limit) {
+          line = append(line, start, pos);
+          // skip the newline
+          pos++;
+          return parser.apply(line);
+        }
+        if (pos > start) {
+          line = append(line, start, pos);
+        }
+        if (!fill()) {
+          // the last line might not be terminated
+          return line == null ? null : parser.apply(line);
+        }
+      }
+    }
+
+    private byte[] append(byte[] line, int from, int to) {
+      if (line == null) {
+        return Arrays.copyOfRange(buffer, from, to);
+      }
+      byte[] longer = Arrays.copyOf(line, line.length + to - from);
+      System.arraycopy(buffer, from, longer, line.length, to - from);
+      return longer;
+    }
+
+    private boolean fill() throws IOException {
+      if (eof) {
+        return false;
+      }
+      int read = in.read(buffer, 0, buffer.length);
+      while (read == 0) {
+        read = in.read(buffer, 0, buffer.length);
+      }
+      pos = 0;
+      limit = Math.max(read, 0);
+      eof = read < 0;
+      return !eof;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A composite key to sort delimited files by, made of one or more columns that are compared in order.
+ * For example, to sort a Darwin Core Archive extension by its core id and then numerically by an order column:
+ * <pre>
+ * SortKey.of(SortKey.text(0), SortKey.numeric(3))
+ * </pre>
+ * Lines with equal keys are compared as a whole by their bytes, like GNU sort in the C locale does.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class SortKey {
+
+  /**
+   * ISO 8601 dates, optionally reduced to a year or month and optionally with a time and offset.
+   */
+  static final DateTimeFormatter ISO_DATE = new DateTimeFormatterBuilder()
+    .appendPattern("uuuu[-MM[-dd]]")
+    .optionalStart()
+    .appendLiteral('T')
+    .append(DateTimeFormatter.ISO_LOCAL_TIME)
+    .optionalStart()
+    .appendOffsetId()
+    .optionalEnd()
+    .optionalEnd()
+    .parseDefaulting(ChronoField.MONTH_OF_YEAR, 1)
+    .parseDefaulting(ChronoField.DAY_OF_MONTH, 1)
+    .toFormatter();
+
+  /**
+   * How the values of a column are compared.
+   */
+  public enum Collation {
+    /**
+     * By the raw bytes of the value, {@code -kN,N} in GNU sort.
+     */
+    TEXT,
+    /**
+     * By the raw bytes of the value with the ASCII letters folded to upper case, {@code -kN,Nf} in GNU sort.
+     */
+    IGNORE_CASE,
+    /**
+     * By the number at the start of the value, {@code -kN,Nn} in GNU sort: leading blanks, an optional minus sign,
+     * digits and an optional fraction after a dot. Anything else is ignored, and values without a number are 0.
+     */
+    NUMERIC,
+    /**
+     * Chronologically, with values that cannot be parsed as dates first. GNU sort has no equivalent.
+     */
+    DATE
+  }
+
+  /**
+   * A single column of a sort key.
+   */
+  public static final class Column {
+
+    private final int index;
+    private final Collation collation;
+    private final DateTimeFormatter dateFormat;
+
+    private Column(int index, Collation collation, DateTimeFormatter dateFormat) {
+      if (index < 0) {
+        throw new IllegalArgumentException("Column indices start at 0, not " + index);
+      }
+      this.index = index;
+      this.collation = collation;
+      this.dateFormat = dateFormat;
+    }
+
+    /**
+     * @return the 0 based column index
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public Collation getCollation() {
+      return collation;
+    }
+
+    /**
+     * @return the format of the dates for the {@link Collation#DATE} collation, null otherwise
+     */
+    public DateTimeFormatter getDateFormat() {
+      return dateFormat;
+    }
+
+    @Override
+    public String toString() {
+      return index + " " + collation;
+    }
+  }
+
+  private final List<Column> columns;
+
+  private SortKey(List<Column> columns) {
+    if (columns.isEmpty()) {
+      throw new IllegalArgumentException("A sort key needs at least one column");
+    }
+    this.columns = Collections.unmodifiableList(new ArrayList<Column>(columns));
+  }
+
+  /**
+   * @param columns the columns to compare, in order
+   */
+  public static SortKey of(Column... columns) {
+    return new SortKey(Arrays.asList(columns));
+  }
+
+  /**
+   * @param columns the columns to compare, in order
+   */
+  public static SortKey of(List<Column> columns) {
+    return new SortKey(columns);
+  }
+
+  /**
+   * @return a column compared by its raw bytes
+   */
+  public static Column text(int column) {
+    return new Column(column, Collation.TEXT, null);
+  }
+
+  /**
+   * @return a column compared by its raw bytes, ignoring the case of ASCII letters
+   */
+  public static Column ignoreCase(int column) {
+    return new Column(column, Collation.IGNORE_CASE, null);
+  }
+
+  /**
+   * @return a column compared by its leading number
+   */
+  public static Column numeric(int column) {
+    return new Column(column, Collation.NUMERIC, null);
+  }
+
+  /**
+   * For intervals like 2001-02-03/2001-02-05 the start is used. Dates with an offset are compared by their UTC time,
+   * others by their local time.
+   *
+   * @return a column compared by its ISO 8601 date
+   */
+  public static Column date(int column) {
+    return date(column, ISO_DATE);
+  }
+
+  /**
+   * @param dateFormat the format of the dates, which must give at least a date and optionally a time
+   *
+   * @return a column compared by its date
+   */
+  public static Column date(int column, DateTimeFormatter dateFormat) {
+    if (dateFormat == null) {
+      throw new IllegalArgumentException("A date format is required");
+    }
+    return new Column(column, Collation.DATE, dateFormat);
+  }
+
+  public List<Column> getColumns() {
+    return columns;
+  }
+
+  /**
+   * @return true if GNU sort can compare all columns of this key
+   */
+  boolean isGnuSortable() {
+    for (Column c : columns) {
+      if (c.collation == Collation.DATE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the GNU sort key options for this key, e.g. {@code -k1,1 -k4,4n}
+   */
+  String toGnuSortKeys() {
+    StringBuilder sb = new StringBuilder();
+    for (Column c : columns) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append("-k").append(c.index + 1).append(',').append(c.index + 1);
+      if (c.collation == Collation.IGNORE_CASE) {
+        sb.append('f');
+      } else if (c.collation == Collation.NUMERIC) {
+        sb.append('n');
+      } else if (c.collation == Collation.DATE) {
+        throw new IllegalStateException("GNU sort cannot compare dates");
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return columns.toString();
+  }
+}
@@ -0,0 +1,195 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import org.gbif.utils.file.LineFormat.LineReader;
+import org.gbif.utils.file.LineFormat.LineWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges sorted chunk files into a single sorted output, k-way, by keeping the current line of every chunk in a
+ * priority queue. Each output line therefore costs O(log k) comparisons.
+ * <p/>
+ * If there are more chunks than files allowed to be open at once, consecutive groups of chunks are first merged into
+ * intermediate chunk files, until few enough are left for the final merge.
+ * <p/>
+ * Lines comparing equal are written in chunk order, so merging the chunks of a stable sort is stable too.
+ *
+ * @param <T> the in memory representation of a line
+ */
+class SortedFilesMerger<T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SortedFilesMerger.class);
+
+  private final LineFormat<T> format;
+  private final Comparator<T> lineComparator;
+  private final int maxOpenFiles;
+  private final ChunkFiles chunkFiles;
+
+  /**
+   * @param format of the chunk files, its comparator must be the one used to sort the individual chunks
+   * @param maxOpenFiles the maximum number of chunk files merged, and therefore opened, at once
+   */
+  SortedFilesMerger(LineFormat<T> format, int maxOpenFiles) {
+    this(format, maxOpenFiles, new ChunkFiles(ChunkCodecs.NONE));
+  }
+
+  /**
+   * @param format of the chunk files, its comparator must be the one used to sort the individual chunks
+   * @param maxOpenFiles the maximum number of chunk files merged, and therefore opened, at once
+   * @param chunkFiles to read the chunk files and to write intermediate ones
+   */
+  SortedFilesMerger(LineFormat<T> format, int maxOpenFiles, ChunkFiles chunkFiles) {
+    if (maxOpenFiles < 2) {
+      throw new IllegalArgumentException("At least 2 files must be merged at once");
+    }
+    this.format = format;
+    this.lineComparator = format.getComparator();
+    this.maxOpenFiles = maxOpenFiles;
+    this.chunkFiles = chunkFiles;
+  }
+
+  /**
+   * Merges the chunk files into the writer. The chunk files and all intermediate files are deleted, the writer is
+   * flushed but not closed.
+   *
+   * @param chunks sorted chunk files in the order they were created
+   * @param writer to merge to, can already contain data
+   */
+  void merge(List<File> chunks, LineWriter<T> writer) throws IOException {
+    List<File> remaining = new ArrayList<File>(chunks);
+    try {
+      int pass = 0;
+      while (remaining.size() > maxOpenFiles) {
+        pass++;
+        LOG.debug("Merge pass {} reducing {} chunk files", pass, remaining.size());
+        remaining = mergeIntermediate(remaining, pass);
+      }
+      mergeChunks(remaining, writer);
+      writer.flush();
+    } finally {
+      for (File f : remaining) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Merges consecutive groups of at most maxOpenFiles chunks into new intermediate chunk files, deleting the merged
+   * ones.
+   *
+   * @return the intermediate chunk files, in order
+   */
+  private List<File> mergeIntermediate(List<File> chunks, int pass) throws IOException {
+    List<File> merged = new ArrayList<File>();
+    int from = 0;
+    try {
+      while (from < chunks.size()) {
+        List<File> group = chunks.subList(from, Math.min(from + maxOpenFiles, chunks.size()));
+        File first = group.get(0);
+        File target = new File(first.getParentFile(), first.getName() + "_merge" + pass + '_' + merged.size());
+        merged.add(target);
+        LineWriter<T> writer = format.newWriter(chunkFiles.create(target));
+        try {
+          mergeChunks(group, writer);
+        } finally {
+          writer.close();
+        }
+        for (File f : group) {
+          f.delete();
+        }
+        from += group.size();
+      }
+    } catch (IOException | RuntimeException e) {
+      // the caller only knows about the chunks not merged yet
+      for (File f : merged) {
+        f.delete();
+      }
+      for (File f : chunks.subList(from, chunks.size())) {
+        f.delete();
+      }
+      throw e;
+    }
+    return merged;
+  }
+
+  /**
+   * Merges all given chunks at once.
+   */
+  private void mergeChunks(List<File> chunks, LineWriter<T> writer) throws IOException {
+    PriorityQueue<ChunkHead> heads = new PriorityQueue<ChunkHead>(Math.max(1, chunks.size()));
+    List<LineReader<T>> readers = new ArrayList<LineReader<T>>(chunks.size());
+    try {
+      for (File f : chunks) {
+        LineReader<T> reader = format.newReader(chunkFiles.open(f));
+        readers.add(reader);
+        T line = reader.readLine();
+        if (line != null) {
+          heads.add(new ChunkHead(line, readers.size() - 1, reader));
+        }
+      }
+
+      ChunkHead head;
+      while ((head = heads.poll()) != null) {
+        writer.writeLine(head.line);
+        head.line = head.reader.readLine();
+        if (head.line != null) {
+          heads.add(head);
+        }
+      }
+    } finally {
+      for (LineReader<T> r : readers) {
+        try {
+          r.close();
+        } catch (IOException e) {
+          LOG.debug("Failed to close chunk reader", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * The current line of a chunk.
+   */
+  private class ChunkHead implements Comparable<ChunkHead> {
+
+    private T line;
+    private final int index;
+    private final LineReader<T> reader;
+
+    private ChunkHead(T line, int index, LineReader<T> reader) {
+      this.line = line;
+      this.index = index;
+      this.reader = reader;
+    }
+
+    @Override
+    public int compareTo(ChunkHead other) {
+      int c = lineComparator.compare(line, other.line);
+      return c != 0 ? c : Integer.compare(index, other.index);
+    }
+  }
+}
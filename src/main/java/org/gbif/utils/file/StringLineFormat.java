@@ -0,0 +1,104 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+
+/**
+ * Decodes lines into Strings, which are compared by any String comparator.
+ * Lines are terminated by \n, \r or \r\n and always written with \n.
+ */
+class StringLineFormat implements LineFormat<String> {
+
+  /**
+   * Estimated heap bytes used by a line on top of its characters: the String and array headers, the list reference
+   * and alignment.
+   */
+  private static final int LINE_OVERHEAD_BYTES = 56;
+
+  private final Comparator<String> comparator;
+  private final Charset encoding;
+
+  StringLineFormat(Comparator<String> comparator, Charset encoding) {
+    this.comparator = comparator;
+    this.encoding = encoding;
+  }
+
+  @Override
+  public Comparator<String> getComparator() {
+    return comparator;
+  }
+
+  @Override
+  public long estimateSize(String line) {
+    return LINE_OVERHEAD_BYTES + 2L * line.length();
+  }
+
+  @Override
+  public LineReader<String> newReader(InputStream in) {
+    final BufferedReader reader =
+      new BufferedReader(new InputStreamReader(in, encoding), ExternalSorter.BUFFER_SIZE);
+    return new LineReader<String>() {
+      @Override
+      public String readLine() throws IOException {
+        return reader.readLine();
+      }
+
+      @Override
+      public void close() throws IOException {
+        reader.close();
+      }
+    };
+  }
+
+  @Override
+  public LineWriter<String> newWriter(OutputStream out) {
+    return newWriter(new BufferedWriter(new OutputStreamWriter(out, encoding), ExternalSorter.BUFFER_SIZE));
+  }
+
+  /**
+   * @return a line writer on top of an already open writer
+   */
+  static LineWriter<String> newWriter(final Writer writer) {
+    return new LineWriter<String>() {
+      @Override
+      public void writeLine(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+      }
+
+      @Override
+      public void flush() throws IOException {
+        writer.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        writer.close();
+      }
+    };
+  }
+}
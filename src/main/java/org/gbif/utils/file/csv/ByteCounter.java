@@ -0,0 +1,112 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Counts the bytes decoded chars were read from, by the length of their encoding.
+ * <p/>
+ * UTF-8, UTF-16 and single byte encodings are counted directly, other encodings by encoding the chars. Counts are
+ * only exact for well formed input: the bytes malformed input was read from are unknown once the decoder replaced it,
+ * see {@link DecodingReader}.
+ * Instances keep state and must not be shared by threads.
+ */
+final class ByteCounter {
+
+  private final boolean utf8;
+  // bytes per char of fixed width encodings, 0 if not fixed
+  private final int width;
+  private final CharsetEncoder encoder;
+  private ByteBuffer out;
+
+  ByteCounter(Charset encoding) {
+    this.utf8 = StandardCharsets.UTF_8.equals(encoding);
+    if (utf8) {
+      width = 0;
+    } else if (StandardCharsets.UTF_16.equals(encoding) || StandardCharsets.UTF_16BE.equals(encoding)
+               || StandardCharsets.UTF_16LE.equals(encoding)) {
+      width = 2;
+    } else if (encoding.canEncode() && encoding.newEncoder().maxBytesPerChar() == 1) {
+      width = 1;
+    } else {
+      width = 0;
+    }
+    this.encoder = utf8 || width > 0 || !encoding.canEncode() ? null : encoding.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * @return the number of bytes encoding the chars from start to end
+   */
+  long count(char[] chars, int start, int end) {
+    if (width > 0) {
+      return (long) (end - start) * width;
+    }
+    if (utf8) {
+      long bytes = end - start;
+      for (int i = start; i < end; i++) {
+        char c = chars[i];
+        if (c >= 0x80) {
+          if (c < 0x800) {
+            bytes++;
+          } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+            // 4 bytes for the pair
+            bytes += 2;
+            i++;
+          } else {
+            bytes += 2;
+          }
+        }
+      }
+      return bytes;
+    }
+    if (encoder == null) {
+      // decode only charsets, assume a byte per char
+      return end - start;
+    }
+    return encode(chars, start, end);
+  }
+
+  private long encode(char[] chars, int start, int end) {
+    if (out == null) {
+      out = ByteBuffer.allocate(1024);
+    }
+    CharBuffer in = CharBuffer.wrap(chars, start, end - start);
+    long bytes = 0;
+    encoder.reset();
+    CoderResult result;
+    do {
+      out.clear();
+      result = encoder.encode(in, out, true);
+      bytes += out.position();
+    } while (result.isOverflow());
+    do {
+      out.clear();
+      result = encoder.flush(out);
+      bytes += out.position();
+    } while (result.isOverflow());
+    return bytes;
+  }
+}
@@ -0,0 +1,100 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes ranges of a byte buffer into a char array, replacing malformed input like an {@code InputStreamReader}.
+ * <p/>
+ * ASCII, and UTF-8 characters of up to 3 bytes, are decoded directly. Everything else is left to a
+ * {@link CharsetDecoder}, from the first byte that is not decoded directly on. Ranges must start and end at
+ * character boundaries, which in ASCII compatible encodings is the case next to any ASCII byte.
+ * Instances keep state and must not be shared by threads.
+ */
+final class BytesDecoder {
+
+  private final CharsetDecoder decoder;
+  private final boolean utf8;
+
+  BytesDecoder(Charset encoding) {
+    this.utf8 = StandardCharsets.UTF_8.equals(encoding);
+    this.decoder = encoding.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * @return the maximum number of chars a byte can decode to
+   */
+  int maxCharsPerByte() {
+    return (int) Math.ceil(decoder.maxCharsPerByte());
+  }
+
+  /**
+   * Decodes the bytes from start to end into chars at offset, which must have room for
+   * {@link #maxCharsPerByte()} chars per byte.
+   *
+   * @return the index after the last decoded char
+   */
+  int decode(ByteBuffer bytes, int start, int end, char[] chars, int offset) {
+    int i = start;
+    int c = offset;
+    while (i < end) {
+      int b = bytes.get(i);
+      if (b >= 0) {
+        chars[c++] = (char) b;
+        i++;
+      } else if (utf8 && (b & 0xe0) == 0xc0 && b != (byte) 0xc0 && b != (byte) 0xc1 && i + 1 < end
+                 && isContinuation(bytes.get(i + 1))) {
+        chars[c++] = (char) (((b & 0x1f) << 6) | (bytes.get(i + 1) & 0x3f));
+        i += 2;
+      } else if (utf8 && (b & 0xf0) == 0xe0 && i + 2 < end && isContinuation(bytes.get(i + 1))
+                 && isContinuation(bytes.get(i + 2))) {
+        int ch = ((b & 0x0f) << 12) | ((bytes.get(i + 1) & 0x3f) << 6) | (bytes.get(i + 2) & 0x3f);
+        if (ch < 0x800 || Character.isSurrogate((char) ch)) {
+          // overlong or a surrogate, malformed
+          break;
+        }
+        chars[c++] = (char) ch;
+        i += 3;
+      } else {
+        break;
+      }
+    }
+    if (i < end) {
+      ByteBuffer in = bytes.duplicate();
+      in.limit(end);
+      in.position(i);
+      CharBuffer out = CharBuffer.wrap(chars, c, chars.length - c);
+      decoder.reset();
+      decoder.decode(in, out, true);
+      decoder.flush(out);
+      c = out.position();
+    }
+    return c;
+  }
+
+  private static boolean isContinuation(byte b) {
+    return (b & 0xc0) == 0x80;
+  }
+}
@@ -17,40 +17,62 @@ package org.gbif.utils.file.csv;
 
 import org.gbif.utils.file.ClosableReportingIterator;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashSet;
-import java.util.Map;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import com.google.common.base.Strings;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import org.apache.commons.lang3.text.StrTokenizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- *
+ * Iterates over the rows of a delimited text file, splitting every row into its columns.
+ * <p/>
+ * Rows are single lines, empty lines are skipped. Rows are read into a large reusable char buffer and split by
+ * scanning that buffer directly, see {@link RowTokenizer} for the handling of the delimiter and quotes.
+ * <p/>
+ * Rows can be read as new string arrays with {@link #next()}, or as a reused {@link CSVRow} with {@link #nextRow()}
+ * that gives access to the columns without creating strings.
+ * <p/>
+ * A projection limits the rows to some of their columns, see {@link #setProjection(int...)}. Rows are then only scanned
+ * up to the last projected column and no strings are created for the others.
+ * <p/>
+ * The byte offset of every row in the stream is tracked, see {@link #currRowOffset()}. A reader over a file can be
+ * reopened at the offset of a row to continue from there, see {@link #reopen(File, String, String, Character, Integer,
+ * long, long)}. The bytes are counted from the decoded chars, so offsets are unknown after the first malformed input
+ * of the encoding.
  */
 public class CSVReader implements ClosableReportingIterator<String[]> {
 
   private static final Logger LOG = LoggerFactory.getLogger(CSVReader.class);
+  private static final int[] NO_LINES = new int[0];
   public final int headerRows;
   public final String encoding;
   public final String delimiter;
   public final Character quoteChar;
   public final String[] header;
-  private final StrTokenizer tokenizer;
-  private String row;
-  private int rows;
-  private int readRows;
-  private final Map<Integer, String> emptyLines;
-  private final BufferedReader br;
+  private final RowTokenizer tokenizer;
+  private final DecodingReader decoder;
+  private final LineBuffer lines;
+  private final CSVRow row = new CSVRow();
+  // there is a row to return, held by the line buffer
+  private boolean hasRow;
+  private long rows;
+  private long readRows;
+  // the byte offset of the row returned last
+  private long rowOffset = -1;
+  // the line numbers of the first empty lines, up to maxEmptyLines of them
+  private final int maxEmptyLines;
+  private int[] emptyLines = NO_LINES;
+  private int keptEmptyLines;
+  private long emptyLineCount;
   private boolean rowError;
   private String errorMessage;
   private Exception exception;
@@ -65,42 +87,113 @@ public class CSVReader implements ClosableReportingIterator<String[]> {
     this(stream, encoding, delimiter, quotes, headerRows, 1000);
   }
 
+  /**
+   * @param emptyLineCache the number of the first empty lines to keep the line numbers of, see
+   *                       {@link #getEmptyLines()}
+   */
   public CSVReader(InputStream stream, String encoding, String delimiter, Character quotes, Integer headerRows, int emptyLineCache)
           throws IOException {
-    if (emptyLineCache > 0) {
-      Cache<Integer, String> cache = CacheBuilder.newBuilder().maximumSize(emptyLineCache).build();
-      this.emptyLines = cache.asMap();
-    } else {
-      emptyLines = null;
-    }
-    this.rows = 0;
+    this(stream, encoding, Charset.forName(encoding), delimiter, quotes, headerRows, emptyLineCache, null, 0, 0);
+  }
+
+  /**
+   * @param decoding the charset to decode the stream with, differs from the encoding for UTF-16 reopened at an offset
+   * @param header the header of a reader reopened at offset, null to read the header rows from the stream
+   * @param offset the byte offset in the file the stream starts at
+   * @param lineNumber the line number at the offset, see {@link #currLineNumber()}
+   */
+  private CSVReader(InputStream stream, String encoding, Charset decoding, String delimiter, Character quotes,
+                    Integer headerRows, int emptyLineCache, String[] header, long offset, long lineNumber)
+          throws IOException {
+    this.maxEmptyLines = Math.max(0, emptyLineCache);
+    this.rows = lineNumber;
     this.readRows = 0;
     this.delimiter = delimiter;
     this.encoding = encoding;
     this.quoteChar = quotes;
     this.headerRows = headerRows == null || headerRows < 0 ? 0 : headerRows;
-    tokenizer = new StrTokenizer();
-    tokenizer.setDelimiterString(delimiter);
-    if (quotes != null) {
-      tokenizer.setQuoteChar(quotes);
+    tokenizer = new RowTokenizer(delimiter, quotes);
+    decoder = new DecodingReader(stream, decoding);
+    lines = new LineBuffer(decoder, LineBuffer.DEFAULT_SIZE, offset);
+    hasRow = lines.nextLine();
+    if (header != null) {
+      // reopened after the header rows
+      this.header = header;
+      return;
     }
-    tokenizer.setIgnoreEmptyTokens(false);
-    tokenizer.reset();
-    InputStreamReader reader = new InputStreamReader(stream, encoding);
-    br = new BufferedReader(reader);
-    row = br.readLine();
     // parse header row
-    if (row == null) {
-      header = null;
+    if (hasRow) {
+      this.header = tokenizer.tokenize(lines.chars(), lines.start(), lines.end());
     } else {
-      tokenizer.reset(row);
-      header = tokenizer.getTokenArray();
+      this.header = null;
     }
     // skip initial header rows?
-    while (headerRows > 0) {
-      headerRows--;
-      row = br.readLine();
+    for (int i = 0; i < this.headerRows && hasRow; i++) {
+      hasRow = lines.nextLine();
+    }
+  }
+
+  /**
+   * Reopens a file at the offset of a row, as given by {@link #nextRowOffset()} of a previous reader. The header is
+   * read from the start of the file as usual, then the reader continues with the row at the offset.
+   *
+   * @param offset the byte offset of the row to continue with
+   * @param lineNumber the {@link #currLineNumber()} of the previous reader at the time, to continue the line numbers
+   * @throws IllegalArgumentException if the offset is unknown, i.e. negative
+   */
+  public static CSVReader reopen(File source, String encoding, String delimiter, Character quotes, Integer headerRows,
+                                 long offset, long lineNumber) throws IOException {
+    if (offset < 0) {
+      throw new IllegalArgumentException("Cannot reopen " + source + " at the unknown offset " + offset);
+    }
+    String[] header;
+    Charset decoding;
+    try (CSVReader reader = new CSVReader(source, encoding, delimiter, quotes, headerRows)) {
+      header = reader.header;
+      if (header == null || offset == 0) {
+        return new CSVReader(source, encoding, delimiter, quotes, headerRows);
+      }
+      // a UTF-16 byte order mark is only at the start of the file
+      decoding = reader.decoder.continuation();
+    }
+    FileInputStream stream = new FileInputStream(source);
+    try {
+      stream.getChannel().position(offset);
+      return new CSVReader(stream, encoding, decoding, delimiter, quotes, headerRows, 1000, header, offset,
+                           lineNumber);
+    } catch (IOException | RuntimeException e) {
+      stream.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Limits the rows returned by {@link #next()} and {@link #nextRow()} to the given columns, in the given order.
+   * Rows that do not have a projected column have null for it.
+   *
+   * @param columns the indices of the columns, none to return all columns again
+   */
+  public void setProjection(int... columns) {
+    tokenizer.setProjection(columns == null || columns.length == 0 ? null : columns);
+  }
+
+  /**
+   * Limits the rows returned by {@link #next()} and {@link #nextRow()} to the columns with the given names in the
+   * {@link #getHeader() header}, see {@link #setProjection(int...)}.
+   *
+   * @param columns the names of the columns in the header
+   * @throws IllegalArgumentException if a column is not in the header
+   */
+  public void setProjectionByName(String... columns) {
+    int[] indices = new int[columns.length];
+    List<String> names = header == null ? Collections.<String>emptyList() : Arrays.asList(header);
+    for (int i = 0; i < columns.length; i++) {
+      indices[i] = names.indexOf(columns[i]);
+      if (indices[i] < 0) {
+        throw new IllegalArgumentException("Column " + columns[i] + " is not in the header " + names);
+      }
     }
+    setProjection(indices);
   }
 
   /**
@@ -114,7 +207,7 @@ public class CSVReader implements ClosableReportingIterator<String[]> {
   @Override
   public void close() {
     try {
-      br.close();
+      lines.close();
     } catch (IOException e) {
       LOG.debug("Exception caught", e);
     }
@@ -123,21 +216,48 @@ public class CSVReader implements ClosableReportingIterator<String[]> {
   /**
    * @return the current line number of the String[] iterator
    */
-  public int currLineNumber() {
+  public long currLineNumber() {
     return rows;
   }
 
   /**
-   * @return a set of the line numbers of the firsts empty rows found in the file
+   * @return the byte offset in the stream of the row returned last, -1 before the first row or if it is unknown
+   *         because of malformed input before the row
+   */
+  public long currRowOffset() {
+    return rowOffset;
+  }
+
+  /**
+   * @return the byte offset in the stream of the row returned next, or of the end of the stream if there is none, -1
+   *         if it is unknown because of malformed input before it
+   */
+  public long nextRowOffset() {
+    return hasRow ? lines.offset() : lines.nextOffset();
+  }
+
+  /**
+   * @return a new set of the line numbers of the first empty rows found in the file, in the order of the file
    */
   public Set<Integer> getEmptyLines() {
-    return emptyLines == null ? new HashSet<>() : emptyLines.keySet();
+    Set<Integer> lines = new LinkedHashSet<>(keptEmptyLines * 2);
+    for (int i = 0; i < keptEmptyLines; i++) {
+      lines.add(emptyLines[i]);
+    }
+    return lines;
+  }
+
+  /**
+   * @return the number of empty rows found in the file so far, including the ones not in {@link #getEmptyLines()}
+   */
+  public long getEmptyLineCount() {
+    return emptyLineCount;
   }
 
   /**
    * @return the number of rows of data that were correctly read from the file
    */
-  public int getReadRows() {
+  public long getReadRows() {
     return readRows;
   }
 
@@ -147,7 +267,7 @@ public class CSVReader implements ClosableReportingIterator<String[]> {
    */
   @Override
   public boolean hasNext() {
-    return row != null;
+    return hasRow;
   }
 
   /*
@@ -156,21 +276,43 @@ public class CSVReader implements ClosableReportingIterator<String[]> {
    */
   @Override
   public String[] next() {
-    if (row == null) {
+    if (!hasRow) {
       return null;
     }
-    tokenizer.reset(row);
+    String[] columns = tokenizer.tokenize(lines.chars(), lines.start(), lines.end());
+    rowOffset = lines.offset();
+    advance();
+    return columns;
+  }
+
+  /**
+   * Reads the next row like {@link #next()}, but into a view that is reused for all rows instead of new strings.
+   *
+   * @return the next row, only valid until this method is called again, or null if there is none
+   */
+  public CSVRow nextRow() {
+    if (!hasRow) {
+      return null;
+    }
+    tokenizer.split(lines.chars(), lines.start(), lines.end(), row);
+    rowOffset = lines.offset();
+    advance();
+    return row;
+  }
+
+  /**
+   * Moves to the next non empty line after the current row.
+   */
+  private void advance() {
     resetReportingIterator();
     try {
-      row = br.readLine();
+      hasRow = lines.nextLine();
       rows++;
       // skip empty lines
-      while (row != null && row.length() == 0) {
+      while (hasRow && lines.length() == 0) {
         // save line number of empty line
-        if (emptyLines != null) {
-          emptyLines.put(rows + headerRows + 1, "");
-        }
-        row = br.readLine();
+        addEmptyLine(rows + headerRows + 1);
+        hasRow = lines.nextLine();
         rows++;
       }
       readRows++;
@@ -183,6 +325,7 @@ public class CSVReader implements ClosableReportingIterator<String[]> {
       StringBuilder msg = new StringBuilder();
       msg.append("Exception caught: ");
       msg.append(e.getMessage());
+      String row = lines.line();
       if (!Strings.isNullOrEmpty(row)) {
         msg.append("\n");
         msg.append("Row: ");
@@ -191,9 +334,19 @@ public class CSVReader implements ClosableReportingIterator<String[]> {
       errorMessage = msg.toString();
 
       // ensure iteration terminates
-      row = null;
+      hasRow = false;
+    }
+  }
+
+  private void addEmptyLine(long line) {
+    // the line numbers are kept as ints, the first empty lines are hardly beyond that
+    if (keptEmptyLines < maxEmptyLines && line <= Integer.MAX_VALUE) {
+      if (keptEmptyLines == emptyLines.length) {
+        emptyLines = Arrays.copyOf(emptyLines, Math.min(maxEmptyLines, Math.max(16, keptEmptyLines * 2)));
+      }
+      emptyLines[keptEmptyLines++] = (int) line;
     }
-    return tokenizer.getTokenArray();
+    emptyLineCount++;
   }
 
   /**
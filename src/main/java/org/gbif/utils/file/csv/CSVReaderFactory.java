@@ -16,16 +16,22 @@
 package org.gbif.utils.file.csv;
 
 import org.gbif.utils.file.CharsetDetection;
+import org.gbif.utils.file.CharsetDetector;
 import org.gbif.utils.file.UnknownCharsetException;
 import org.gbif.utils.file.tabular.TabularFileMetadataExtractor;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +43,7 @@ public class CSVReaderFactory {
   private static final Logger LOG = LoggerFactory.getLogger(CSVReaderFactory.class);
   private static final String[] POTENTIAL_DELIMITERS = {",", "\t", ";", "|"};
   private static final int ROWS_TO_INSPECT = 10;
+  private static final int ENCODING_SAMPLE_SIZE = 16384;
 
   /**
    * Data about the CSV file
@@ -130,8 +137,31 @@ public class CSVReaderFactory {
    * @throws IOException
    */
   public static CSVReader build(File source, Integer headerRows) throws IOException {
-    String encoding = detectEncoding(source);
-    CSVMetadata csvMeta  = extractCsvMetadata(source, encoding);
+    // the bytes read to detect the encoding are also the start of the sample
+    byte[] head = new byte[ENCODING_SAMPLE_SIZE];
+    InputStream stream;
+    int length;
+    try {
+      stream = new FileInputStream(source);
+      try {
+        length = IOUtils.read(stream, head);
+      } catch (IOException e) {
+        stream.close();
+        throw e;
+      }
+    } catch (IOException e) {
+      throw new UnknownCharsetException(e);
+    }
+    CharsetDetector detector = new CharsetDetector();
+    detector.update(head, 0, length);
+    String encoding = detector.getCharset().displayName();
+    Sample sample;
+    try (InputStream rest = stream) {
+      sample = new Sample(new SequenceInputStream(new ByteArrayInputStream(head, 0, length), rest), encoding);
+    } catch (IOException e) {
+      throw new UnknownDelimitersException("Unable to detect field delimiter", e);
+    }
+    CSVMetadata csvMeta = extractCsvMetadata(sample);
     return new CSVReader(source, encoding, csvMeta.getDelimiter(), csvMeta.getQuotedBy(), headerRows);
   }
 
@@ -159,6 +189,9 @@ public class CSVReaderFactory {
    *
    * Extract metadata from a CSV file.
    * Metadata includes delimiter and quotes character.
+   * <p/>
+   * The first rows are read once into a sample, see {@link Sample}, and all delimiter and quote candidates are tried
+   * on that sample.
    *
    * @param source
    * @param encoding
@@ -166,6 +199,16 @@ public class CSVReaderFactory {
    * @throws UnknownDelimitersException
    */
   public static CSVMetadata extractCsvMetadata(File source, String encoding) throws UnknownDelimitersException {
+    Sample sample;
+    try (InputStream stream = new FileInputStream(source)) {
+      sample = new Sample(stream, encoding);
+    } catch (IOException e) {
+      throw new UnknownDelimitersException("Unable to detect field delimiter", e);
+    }
+    return extractCsvMetadata(sample);
+  }
+
+  private static CSVMetadata extractCsvMetadata(Sample sample) throws UnknownDelimitersException {
     CSVMetadata csvMetadata = new CSVMetadata();
     // try csv, tab and then other popular delimiters
     // keep number of resulting columns for comparisons
@@ -175,15 +218,9 @@ public class CSVReaderFactory {
       // test with various quotes including a dynamic one if the first char in each field is consistently the same
       List<Character> potentialQuotes = new ArrayList<Character>();
 
-      CSVReader reader;
-      try {
-        reader = build(source, encoding, delim, null, 1);
-        Character firstChar = likelyQuoteChar(reader);
-        reader.close();
-        if (firstChar != null) {
-          potentialQuotes.add(firstChar);
-        }
-      } catch (IOException ignored) {
+      Character firstChar = likelyQuoteChar(sample.rows(1, new RowTokenizer(delim, null)));
+      if (firstChar != null) {
+        potentialQuotes.add(firstChar);
       }
       // prefer quotes for CSVs
       if (delim.equals(",")) {
@@ -197,19 +234,12 @@ public class CSVReaderFactory {
       }
 
       for (Character quote : potentialQuotes) {
-        try {
-          reader = build(source, encoding, delim, quote, 0);
-          int x = consistentRowSize(reader);
-          // try to find the delimiter and quote that will give us the maximum number of rows
-          if (x > maxColumns) {
-            csvMetadata.setDelimiter(delim);
-            csvMetadata.setQuotedBy(quote);
-            maxColumns = x;
-          }
-          reader.close();
-        } catch (IOException ignored) {
-          // swallow, maybe different delimiters work
-          // if all fail we will throw an exception at the end
+        int x = consistentRowSize(sample.rows(0, new RowTokenizer(delim, quote)));
+        // try to find the delimiter and quote that will give us the maximum number of rows
+        if (x > maxColumns) {
+          csvMetadata.setDelimiter(delim);
+          csvMetadata.setQuotedBy(quote);
+          maxColumns = x;
         }
       }
     }
@@ -225,12 +255,11 @@ public class CSVReaderFactory {
    * @return the number of consistent columns, -1 if non consistent or column numbers-2 in case the column numbers only
    * differ by 1 at max.
    */
-  private static int consistentRowSize(CSVReader reader) {
+  private static int consistentRowSize(List<String[]> rows) {
     int rowNum = 0;
     int columns = 0;
     boolean plusMinusOne = false;
-    while (reader.hasNext() && rowNum < ROWS_TO_INSPECT) {
-      String[] row = reader.next();
+    for (String[] row : rows) {
       if (rowNum == 0) {
         columns = row.length;
       }
@@ -251,7 +280,7 @@ public class CSVReaderFactory {
   private static String detectEncoding(File source) throws UnknownCharsetException {
     Charset encoding;
     try {
-      encoding = CharsetDetection.detectEncoding(source, 16384);
+      encoding = CharsetDetection.detectEncoding(source, ENCODING_SAMPLE_SIZE);
       if (encoding == null) {
         throw new UnknownCharsetException("Unable to detect the files character encoding");
       }
@@ -266,30 +295,25 @@ public class CSVReaderFactory {
    *
    * @return the first character if consistent, otherwise null
    */
-  private static Character likelyQuoteChar(CSVReader reader) {
+  private static Character likelyQuoteChar(List<String[]> rows) {
     Character quote = null;
-    int line = 0;
-    while (reader.hasNext() && line < 10) {
-      line++;
-      String[] row = reader.next();
-      if (row != null) {
-        for (String col : row) {
-          if (col != null && col.length() > 0) {
-            // same char at start & end?
-            if (col.length() > 1 && col.charAt(0) == col.charAt(col.length() - 1)) {
-              // only consider non alphanumerics
-              char potQuote = col.charAt(0);
-              if (Character.isLetterOrDigit(potQuote)) {
+    for (String[] row : rows) {
+      for (String col : row) {
+        if (col != null && col.length() > 0) {
+          // same char at start & end?
+          if (col.length() > 1 && col.charAt(0) == col.charAt(col.length() - 1)) {
+            // only consider non alphanumerics
+            char potQuote = col.charAt(0);
+            if (Character.isLetterOrDigit(potQuote)) {
+              break;
+            }
+            if (quote == null) {
+              quote = potQuote;
+            } else {
+              if (!quote.equals(potQuote)) {
+                quote = null;
                 break;
               }
-              if (quote == null) {
-                quote = potQuote;
-              } else {
-                if (!quote.equals(potQuote)) {
-                  quote = null;
-                  break;
-                }
-              }
             }
           }
         }
@@ -298,5 +322,44 @@ public class CSVReaderFactory {
     return quote;
   }
 
-}
+  /**
+   * The first lines of a file, as far as they are inspected by the delimiter and quote detection.
+   * <p/>
+   * A {@link CSVReader} skipping h header rows returns line h + 1 as its first row, even if it is empty, and then the
+   * following non empty lines. The detection reads the first {@link #ROWS_TO_INSPECT} rows of readers skipping none
+   * and one header row, so the sample keeps the first two lines and the non empty lines after them up to that many.
+   */
+  private static class Sample {
 
+    private final List<String> lines = new ArrayList<String>();
+
+    private Sample(InputStream stream, String encoding) throws IOException {
+      LineBuffer buffer = new LineBuffer(new InputStreamReader(stream, encoding));
+      int nonEmpty = 0;
+      while (nonEmpty < ROWS_TO_INSPECT && buffer.nextLine()) {
+        if (lines.size() < 2 || buffer.length() > 0) {
+          lines.add(buffer.line());
+          // the non empty lines after the first one
+          if (lines.size() > 1 && buffer.length() > 0) {
+            nonEmpty++;
+          }
+        }
+      }
+    }
+
+    /**
+     * @return the first rows a {@link CSVReader} would return, skipping the given number of header rows
+     */
+    private List<String[]> rows(int headerRows, RowTokenizer tokenizer) {
+      List<String[]> rows = new ArrayList<String[]>(ROWS_TO_INSPECT);
+      for (int i = headerRows; i < lines.size() && rows.size() < ROWS_TO_INSPECT; i++) {
+        String line = lines.get(i);
+        // only the first row can be empty
+        if (i == headerRows || !line.isEmpty()) {
+          rows.add(tokenizer.tokenize(line.toCharArray(), 0, line.length()));
+        }
+      }
+      return rows;
+    }
+  }
+}
@@ -0,0 +1,448 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable view of the current row of a {@link CSVReader}, see {@link CSVReader#nextRow()}.
+ * <p/>
+ * The row keeps its characters in a buffer that is reused for every row, with quotes already removed. Columns are
+ * exposed as {@link CharSequence} slices of that buffer and numbers are parsed directly from it, so reading a row does
+ * not allocate anything unless a column is materialized with {@link #getString(int)} or {@link Object#toString()}.
+ * <p/>
+ * The row and the column slices change when the next row is read. Keep strings, not slices, of values needed later.
+ * <p/>
+ * If the reader projects columns, the row only has the projected ones in the order of the projection. Projected
+ * columns the row does not have are missing: they have no slice and no string and are not numbers.
+ * <p/>
+ * Rows of a {@link MappedCSVReader} or {@link ParallelCSVReader} are split on the raw bytes of the file, and a column
+ * is only decoded into the buffer when it is first accessed.
+ */
+public final class CSVRow {
+
+  private static final int[] NO_BOUNDS = new int[0];
+  private static final boolean[] NO_FLAGS = new boolean[0];
+  // the start of columns that are not decoded yet
+  private static final int UNDECODED = -2;
+
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+    1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private char[] chars = new char[256];
+  // start and end of every column in chars
+  private int[] starts = NO_BOUNDS;
+  private int[] ends = NO_BOUNDS;
+  // the bounds of the projected columns are built here, -1 for missing columns
+  private int[] projectedStarts = NO_BOUNDS;
+  private int[] projectedEnds = NO_BOUNDS;
+  private int size;
+  private Column[] columns = new Column[0];
+  // the raw bytes of the columns if the row was split on bytes, null otherwise
+  private ByteBuffer bytes;
+  private BytesDecoder decoder;
+  private char quote;
+  private int[] byteStarts = NO_BOUNDS;
+  private int[] byteEnds = NO_BOUNDS;
+  private boolean[] quoted = NO_FLAGS;
+  // the length of the decoded columns in chars
+  private int decodedLength;
+
+  CSVRow() {
+  }
+
+  /**
+   * Copies a row into the buffer of this view and removes all its columns.
+   *
+   * @return the buffer, holding the row from 0 to end - start
+   */
+  char[] reset(char[] row, int start, int end) {
+    int length = end - start;
+    if (chars.length < length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    System.arraycopy(row, start, chars, 0, length);
+    size = 0;
+    bytes = null;
+    return chars;
+  }
+
+  /**
+   * Removes all columns, to add the raw columns of a row held in bytes.
+   *
+   * @param quote the quote character of quoted columns
+   */
+  void reset(ByteBuffer bytes, BytesDecoder decoder, char quote) {
+    this.bytes = bytes;
+    this.decoder = decoder;
+    this.quote = quote;
+    size = 0;
+    decodedLength = 0;
+  }
+
+  /**
+   * Adds the next column, held in the buffer from start to end.
+   */
+  void addColumn(int start, int end) {
+    grow();
+    starts[size] = start;
+    ends[size] = end;
+    size++;
+  }
+
+  /**
+   * Adds the next raw column, held in the bytes from start to end including its quotes.
+   *
+   * @param quoted true if the column starts with the quote character
+   */
+  void addColumn(int start, int end, boolean quoted) {
+    grow();
+    starts[size] = UNDECODED;
+    ends[size] = UNDECODED;
+    byteStarts[size] = start;
+    byteEnds[size] = end;
+    this.quoted[size] = quoted;
+    size++;
+  }
+
+  /**
+   * Adds a missing column, for projected columns the row does not have.
+   */
+  void addMissingColumn() {
+    grow();
+    starts[size] = -1;
+    ends[size] = -1;
+    size++;
+  }
+
+  private void grow() {
+    if (size == starts.length) {
+      int capacity = Math.max(16, size * 2);
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+      byteStarts = Arrays.copyOf(byteStarts, capacity);
+      byteEnds = Arrays.copyOf(byteEnds, capacity);
+      quoted = Arrays.copyOf(quoted, capacity);
+    }
+  }
+
+  /**
+   * @return the start of the column in the buffer after decoding it if needed, -1 for missing columns
+   */
+  private int start(int column) {
+    checkIndex(column);
+    if (starts[column] == UNDECODED) {
+      int start = byteStarts[column];
+      int end = byteEnds[column];
+      if (quoted[column]) {
+        // skip the opening quote
+        start++;
+      }
+      int capacity = decodedLength + (end - start) * decoder.maxCharsPerByte();
+      if (chars.length < capacity) {
+        chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+      }
+      int decodedEnd = decoder.decode(bytes, start, end, chars, decodedLength);
+      if (quoted[column]) {
+        decodedEnd = RowTokenizer.unquote(chars, decodedLength, decodedEnd, quote);
+      }
+      starts[column] = decodedLength;
+      ends[column] = decodedEnd;
+      decodedLength = decodedEnd;
+    }
+    return starts[column];
+  }
+
+  /**
+   * Keeps only the given columns, in their order.
+   */
+  void project(int[] projection) {
+    if (projectedStarts.length < projection.length) {
+      projectedStarts = new int[projection.length];
+      projectedEnds = new int[projection.length];
+    }
+    for (int i = 0; i < projection.length; i++) {
+      int column = projection[i];
+      projectedStarts[i] = column < size ? starts[column] : -1;
+      projectedEnds[i] = column < size ? ends[column] : -1;
+    }
+    int[] swap = starts;
+    starts = projectedStarts;
+    projectedStarts = swap;
+    swap = ends;
+    ends = projectedEnds;
+    projectedEnds = swap;
+    size = projection.length;
+  }
+
+  /**
+   * @return the number of columns of the row
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return a view of the column that is only valid until the next row is read, null if the column is missing
+   */
+  public CharSequence get(int column) {
+    if (start(column) < 0) {
+      return null;
+    }
+    if (columns.length <= column) {
+      Column[] grown = Arrays.copyOf(columns, Math.max(size, columns.length * 2));
+      for (int i = columns.length; i < grown.length; i++) {
+        grown[i] = new Column(i);
+      }
+      columns = grown;
+    }
+    return columns[column];
+  }
+
+  /**
+   * @return the number of characters of the column
+   */
+  public int length(int column) {
+    int start = start(column);
+    return ends[column] - start;
+  }
+
+  /**
+   * @return true if the column has no characters
+   */
+  public boolean isEmpty(int column) {
+    return length(column) == 0;
+  }
+
+  /**
+   * @return the column as a new string, null if the column is missing
+   */
+  public String getString(int column) {
+    if (start(column) < 0) {
+      return null;
+    }
+    return starts[column] == ends[column] ? "" : new String(chars, starts[column], ends[column] - starts[column]);
+  }
+
+  /**
+   * Parses the column like {@link Integer#parseInt(String)}.
+   *
+   * @throws NumberFormatException if the column is not an int
+   */
+  public int getInt(int column) {
+    long value = getLong(column);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw numberFormatException(column);
+    }
+    return (int) value;
+  }
+
+  /**
+   * Parses the column like {@link Long#parseLong(String)}.
+   *
+   * @throws NumberFormatException if the column is not a long
+   */
+  public long getLong(int column) {
+    int pos = start(column);
+    int end = ends[column];
+    if (pos == end) {
+      throw numberFormatException(column);
+    }
+    boolean negative = false;
+    long limit = -Long.MAX_VALUE;
+    char first = chars[pos];
+    if (first == '-' || first == '+') {
+      if (first == '-') {
+        negative = true;
+        limit = Long.MIN_VALUE;
+      }
+      if (++pos == end) {
+        throw numberFormatException(column);
+      }
+    }
+    // accumulate negatively, like Long.parseLong, to reach Long.MIN_VALUE
+    long multiplyMin = limit / 10;
+    long result = 0;
+    while (pos < end) {
+      int digit = Character.digit(chars[pos++], 10);
+      if (digit < 0 || result < multiplyMin) {
+        throw numberFormatException(column);
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        throw numberFormatException(column);
+      }
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
+
+  /**
+   * Parses the column like {@link Double#parseDouble(String)}.
+   * <p/>
+   * Plain decimals with up to 15 significant digits and small exponents are converted in place, exactly like
+   * {@link Double#parseDouble(String)} does. All other values are materialized and parsed by it.
+   *
+   * @throws NumberFormatException if the column is not a double
+   */
+  public double getDouble(int column) {
+    int pos = start(column);
+    int end = ends[column];
+    if (pos < 0) {
+      throw numberFormatException(column);
+    }
+    boolean negative = false;
+    if (pos < end && (chars[pos] == '-' || chars[pos] == '+')) {
+      negative = chars[pos] == '-';
+      pos++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int significantDigits = 0;
+    int fractionDigits = 0;
+    boolean fraction = false;
+    for (; pos < end; pos++) {
+      char c = chars[pos];
+      if (c >= '0' && c <= '9') {
+        digits++;
+        if (fraction) {
+          fractionDigits++;
+        }
+        if (mantissa != 0 || c != '0') {
+          if (++significantDigits > 15) {
+            return parseDouble(column);
+          }
+          mantissa = mantissa * 10 + (c - '0');
+        }
+      } else if (c == '.' && !fraction) {
+        fraction = true;
+      } else {
+        break;
+      }
+    }
+    if (digits == 0) {
+      return parseDouble(column);
+    }
+    int exponent = 0;
+    if (pos < end) {
+      if (chars[pos] != 'e' && chars[pos] != 'E') {
+        return parseDouble(column);
+      }
+      pos++;
+      boolean negativeExponent = false;
+      if (pos < end && (chars[pos] == '-' || chars[pos] == '+')) {
+        negativeExponent = chars[pos] == '-';
+        pos++;
+      }
+      if (pos == end || end - pos > 3) {
+        return parseDouble(column);
+      }
+      for (; pos < end; pos++) {
+        char c = chars[pos];
+        if (c < '0' || c > '9') {
+          return parseDouble(column);
+        }
+        exponent = exponent * 10 + (c - '0');
+      }
+      if (negativeExponent) {
+        exponent = -exponent;
+      }
+    }
+    if (mantissa == 0) {
+      return negative ? -0.0d : 0.0d;
+    }
+    exponent -= fractionDigits;
+    if (exponent < -22 || exponent > 22) {
+      return parseDouble(column);
+    }
+    // mantissas of up to 15 digits and powers of ten up to 22 are exact doubles, so a single multiplication or
+    // division rounds correctly
+    double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+    return negative ? -value : value;
+  }
+
+  private double parseDouble(int column) {
+    return Double.parseDouble(getString(column));
+  }
+
+  private NumberFormatException numberFormatException(int column) {
+    if (starts[column] < 0) {
+      return new NumberFormatException("Column " + column + " is missing");
+    }
+    return new NumberFormatException("For input string: \"" + getString(column) + '"');
+  }
+
+  private void checkIndex(int column) {
+    if (column < 0 || column >= size) {
+      throw new IndexOutOfBoundsException("Column " + column + " of a row with " + size + " columns");
+    }
+  }
+
+  /**
+   * @return the columns as new strings, null for missing columns
+   */
+  public String[] toArray() {
+    String[] values = new String[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = getString(i);
+    }
+    return values;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+
+  /**
+   * A column of the current row.
+   */
+  private final class Column implements CharSequence {
+
+    private final int index;
+
+    private Column(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public int length() {
+      return CSVRow.this.length(index);
+    }
+
+    @Override
+    public char charAt(int i) {
+      if (i < 0 || i >= length()) {
+        throw new IndexOutOfBoundsException("Index " + i + " of a column with length " + length());
+      }
+      return chars[starts[index] + i];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+      return getString(index);
+    }
+  }
+}
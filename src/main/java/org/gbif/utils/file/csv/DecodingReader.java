@@ -0,0 +1,190 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a stream like an {@link java.io.InputStreamReader}, replacing malformed input, but keeps track of what makes
+ * the decoded chars differ from the bytes they were read from: the first replacement, and a UTF-16 byte order mark that
+ * the decoder consumed without a char.
+ * <p/>
+ * The byte offsets a {@link ByteCounter} counts from the chars are the ones of the stream if the byte order mark is
+ * added, and only up to the first replacement, as the bytes a replacement char was read from are unknown.
+ * Instances are not thread safe.
+ */
+final class DecodingReader extends Reader {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final InputStream in;
+  private final Charset encoding;
+  private final CharsetDecoder decoder;
+  // the bytes read and not decoded yet, between position and limit
+  private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+  private boolean eof;
+  private boolean flushed;
+  // -1 until the first bytes are read
+  private int bomLength = -1;
+  private boolean littleEndian;
+  // the chars returned so far, and the index of the first replacement char among them
+  private long chars;
+  private long replacedAt = Long.MAX_VALUE;
+  // the low surrogate of a pair decoded when a single char was asked for, -1 if there is none
+  private int pending = -1;
+
+  DecodingReader(InputStream in, Charset encoding) {
+    this.in = in;
+    this.encoding = encoding;
+    this.decoder = encoding.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPORT)
+      .onUnmappableCharacter(CodingErrorAction.REPORT);
+    bytes.flip();
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > cbuf.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (pending >= 0) {
+      cbuf[off] = (char) pending;
+      pending = -1;
+      chars++;
+      return 1;
+    }
+    if (len == 1) {
+      // a surrogate pair is decoded at once
+      char[] pair = new char[2];
+      int read = read(pair, 0, 2);
+      if (read == 2) {
+        pending = pair[1];
+        chars--;
+      }
+      if (read > 0) {
+        cbuf[off] = pair[0];
+      }
+      return Math.min(read, 1);
+    }
+    if (bomLength < 0) {
+      readBom();
+    }
+    if (flushed) {
+      return -1;
+    }
+    CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+    while (true) {
+      CoderResult result = decoder.decode(bytes, out, eof);
+      if (result.isError()) {
+        if (out.remaining() < decoder.replacement().length()) {
+          break;
+        }
+        replacedAt = Math.min(replacedAt, chars + out.position() - off);
+        out.put(decoder.replacement());
+        bytes.position(bytes.position() + result.length());
+      } else if (result.isOverflow() || out.position() > off) {
+        break;
+      } else if (eof) {
+        decoder.flush(out);
+        flushed = true;
+        break;
+      } else {
+        fill();
+      }
+    }
+    int read = out.position() - off;
+    chars += read;
+    return read == 0 ? -1 : read;
+  }
+
+  /**
+   * Reads the first bytes to find a byte order mark consumed by the decoder, which is only the case for UTF-16 with an
+   * unspecified byte order.
+   */
+  private void readBom() throws IOException {
+    while (!eof && bytes.remaining() < 2) {
+      fill();
+    }
+    bomLength = 0;
+    if (StandardCharsets.UTF_16.equals(encoding) && bytes.remaining() >= 2) {
+      int first = bytes.get(0) & 0xff;
+      int second = bytes.get(1) & 0xff;
+      if (first == 0xFE && second == 0xFF || first == 0xFF && second == 0xFE) {
+        bomLength = 2;
+        littleEndian = first == 0xFF;
+      }
+    }
+  }
+
+  private void fill() throws IOException {
+    bytes.compact();
+    int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+    if (read < 0) {
+      eof = true;
+    } else {
+      bytes.position(bytes.position() + read);
+    }
+    bytes.flip();
+  }
+
+  /**
+   * @return the length of a byte order mark the decoder consumed without a char, known once chars were read
+   */
+  int bomLength() {
+    return Math.max(0, bomLength);
+  }
+
+  /**
+   * @return the index of the first char that replaced malformed input, Long.MAX_VALUE if there is none so far
+   */
+  long replacedAt() {
+    return replacedAt;
+  }
+
+  /**
+   * @return the encoding to decode the bytes after the start of the stream with, which for UTF-16 gives the byte order
+   *         found at the start
+   */
+  Charset continuation() {
+    if (StandardCharsets.UTF_16.equals(encoding)) {
+      // without a byte order mark the decoder assumes big endian
+      return littleEndian ? StandardCharsets.UTF_16LE : StandardCharsets.UTF_16BE;
+    }
+    return encoding;
+  }
+
+  Charset encoding() {
+    return encoding;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
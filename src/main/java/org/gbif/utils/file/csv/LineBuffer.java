@@ -0,0 +1,254 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads lines from a reader into a single reusable char buffer, without creating a String per line.
+ * Lines are terminated by \n, \r or \r\n like for {@link java.io.BufferedReader#readLine()}.
+ * <p/>
+ * The current line is a range of the buffer, which stays valid until the next line has been read successfully. The
+ * buffer grows to hold the longest lines.
+ * <p/>
+ * Given the encoding of the stream the reader decodes, the byte offsets of the lines in that stream are tracked too,
+ * see {@link ByteCounter}. Reading through a {@link DecodingReader} the offsets become unknown, -1, after malformed
+ * input, instead of being counted from the replacement chars.
+ */
+final class LineBuffer implements Closeable {
+
+  static final int DEFAULT_SIZE = 64 * 1024;
+
+  private final Reader reader;
+  private char[] buffer;
+  // the next char to read
+  private int pos;
+  // the end of the chars read into the buffer
+  private int limit;
+  private int lineStart;
+  private int lineEnd;
+  // the last line ended with \r, so a following \n belongs to it
+  private boolean skipLF;
+  private boolean eof;
+  // null if offsets are not tracked
+  private final ByteCounter counter;
+  // null if the reader is not known to decode malformed input
+  private final DecodingReader decoder;
+  // the chars counted so far
+  private long counted;
+  private boolean bomCounted;
+  // the byte offset of the current line, and of the chars after it that were consumed already
+  private long lineOffset;
+  private long nextOffset;
+
+  LineBuffer(Reader reader) {
+    this(reader, DEFAULT_SIZE);
+  }
+
+  LineBuffer(Reader reader, int size) {
+    this(reader, size, null, 0);
+  }
+
+  /**
+   * @param encoding the encoding of the well formed stream read, to track the byte offsets of lines
+   * @param offset the byte offset in the file the stream starts at
+   */
+  LineBuffer(Reader reader, int size, Charset encoding, long offset) {
+    this(reader, null, size, encoding, offset);
+  }
+
+  /**
+   * Tracks the byte offsets of lines in the stream decoded, as long as it is well formed.
+   *
+   * @param offset the byte offset in the file the stream starts at
+   */
+  LineBuffer(DecodingReader decoder, int size, long offset) {
+    this(decoder, decoder, size, decoder.encoding(), offset);
+  }
+
+  private LineBuffer(Reader reader, DecodingReader decoder, int size, Charset encoding, long offset) {
+    this.reader = reader;
+    this.decoder = decoder;
+    this.buffer = new char[size];
+    this.counter = encoding == null ? null : new ByteCounter(encoding);
+    this.nextOffset = offset;
+  }
+
+  /**
+   * Reads the next line. If that fails, the current line remains.
+   *
+   * @return true if a line was read, false at the end of the stream
+   */
+  boolean nextLine() throws IOException {
+    if (skipLF) {
+      if (pos == limit && !fill()) {
+        skipLF = false;
+        return false;
+      }
+      if (buffer[pos] == '\n') {
+        count(pos, pos + 1);
+        pos++;
+      }
+      skipLF = false;
+    }
+    // the chars of the line scanned so far
+    int scanned = 0;
+    while (true) {
+      for (int i = pos + scanned; i < limit; i++) {
+        char c = buffer[i];
+        if (c == '\n' || c == '\r') {
+          lineStart = pos;
+          lineEnd = i;
+          pos = i + 1;
+          if (c == '\r') {
+            if (pos < limit) {
+              if (buffer[pos] == '\n') {
+                pos++;
+              }
+            } else {
+              skipLF = true;
+            }
+          }
+          lineOffset = nextOffset;
+          count(lineStart, pos);
+          return true;
+        }
+      }
+      scanned = limit - pos;
+      if (!fill()) {
+        if (scanned > 0) {
+          // the last line is not terminated
+          lineStart = pos;
+          lineEnd = limit;
+          pos = limit;
+          lineOffset = nextOffset;
+          count(lineStart, pos);
+          return true;
+        }
+        return false;
+      }
+    }
+  }
+
+  private void count(int start, int end) {
+    if (counter == null || nextOffset < 0) {
+      return;
+    }
+    if (decoder != null) {
+      counted += end - start;
+      if (counted > decoder.replacedAt()) {
+        // the bytes of a replacement char are unknown
+        nextOffset = -1;
+        return;
+      }
+    }
+    nextOffset += counter.count(buffer, start, end);
+  }
+
+  /**
+   * Reads more chars into the buffer, keeping the current line and all unread chars.
+   *
+   * @return false at the end of the stream
+   */
+  private boolean fill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    int keep = Math.min(lineStart, pos);
+    if (keep > 0) {
+      System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+      pos -= keep;
+      limit -= keep;
+      lineStart -= keep;
+      lineEnd -= keep;
+    }
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    int read = reader.read(buffer, limit, buffer.length - limit);
+    while (read == 0) {
+      read = reader.read(buffer, limit, buffer.length - limit);
+    }
+    if (decoder != null && !bomCounted && nextOffset >= 0) {
+      // the byte order mark is known once the first chars were decoded
+      nextOffset += decoder.bomLength();
+      bomCounted = true;
+    }
+    if (read < 0) {
+      eof = true;
+      return false;
+    }
+    limit += read;
+    return true;
+  }
+
+  /**
+   * @return the buffer holding the current line
+   */
+  char[] chars() {
+    return buffer;
+  }
+
+  /**
+   * @return the offset of the current line in the buffer
+   */
+  int start() {
+    return lineStart;
+  }
+
+  /**
+   * @return the offset after the current line in the buffer, excluding the line terminator
+   */
+  int end() {
+    return lineEnd;
+  }
+
+  int length() {
+    return lineEnd - lineStart;
+  }
+
+  /**
+   * @return the byte offset of the current line, if offsets are tracked, -1 if it is unknown
+   */
+  long offset() {
+    return lineOffset;
+  }
+
+  /**
+   * @return the byte offset after the current line and as much of its terminator as was read, if offsets are tracked,
+   *         -1 if it is unknown
+   */
+  long nextOffset() {
+    return nextOffset;
+  }
+
+  /**
+   * @return the current line as a new String
+   */
+  String line() {
+    return new String(buffer, lineStart, lineEnd - lineStart);
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
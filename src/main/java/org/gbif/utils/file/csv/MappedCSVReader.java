@@ -0,0 +1,280 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import org.gbif.utils.file.ClosableReportingIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over the rows of a delimited text file like the {@link CSVReader}, but reads the file mapped into memory.
+ * <p/>
+ * Rows are split on the mapped bytes and a column is only decoded when it is accessed, see {@link CSVRow}. Rows that
+ * are read with {@link #next()} have all their columns decoded, rows read with {@link #nextRow()} or limited by a
+ * {@link #setProjection(int...) projection} only the ones needed. The file is mapped in windows, so files larger than
+ * 2GB can be read too.
+ * <p/>
+ * Rows are split like {@link RowTokenizer} does, but quoted columns can contain newlines like with the
+ * {@link ParallelCSVReader}: a row ends at a newline that is not within quotes, \n or \r\n. Empty rows are skipped.
+ * <p/>
+ * The delimiter and quote must be single ASCII characters and the encoding must be ASCII compatible, e.g. UTF-8 or
+ * ISO-8859-1.
+ */
+public class MappedCSVReader implements ClosableReportingIterator<String[]> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedCSVReader.class);
+  public final int headerRows;
+  public final String encoding;
+  public final String delimiter;
+  public final Character quoteChar;
+  public final String[] header;
+  private final FileChannel channel;
+  private final RecordScanner scanner;
+  private final CSVRow row = new CSVRow();
+  // null to keep all columns
+  private int[] projection;
+  private int maxColumns = Integer.MAX_VALUE;
+  // there is a row to return, the current record of the scanner
+  private boolean hasRow;
+  private long rows;
+  private long readRows;
+  // the byte offset of the row returned last
+  private long rowOffset = -1;
+  private boolean rowError;
+  private String errorMessage;
+  private Exception exception;
+
+  /**
+   * @param source the file to read
+   * @param encoding an ASCII compatible encoding
+   * @param delimiter a single ASCII character
+   * @param quotes the optional single ASCII quote character
+   * @param headerRows the number of rows to skip, the first one is the header
+   */
+  public MappedCSVReader(File source, String encoding, String delimiter, Character quotes, Integer headerRows)
+    throws IOException {
+    this(source, encoding, delimiter, quotes, headerRows, RecordScanner.WINDOW_SIZE);
+  }
+
+  /**
+   * @param windowSize the number of bytes mapped at once
+   */
+  MappedCSVReader(File source, String encoding, String delimiter, Character quotes, Integer headerRows,
+                  int windowSize) throws IOException {
+    if (delimiter == null || delimiter.length() != 1) {
+      throw new IllegalArgumentException("The delimiter must be a single character, not " + delimiter);
+    }
+    this.encoding = encoding;
+    this.delimiter = delimiter;
+    this.quoteChar = quotes;
+    this.headerRows = headerRows == null || headerRows < 0 ? 0 : headerRows;
+    channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+    try {
+      scanner = new RecordScanner(channel, delimiter.charAt(0), quotes, Charset.forName(encoding), true, windowSize);
+      scanner.seek(0, RecordScanner.RECORD_START);
+      hasRow = scanner.nextRecord();
+      // parse header row
+      if (hasRow) {
+        scanner.split(row, null, Integer.MAX_VALUE);
+        header = row.toArray();
+      } else {
+        header = null;
+      }
+      // skip initial header rows?
+      for (int i = 0; i < this.headerRows && hasRow; i++) {
+        hasRow = scanner.nextRecord();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Limits the rows returned by {@link #next()} and {@link #nextRow()} to the given columns, in the given order.
+   * Rows that do not have a projected column have null for it.
+   *
+   * @param columns the indices of the columns, none to return all columns again
+   */
+  public void setProjection(int... columns) {
+    int max = -1;
+    if (columns != null) {
+      for (int column : columns) {
+        if (column < 0) {
+          throw new IllegalArgumentException("Column indices can't be negative: " + column);
+        }
+        max = Math.max(max, column);
+      }
+    }
+    this.projection = columns == null || columns.length == 0 ? null : columns.clone();
+    this.maxColumns = projection == null ? Integer.MAX_VALUE : max + 1;
+  }
+
+  /**
+   * Limits the rows returned by {@link #next()} and {@link #nextRow()} to the columns with the given names in the
+   * {@link #getHeader() header}, see {@link #setProjection(int...)}.
+   *
+   * @param columns the names of the columns in the header
+   * @throws IllegalArgumentException if a column is not in the header
+   */
+  public void setProjectionByName(String... columns) {
+    int[] indices = new int[columns.length];
+    List<String> names = header == null ? Collections.<String>emptyList() : Arrays.asList(header);
+    for (int i = 0; i < columns.length; i++) {
+      indices[i] = names.indexOf(columns[i]);
+      if (indices[i] < 0) {
+        throw new IllegalArgumentException("Column " + columns[i] + " is not in the header " + names);
+      }
+    }
+    setProjection(indices);
+  }
+
+  /**
+   * Get the header, or null if none
+   */
+  public String[] getHeader() {
+    return header;
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOG.debug("Exception caught", e);
+    }
+  }
+
+  /**
+   * @return the current row number of the String[] iterator
+   */
+  public long currLineNumber() {
+    return rows;
+  }
+
+  /**
+   * @return the byte offset of the row returned last, -1 before the first row
+   */
+  public long currRowOffset() {
+    return rowOffset;
+  }
+
+  /**
+   * @return the byte offset of the row returned next, or of the end of the file if there is none
+   */
+  public long nextRowOffset() {
+    return hasRow ? scanner.recordOffset() : scanner.offset();
+  }
+
+  /**
+   * @return the number of rows of data that were correctly read from the file
+   */
+  public long getReadRows() {
+    return readRows;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return hasRow;
+  }
+
+  @Override
+  public String[] next() {
+    CSVRow next = nextRow();
+    return next == null ? null : next.toArray();
+  }
+
+  /**
+   * Reads the next row like {@link #next()}, but into a view that is reused for all rows instead of new strings.
+   * Columns are decoded when they are accessed.
+   *
+   * @return the next row, only valid until this method is called again, or null if there is none
+   */
+  public CSVRow nextRow() {
+    if (!hasRow) {
+      return null;
+    }
+    // the mapped bytes of the row stay valid when the scanner moves on
+    scanner.split(row, projection, maxColumns);
+    rowOffset = scanner.recordOffset();
+    advance();
+    return row;
+  }
+
+  /**
+   * Moves to the next non empty row after the current one.
+   */
+  private void advance() {
+    resetReportingIterator();
+    try {
+      hasRow = scanner.nextRecord();
+      rows++;
+      // skip empty rows
+      while (hasRow && scanner.isRecordEmpty()) {
+        hasRow = scanner.nextRecord();
+        rows++;
+      }
+      readRows++;
+    } catch (IOException e) {
+      LOG.debug("Exception caught", e);
+      rowError = true;
+      exception = e;
+      errorMessage = "Exception caught: " + e.getMessage() + "\nRow starting at byte " + scanner.offset();
+      // ensure iteration terminates
+      hasRow = false;
+    }
+  }
+
+  /**
+   * Reset all reporting parameters.
+   */
+  private void resetReportingIterator() {
+    rowError = false;
+    exception = null;
+    errorMessage = null;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Remove not supported");
+  }
+
+  @Override
+  public boolean hasRowError() {
+    return rowError;
+  }
+
+  @Override
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  @Override
+  public Exception getException() {
+    return exception;
+  }
+}
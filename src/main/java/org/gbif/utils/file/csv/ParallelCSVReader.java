@@ -0,0 +1,346 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import org.gbif.utils.file.FileSplitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads the rows of a delimited text file in parallel, as a parallel {@link Stream}.
+ * <p/>
+ * The file is split into chunks of about {@link #setChunkSize(long) chunk size} bytes at the line aligned offsets of
+ * {@link FileSplitter#scanToChunk(File, long)}, and the chunks are read by the threads of the stream. Rows are split
+ * into columns like the {@link CSVReader} does, but quoted columns can contain newlines: a row ends at a newline that
+ * is not within quotes, \n or \r\n. Empty rows are skipped.
+ * <p/>
+ * As a newline at a chunk offset might be within quotes, all chunks are first scanned in parallel for the quotes, see
+ * {@link RecordScanner}. This tells where the first row of every chunk starts, so rows crossing a chunk offset are read
+ * by the chunk they start in. Without a quote character this is not needed.
+ * <p/>
+ * The stream is ordered by the position of the rows in the file. Streams use the common fork join pool, run the
+ * terminal operation within another {@link java.util.concurrent.ForkJoinPool} to use other threads. Close the stream
+ * to close the file, e.g. with try-with-resources.
+ * <p/>
+ * Rows are split on the raw bytes and only their columns are decoded. Chunks are read with positional reads, or
+ * {@link #setMemoryMapped(boolean) mapped into memory}.
+ * <p/>
+ * The delimiter and quote must be single ASCII characters and the encoding must be ASCII compatible, e.g. UTF-8 or
+ * ISO-8859-1.
+ */
+public class ParallelCSVReader {
+
+  public static final long DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  public final File source;
+  public final int headerRows;
+  public final Charset encoding;
+  public final char delimiter;
+  public final Character quoteChar;
+  public final String[] header;
+  // the offset of the first row after the header rows
+  private final long dataOffset;
+  private long chunkSize = DEFAULT_CHUNK_SIZE;
+  private boolean memoryMapped;
+  private int[] projection;
+  private int maxColumns = Integer.MAX_VALUE;
+
+  /**
+   * @param source the file to read
+   * @param encoding an ASCII compatible encoding
+   * @param delimiter a single ASCII character
+   * @param quotes the optional single ASCII quote character
+   * @param headerRows the number of rows to skip, the first one is the header
+   */
+  public ParallelCSVReader(File source, String encoding, String delimiter, Character quotes, Integer headerRows)
+    throws IOException {
+    if (delimiter == null || delimiter.length() != 1) {
+      throw new IllegalArgumentException("The delimiter must be a single character, not " + delimiter);
+    }
+    this.source = source;
+    this.encoding = Charset.forName(encoding);
+    this.delimiter = delimiter.charAt(0);
+    this.quoteChar = quotes;
+    this.headerRows = headerRows == null || headerRows < 0 ? 0 : headerRows;
+
+    try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+      RecordScanner scanner = newScanner(channel);
+      scanner.seek(0, RecordScanner.RECORD_START);
+      if (scanner.nextRecord()) {
+        CSVRow row = new CSVRow();
+        scanner.split(row, null, Integer.MAX_VALUE);
+        header = row.toArray();
+        // skip initial header rows
+        int skipped = 1;
+        while (skipped < this.headerRows && scanner.nextRecord()) {
+          skipped++;
+        }
+        dataOffset = this.headerRows == 0 ? 0 : scanner.offset();
+      } else {
+        header = null;
+        dataOffset = 0;
+      }
+    }
+  }
+
+  private RecordScanner newScanner(FileChannel channel) {
+    return new RecordScanner(channel, delimiter, quoteChar, encoding, memoryMapped, RecordScanner.WINDOW_SIZE);
+  }
+
+  /**
+   * Get the header, or null if none
+   */
+  public String[] getHeader() {
+    return header;
+  }
+
+  /**
+   * @param chunkSize the approximate number of bytes of the chunks read by a single thread
+   */
+  public void setChunkSize(long chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("The chunk size must be positive");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  public long getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @param memoryMapped true to map the chunks into memory instead of reading them into heap buffers
+   */
+  public void setMemoryMapped(boolean memoryMapped) {
+    this.memoryMapped = memoryMapped;
+  }
+
+  public boolean isMemoryMapped() {
+    return memoryMapped;
+  }
+
+  /**
+   * Limits the rows to the given columns, in the given order, see {@link CSVReader#setProjection(int...)}.
+   *
+   * @param columns the indices of the columns, none to return all columns again
+   */
+  public void setProjection(int... columns) {
+    int max = -1;
+    if (columns != null) {
+      for (int column : columns) {
+        if (column < 0) {
+          throw new IllegalArgumentException("Column indices can't be negative: " + column);
+        }
+        max = Math.max(max, column);
+      }
+    }
+    this.projection = columns == null || columns.length == 0 ? null : columns.clone();
+    this.maxColumns = projection == null ? Integer.MAX_VALUE : max + 1;
+  }
+
+  /**
+   * Limits the rows to the columns with the given names in the {@link #getHeader() header}, see
+   * {@link CSVReader#setProjectionByName(String...)}.
+   *
+   * @throws IllegalArgumentException if a column is not in the header
+   */
+  public void setProjectionByName(String... columns) {
+    int[] indices = new int[columns.length];
+    List<String> names = header == null ? Collections.<String>emptyList() : Arrays.asList(header);
+    for (int i = 0; i < columns.length; i++) {
+      indices[i] = names.indexOf(columns[i]);
+      if (indices[i] < 0) {
+        throw new IllegalArgumentException("Column " + columns[i] + " is not in the header " + names);
+      }
+    }
+    setProjection(indices);
+  }
+
+  /**
+   * Splits the file into chunks and scans them for the start of their first row.
+   *
+   * @return a parallel stream of the rows after the header rows, which must be closed
+   */
+  public Stream<String[]> rows() throws IOException {
+    FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      List<Long> offsets = new ArrayList<Long>();
+      offsets.add(dataOffset);
+      for (long offset : FileSplitter.scanToChunk(source, chunkSize)) {
+        if (offset > dataOffset) {
+          offsets.add(offset);
+        }
+      }
+      offsets.add(Math.max(size, dataOffset));
+      long[] chunks = new long[offsets.size()];
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = offsets.get(i);
+      }
+      int[] states = startStates(channel, chunks);
+      return StreamSupport.stream(new ChunkSpliterator(channel, chunks, states, 0, chunks.length - 1), true)
+        .onClose(() -> {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the scanner state at the start of every chunk
+   */
+  private int[] startStates(FileChannel channel, long[] chunks) throws IOException {
+    int[] states = new int[chunks.length - 1];
+    if (quoteChar == null) {
+      // all offsets are at the start of a line, and every line is a row
+      Arrays.fill(states, RecordScanner.RECORD_START);
+      return states;
+    }
+    // the transitions of every chunk, the last one is not needed
+    int[][] transitions;
+    try {
+      transitions = IntStream.range(0, chunks.length - 2).parallel().mapToObj(i -> {
+        try {
+          return newScanner(channel).transitions(chunks[i], chunks[i + 1]);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).toArray(int[][]::new);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    states[0] = RecordScanner.RECORD_START;
+    for (int i = 1; i < states.length; i++) {
+      states[i] = transitions[i - 1][states[i - 1]];
+    }
+    return states;
+  }
+
+  /**
+   * Reads the rows of a range of chunks, splitting off halves of the chunks not started yet.
+   */
+  private class ChunkSpliterator implements Spliterator<String[]> {
+
+    private final FileChannel channel;
+    private final long[] chunks;
+    private final int[] states;
+    private int chunk;
+    private int endChunk;
+    private RecordScanner scanner;
+    private CSVRow row;
+    private boolean started;
+
+    private ChunkSpliterator(FileChannel channel, long[] chunks, int[] states, int chunk, int endChunk) {
+      this.channel = channel;
+      this.chunks = chunks;
+      this.states = states;
+      this.chunk = chunk;
+      this.endChunk = endChunk;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super String[]> action) {
+      try {
+        while (chunk < endChunk) {
+          if (!started) {
+            start();
+          }
+          if (scanner.offset() < chunks[chunk + 1] && scanner.nextRecord()) {
+            if (!scanner.isRecordEmpty()) {
+              scanner.split(row, projection, maxColumns);
+              action.accept(row.toArray());
+              return true;
+            }
+          } else {
+            started = false;
+            chunk++;
+          }
+        }
+        return false;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Moves to the first row starting in the current chunk.
+     */
+    private void start() throws IOException {
+      if (scanner == null) {
+        scanner = newScanner(channel);
+        row = new CSVRow();
+      }
+      scanner.seek(chunks[chunk], states[chunk]);
+      if (!scanner.atRecordStart()) {
+        // the rest of a row started in a previous chunk
+        scanner.nextRecord();
+      }
+      started = true;
+    }
+
+    /**
+     * Splits off the first half of the chunks, including the one being read, as the order requires.
+     */
+    @Override
+    public Spliterator<String[]> trySplit() {
+      if (endChunk - chunk < 2) {
+        return null;
+      }
+      int middle = (chunk + endChunk) >>> 1;
+      ChunkSpliterator prefix = new ChunkSpliterator(channel, chunks, states, chunk, middle);
+      prefix.scanner = scanner;
+      prefix.row = row;
+      prefix.started = started;
+      scanner = null;
+      row = null;
+      started = false;
+      chunk = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      // bytes, not rows
+      return chunks[endChunk] - chunks[chunk];
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL;
+    }
+  }
+}
@@ -0,0 +1,445 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a delimited file from any byte offset of a file channel, and splits them into columns without
+ * decoding them.
+ * <p/>
+ * Records are found on the raw bytes by a small state machine following the quoting rules of {@link RowTokenizer}:
+ * a record ends at a newline that is not within quotes, so quoted columns can contain newlines. A \r before the
+ * newline is not part of the record. Because the state at any offset depends on everything before it, the machine
+ * can be run over a range for all states at once, see {@link #transitions(long, long)}, which lets ranges of a file be
+ * scanned independently and their start states be resolved afterwards.
+ * <p/>
+ * Bytes are either read into a heap buffer with positional reads, which lets scanners share a channel, or accessed in
+ * windows of the file mapped into memory, which are remapped as the scanner moves on. Files larger than 2GB are read
+ * in several windows, a window only needs to hold the current record.
+ * <p/>
+ * The delimiter and quote must be single ASCII characters and the encoding ASCII compatible, so that their bytes
+ * never occur within other characters.
+ * Instances keep state and must not be shared by threads.
+ */
+final class RecordScanner {
+
+  /**
+   * At the start of a record, after a newline ending the previous one.
+   */
+  static final int RECORD_START = 0;
+  private static final int COLUMN_START = 1;
+  private static final int UNQUOTED = 2;
+  private static final int QUOTED = 3;
+  // a quoted column after its closing quote, another quote opens it again
+  private static final int AFTER_QUOTES = 4;
+  private static final int STATES = 5;
+
+  // byte classes
+  private static final byte OTHER = 0;
+  private static final byte DELIMITER = 1;
+  private static final byte QUOTE = 2;
+  private static final byte NEWLINE = 3;
+
+  private static final int[] TRANSITIONS = {
+    // other, delimiter, quote, newline
+    UNQUOTED, COLUMN_START, QUOTED, RECORD_START,     // RECORD_START
+    UNQUOTED, COLUMN_START, QUOTED, RECORD_START,     // COLUMN_START
+    UNQUOTED, COLUMN_START, UNQUOTED, RECORD_START,   // UNQUOTED
+    QUOTED, QUOTED, AFTER_QUOTES, QUOTED,             // QUOTED
+    AFTER_QUOTES, COLUMN_START, QUOTED, RECORD_START  // AFTER_QUOTES
+  };
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The default size of the mapped windows.
+   */
+  static final int WINDOW_SIZE = 256 * 1024 * 1024;
+  private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE - 8;
+
+  private final FileChannel channel;
+  private final byte[] classes = new byte[256];
+  private final char quote;
+  private final BytesDecoder decoder;
+  private final boolean mapped;
+  private int windowSize;
+  // a heap buffer holding the bytes read, or a mapped window of the file
+  private ByteBuffer buffer;
+  // file offset of the first byte of the buffer
+  private long bufferOffset;
+  private int pos;
+  private int limit;
+  private int state;
+  private long recordOffset;
+  private int recordStart;
+  private int recordEnd;
+  // the raw columns of the current record
+  private int[] columnStarts = new int[16];
+  private int[] columnEnds = new int[16];
+
+  /**
+   * Creates a scanner reading into a heap buffer.
+   *
+   * @param channel to read from, not closed by the scanner
+   * @param delimiter the single ASCII character delimiting columns
+   * @param quoteChar the optional single ASCII quote character
+   * @param encoding an ASCII compatible encoding, see {@link #supports(Charset)}
+   */
+  RecordScanner(FileChannel channel, char delimiter, Character quoteChar, Charset encoding) {
+    this(channel, delimiter, quoteChar, encoding, false, 0);
+  }
+
+  /**
+   * @param channel to read from, not closed by the scanner
+   * @param delimiter the single ASCII character delimiting columns
+   * @param quoteChar the optional single ASCII quote character
+   * @param encoding an ASCII compatible encoding, see {@link #supports(Charset)}
+   * @param mapped true to map windows of the file into memory instead of reading it into a heap buffer
+   * @param windowSize the size of the mapped windows, grown for records that do not fit
+   */
+  RecordScanner(FileChannel channel, char delimiter, Character quoteChar, Charset encoding, boolean mapped,
+                int windowSize) {
+    if (delimiter >= 128 || delimiter == '\n') {
+      throw new IllegalArgumentException("The delimiter must be an ASCII character other than \\n");
+    }
+    if (quoteChar != null && (quoteChar >= 128 || quoteChar == '\n' || quoteChar == delimiter)) {
+      throw new IllegalArgumentException("The quote must be an ASCII character other than \\n and the delimiter");
+    }
+    if (!supports(encoding)) {
+      throw new IllegalArgumentException("Scanning raw bytes requires an ASCII compatible encoding, not " + encoding);
+    }
+    if (mapped && windowSize < 1) {
+      throw new IllegalArgumentException("The window size must be positive");
+    }
+    this.channel = channel;
+    classes[delimiter] = DELIMITER;
+    if (quoteChar != null) {
+      classes[quoteChar] = QUOTE;
+    }
+    classes['\n'] = NEWLINE;
+    this.quote = quoteChar == null ? 0 : quoteChar;
+    this.decoder = new BytesDecoder(encoding);
+    this.mapped = mapped;
+    this.windowSize = windowSize;
+    this.buffer = mapped ? ByteBuffer.allocate(0) : ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /**
+   * Newlines, delimiters and quotes can be found on the raw bytes for UTF-8 and all single byte encodings that are
+   * ASCII compatible. Other multibyte encodings may contain those bytes within characters.
+   */
+  static boolean supports(Charset encoding) {
+    if (StandardCharsets.UTF_8.equals(encoding)) {
+      return true;
+    }
+    if (!encoding.canEncode() || encoding.newEncoder().maxBytesPerChar() != 1) {
+      return false;
+    }
+    byte[] ascii = new byte[128];
+    for (int i = 0; i < ascii.length; i++) {
+      ascii[i] = (byte) i;
+    }
+    return Arrays.equals(ascii, new String(ascii, StandardCharsets.US_ASCII).getBytes(encoding));
+  }
+
+  /**
+   * Continues scanning at the given offset.
+   *
+   * @param state the state at the offset, {@link #RECORD_START} at the start of the file
+   */
+  void seek(long offset, int state) {
+    this.bufferOffset = offset;
+    this.pos = 0;
+    this.limit = 0;
+    this.state = state;
+  }
+
+  /**
+   * @return true if the scanner is at the start of a record
+   */
+  boolean atRecordStart() {
+    return state == RECORD_START;
+  }
+
+  /**
+   * @return the file offset the next record starts at, if the scanner is at the start of a record
+   */
+  long offset() {
+    return bufferOffset + pos;
+  }
+
+  /**
+   * Reads up to the end of the current record, which can be empty. If the scanner is not at the start of a record,
+   * this reads the rest of one.
+   *
+   * @return false at the end of the file
+   */
+  boolean nextRecord() throws IOException {
+    int start = pos;
+    while (true) {
+      if (pos == limit) {
+        long startOffset = bufferOffset + start;
+        boolean filled = fill(start);
+        start = (int) (startOffset - bufferOffset);
+        if (!filled) {
+          if (start == pos) {
+            return false;
+          }
+          // the last record is not terminated
+          setRecord(start, pos);
+          state = RECORD_START;
+          return true;
+        }
+      }
+      // scan the buffered bytes with local copies of the fields
+      ByteBuffer bytes = buffer;
+      byte[] byteClasses = classes;
+      int p = pos;
+      int s = state;
+      while (p < limit) {
+        p = skip(bytes, byteClasses, p, limit, s);
+        if (p == limit) {
+          break;
+        }
+        s = TRANSITIONS[s * 4 + byteClasses[bytes.get(p++) & 0xff]];
+        if (s == RECORD_START) {
+          break;
+        }
+      }
+      pos = p;
+      state = s;
+      if (s == RECORD_START) {
+        setRecord(start, p - 1);
+        return true;
+      }
+    }
+  }
+
+  private void setRecord(int start, int end) {
+    recordOffset = bufferOffset + start;
+    recordStart = start;
+    recordEnd = end > start && buffer.get(end - 1) == '\r' ? end - 1 : end;
+  }
+
+  /**
+   * Keeps the buffer from the given index on and makes more bytes after it available.
+   *
+   * @return false at the end of the file
+   */
+  private boolean fill(int keepFrom) throws IOException {
+    int kept = limit - keepFrom;
+    long from = bufferOffset + keepFrom;
+    if (mapped) {
+      long available = channel.size() - from;
+      if (available <= kept) {
+        return false;
+      }
+      if (kept >= windowSize) {
+        if (windowSize == MAX_WINDOW_SIZE) {
+          throw new IOException("Record at offset " + from + " is larger than " + MAX_WINDOW_SIZE + " bytes");
+        }
+        windowSize = (int) Math.min(MAX_WINDOW_SIZE, windowSize * 2L);
+      }
+      int size = (int) Math.min(windowSize, available);
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, size);
+      bufferOffset = from;
+      pos -= keepFrom;
+      limit = size;
+      return true;
+    }
+
+    byte[] bytes = buffer.array();
+    if (kept == bytes.length) {
+      bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      buffer = ByteBuffer.wrap(bytes);
+    } else if (keepFrom > 0) {
+      System.arraycopy(bytes, keepFrom, bytes, 0, kept);
+    }
+    bufferOffset = from;
+    pos -= keepFrom;
+    limit = kept;
+    int read = channel.read(ByteBuffer.wrap(bytes, limit, bytes.length - limit), bufferOffset + limit);
+    if (read <= 0) {
+      return false;
+    }
+    limit += read;
+    return true;
+  }
+
+  /**
+   * @return the file offset of the current record
+   */
+  long recordOffset() {
+    return recordOffset;
+  }
+
+  /**
+   * @return true if the current record has no bytes
+   */
+  boolean isRecordEmpty() {
+    return recordStart == recordEnd;
+  }
+
+  /**
+   * Splits the current record into columns, which the row decodes when they are accessed.
+   * With a mapped file the columns stay readable after the scanner moved on, with a heap buffer only until then.
+   *
+   * @param row to split into
+   * @param projection the indices of the columns to keep in that order, or null to keep all columns
+   * @param maxColumns the number of columns to split the record into at most
+   */
+  void split(CSVRow row, int[] projection, int maxColumns) {
+    int count = 0;
+    if (recordStart < recordEnd) {
+      ByteBuffer bytes = buffer;
+      int start = recordStart;
+      int p = recordStart;
+      int s = COLUMN_START;
+      while (p < recordEnd && count < maxColumns) {
+        p = skip(bytes, classes, p, recordEnd, s);
+        if (p == recordEnd) {
+          break;
+        }
+        s = TRANSITIONS[s * 4 + classes[bytes.get(p++) & 0xff]];
+        // only a delimiter outside of quotes leads to the start of a column
+        if (s == COLUMN_START) {
+          count = addColumn(count, start, p - 1);
+          start = p;
+        }
+      }
+      if (count < maxColumns) {
+        count = addColumn(count, start, recordEnd);
+      }
+    }
+
+    row.reset(buffer, decoder, quote);
+    if (projection == null || count == 0) {
+      for (int i = 0; i < count; i++) {
+        row.addColumn(columnStarts[i], columnEnds[i], isQuoted(columnStarts[i], columnEnds[i]));
+      }
+    } else {
+      for (int column : projection) {
+        if (column < count) {
+          row.addColumn(columnStarts[column], columnEnds[column], isQuoted(columnStarts[column], columnEnds[column]));
+        } else {
+          row.addMissingColumn();
+        }
+      }
+    }
+  }
+
+  private int addColumn(int count, int start, int end) {
+    if (count == columnStarts.length) {
+      columnStarts = Arrays.copyOf(columnStarts, count * 2);
+      columnEnds = Arrays.copyOf(columnEnds, count * 2);
+    }
+    columnStarts[count] = start;
+    columnEnds[count] = end;
+    return count + 1;
+  }
+
+  private boolean isQuoted(int start, int end) {
+    return start < end && classes[buffer.get(start) & 0xff] == QUOTE;
+  }
+
+  /**
+   * Runs the state machine over a range of the file for all states it can start in.
+   *
+   * @return the state at the end of the range, indexed by the state at its start
+   */
+  int[] transitions(long from, long to) throws IOException {
+    int[] states = new int[STATES];
+    for (int s = 0; s < STATES; s++) {
+      states[s] = s;
+    }
+    // only the distinct states are run, as most of them soon end up in the same
+    int[] distinct = new int[STATES];
+    int[] index = new int[STATES];
+    seek(from, RECORD_START);
+    while (offset() < to && fill(pos)) {
+      int end = (int) Math.min(limit, to - bufferOffset);
+      int count = 0;
+      for (int s = 0; s < STATES; s++) {
+        int i = 0;
+        while (i < count && distinct[i] != states[s]) {
+          i++;
+        }
+        if (i == count) {
+          distinct[count++] = states[s];
+        }
+        index[s] = i;
+      }
+      if (count == 1) {
+        distinct[0] = run(distinct[0], pos, end);
+      } else {
+        ByteBuffer bytes = buffer;
+        byte[] byteClasses = classes;
+        for (int b = pos; b < end; b++) {
+          int c = byteClasses[bytes.get(b) & 0xff];
+          for (int i = 0; i < count; i++) {
+            distinct[i] = TRANSITIONS[distinct[i] * 4 + c];
+          }
+        }
+      }
+      for (int s = 0; s < STATES; s++) {
+        states[s] = distinct[index[s]];
+      }
+      pos = end;
+    }
+    return states;
+  }
+
+  /**
+   * @return the state after the bytes of the buffer from start to end
+   */
+  private int run(int state, int start, int end) {
+    ByteBuffer bytes = buffer;
+    int b = start;
+    while (b < end) {
+      b = skip(bytes, classes, b, end, state);
+      if (b < end) {
+        state = TRANSITIONS[state * 4 + classes[bytes.get(b++) & 0xff]];
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Skips the bytes that keep a state unchanged, without looking up every transition.
+   *
+   * @return the index of the first byte that can change the state, or end
+   */
+  private static int skip(ByteBuffer bytes, byte[] classes, int from, int end, int state) {
+    int i = from;
+    if (state == UNQUOTED || state == AFTER_QUOTES) {
+      while (i < end && classes[bytes.get(i) & 0xff] == OTHER) {
+        i++;
+      }
+    } else if (state == QUOTED) {
+      while (i < end && classes[bytes.get(i) & 0xff] != QUOTE) {
+        i++;
+      }
+    }
+    return i;
+  }
+}
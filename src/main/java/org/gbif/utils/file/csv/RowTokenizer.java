@@ -0,0 +1,209 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+/**
+ * Splits a row held in a char buffer into its columns, scanning the buffer directly.
+ * <p/>
+ * The result is the one of a commons-lang {@code StrTokenizer} configured with the delimiter string, the quote
+ * character and keeping empty tokens as empty strings, which {@link CSVReader} used before:
+ * <ul>
+ * <li>A column is quoted only if it starts with the quote character. Delimiters within quotes do not separate
+ * columns, two quote characters within quotes are an escaped quote. After the closing quote the column continues up
+ * to the next delimiter, and another quote character opens quotes again.</li>
+ * <li>Quote characters in columns that do not start with one are regular characters.</li>
+ * <li>A delimiter at the end of the row is followed by an empty column, an empty row has no columns.</li>
+ * </ul>
+ * <p/>
+ * Rows are split in place in the buffer of a {@link CSVRow}, {@link #tokenize(char[], int, int)} uses one of its own.
+ * With a projection the row is only scanned up to the last projected column, and only projected columns are kept.
+ * Instances keep state and must not be shared by threads.
+ */
+final class RowTokenizer {
+
+  private static final String[] NO_COLUMNS = new String[0];
+
+  // empty if rows are not split
+  private final char[] delimiter;
+  private final boolean quoting;
+  private final char quote;
+  private final CSVRow tokenized = new CSVRow();
+  // null to keep all columns
+  private int[] projection;
+  private int maxColumns = Integer.MAX_VALUE;
+
+  /**
+   * @param delimiter the delimiter between columns, null or empty to not split rows
+   * @param quoteChar the optional quote character
+   */
+  RowTokenizer(String delimiter, Character quoteChar) {
+    this.delimiter = delimiter == null ? new char[0] : delimiter.toCharArray();
+    this.quoting = quoteChar != null;
+    this.quote = quoteChar == null ? 0 : quoteChar;
+  }
+
+  /**
+   * @param projection the indices of the columns to keep in that order, or null to keep all columns
+   */
+  void setProjection(int[] projection) {
+    int max = -1;
+    if (projection != null) {
+      for (int column : projection) {
+        if (column < 0) {
+          throw new IllegalArgumentException("Column indices can't be negative: " + column);
+        }
+        max = Math.max(max, column);
+      }
+    }
+    this.projection = projection == null ? null : projection.clone();
+    this.maxColumns = projection == null ? Integer.MAX_VALUE : max + 1;
+  }
+
+  /**
+   * @return the columns of the row held in chars from start to end
+   */
+  String[] tokenize(char[] chars, int start, int end) {
+    split(chars, start, end, tokenized);
+    return tokenized.size() == 0 ? NO_COLUMNS : tokenized.toArray();
+  }
+
+  /**
+   * Copies the row held in chars from start to end into the given row view and splits it there.
+   */
+  void split(char[] chars, int start, int end, CSVRow row) {
+    char[] buffer = row.reset(chars, start, end);
+    int length = end - start;
+    int pos = 0;
+    while (pos >= 0 && pos < length && row.size() < maxColumns) {
+      pos = splitColumn(buffer, pos, length, row);
+      if (pos >= length) {
+        // the row ends with a delimiter
+        row.addColumn(length, length);
+      }
+    }
+    if (projection != null && length > 0) {
+      row.project(projection);
+    }
+  }
+
+  /**
+   * Splits off the column starting at pos.
+   *
+   * @return the offset after the delimiter ending the column, or -1 at the end of the row
+   */
+  private int splitColumn(char[] chars, int pos, int end, CSVRow row) {
+    if (quoting && chars[pos] == quote && !isDelimiterAt(chars, pos, end)) {
+      return splitQuotedColumn(chars, pos + 1, end, row);
+    }
+    int delimiterAt = indexOfDelimiter(chars, pos, end);
+    if (delimiterAt < 0) {
+      row.addColumn(pos, end);
+      return -1;
+    }
+    row.addColumn(pos, delimiterAt);
+    return delimiterAt + delimiter.length;
+  }
+
+  /**
+   * Splits off a column after its opening quote. The quotes are removed by moving the content to the left, which
+   * never overwrites characters not read yet.
+   */
+  private int splitQuotedColumn(char[] chars, int pos, int end, CSVRow row) {
+    int start = pos;
+    int write = pos;
+    boolean inQuotes = true;
+    while (pos < end) {
+      char c = chars[pos];
+      if (inQuotes) {
+        if (c == quote) {
+          if (pos + 1 < end && chars[pos + 1] == quote) {
+            // an escaped quote
+            chars[write++] = quote;
+            pos += 2;
+          } else {
+            inQuotes = false;
+            pos++;
+          }
+        } else {
+          chars[write++] = c;
+          pos++;
+        }
+      } else if (isDelimiterAt(chars, pos, end)) {
+        row.addColumn(start, write);
+        return pos + delimiter.length;
+      } else if (c == quote) {
+        inQuotes = true;
+        pos++;
+      } else {
+        chars[write++] = c;
+        pos++;
+      }
+    }
+    row.addColumn(start, write);
+    return -1;
+  }
+
+  /**
+   * Removes the quotes from a quoted column already split off, held in chars from after its opening quote to end.
+   * The content is moved to the left like in {@link #splitQuotedColumn(char[], int, int, CSVRow)}.
+   *
+   * @return the end of the column content, which starts at start
+   */
+  static int unquote(char[] chars, int start, int end, char quote) {
+    int pos = start;
+    int write = start;
+    boolean inQuotes = true;
+    while (pos < end) {
+      char c = chars[pos++];
+      if (c != quote) {
+        chars[write++] = c;
+      } else if (inQuotes && pos < end && chars[pos] == quote) {
+        // an escaped quote
+        chars[write++] = quote;
+        pos++;
+      } else {
+        inQuotes = !inQuotes;
+      }
+    }
+    return write;
+  }
+
+  private int indexOfDelimiter(char[] chars, int pos, int end) {
+    if (delimiter.length == 0) {
+      return -1;
+    }
+    char first = delimiter[0];
+    for (int i = pos; i < end; i++) {
+      if (chars[i] == first && isDelimiterAt(chars, i, end)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean isDelimiterAt(char[] chars, int pos, int end) {
+    if (delimiter.length == 0 || pos + delimiter.length > end) {
+      return false;
+    }
+    for (int i = 0; i < delimiter.length; i++) {
+      if (chars[pos + i] != delimiter[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,224 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.tabular;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Frequencies of the potential delimiters in the lines of a sample, counted in a single pass over the chars of every
+ * line into a primitive array.
+ * <p/>
+ * The delimiter is chosen by three statistics, see {@link TabularFileMetadataExtractor#getDelimiterChar(List)}:
+ * <ul>
+ * <li>the stability: the number of distinct frequencies of a delimiter across the lines, the fewer the better</li>
+ * <li>the overall usage: the sum of the frequencies of a delimiter</li>
+ * <li>the usage per line: the number of lines a delimiter is the most frequent one in</li>
+ * </ul>
+ * Each statistic selects the set of candidates with its best value, held as a bit set of candidate indices.
+ */
+final class DelimiterFrequencies {
+
+  private static final int NOT_A_CANDIDATE = -1;
+
+  private final char[] candidates;
+  // the index of the candidate of every ASCII char
+  private final int[] candidateIndex = new int[128];
+  // the frequency of every candidate in every line, line by line
+  private int[] frequencies = new int[64];
+  private int lines;
+
+  /**
+   * @param candidates the potential delimiters, all ASCII
+   */
+  DelimiterFrequencies(char[] candidates) {
+    this.candidates = candidates.clone();
+    Arrays.fill(candidateIndex, NOT_A_CANDIDATE);
+    for (int i = 0; i < candidates.length; i++) {
+      candidateIndex[candidates[i]] = i;
+    }
+  }
+
+  /**
+   * Counts the candidates of the next line.
+   */
+  void addLine(CharSequence line) {
+    int offset = lines * candidates.length;
+    if (offset + candidates.length > frequencies.length) {
+      frequencies = Arrays.copyOf(frequencies, Math.max(frequencies.length * 2, offset + candidates.length));
+    }
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c < 128 && candidateIndex[c] != NOT_A_CANDIDATE) {
+        frequencies[offset + candidateIndex[c]]++;
+      }
+    }
+    lines++;
+  }
+
+  void addLines(List<String> sample) {
+    for (String line : sample) {
+      addLine(line);
+    }
+  }
+
+  int lines() {
+    return lines;
+  }
+
+  char candidate(int index) {
+    return candidates[index];
+  }
+
+  int candidates() {
+    return candidates.length;
+  }
+
+  /**
+   * @return the frequency of a candidate in a line
+   */
+  int frequency(int line, int candidate) {
+    return frequencies[line * candidates.length + candidate];
+  }
+
+  /**
+   * @return the number of distinct frequencies of every candidate across the lines
+   */
+  int[] distinctFrequencies() {
+    int[] distinct = new int[candidates.length];
+    int[] column = new int[lines];
+    for (int d = 0; d < candidates.length; d++) {
+      for (int l = 0; l < lines; l++) {
+        column[l] = frequency(l, d);
+      }
+      Arrays.sort(column);
+      for (int l = 0; l < lines; l++) {
+        if (l == 0 || column[l] != column[l - 1]) {
+          distinct[d]++;
+        }
+      }
+    }
+    return distinct;
+  }
+
+  /**
+   * @return the number of lines in which a candidate has its most common frequency
+   */
+  int modalFrequencyLines(int candidate) {
+    int[] column = new int[lines];
+    for (int l = 0; l < lines; l++) {
+      column[l] = frequency(l, candidate);
+    }
+    Arrays.sort(column);
+    int modal = 0;
+    int run = 0;
+    for (int l = 0; l < lines; l++) {
+      run = l > 0 && column[l] == column[l - 1] ? run + 1 : 1;
+      modal = Math.max(modal, run);
+    }
+    return modal;
+  }
+
+  /**
+   * @return the sum of the frequencies of every candidate
+   */
+  int[] frequencySums() {
+    int[] sums = new int[candidates.length];
+    for (int l = 0; l < lines; l++) {
+      for (int d = 0; d < candidates.length; d++) {
+        sums[d] += frequency(l, d);
+      }
+    }
+    return sums;
+  }
+
+  /**
+   * @return the number of lines every candidate is the most frequent one in, the first one on ties
+   */
+  int[] highestFrequencyLines() {
+    int[] counts = new int[candidates.length];
+    for (int l = 0; l < lines; l++) {
+      int highest = 0;
+      int highestCandidate = NOT_A_CANDIDATE;
+      for (int d = 0; d < candidates.length; d++) {
+        if (frequency(l, d) > highest) {
+          highest = frequency(l, d);
+          highestCandidate = d;
+        }
+      }
+      if (highestCandidate != NOT_A_CANDIDATE) {
+        counts[highestCandidate]++;
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * @return the candidates used in the sample with the fewest distinct frequencies
+   */
+  int mostStable() {
+    int[] distinct = distinctFrequencies();
+    int[] sums = frequencySums();
+    int best = Integer.MAX_VALUE;
+    int selected = 0;
+    for (int d = 0; d < candidates.length; d++) {
+      // ignore candidates never seen
+      if (sums[d] > 0) {
+        if (distinct[d] < best) {
+          best = distinct[d];
+          selected = 0;
+        }
+        if (distinct[d] == best) {
+          selected |= 1 << d;
+        }
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * @return the candidates with the highest sum of frequencies
+   */
+  int mostFrequent() {
+    return highest(frequencySums());
+  }
+
+  /**
+   * @return the candidates that are the most frequent one in the most lines
+   */
+  int mostFrequentPerLine() {
+    return highest(highestFrequencyLines());
+  }
+
+  /**
+   * @return the candidates with the highest positive value
+   */
+  private static int highest(int[] values) {
+    int best = 0;
+    int selected = 0;
+    for (int d = 0; d < values.length; d++) {
+      if (values[d] > best) {
+        best = values[d];
+        selected = 0;
+      }
+      if (values[d] == best && best > 0) {
+        selected |= 1 << d;
+      }
+    }
+    return selected;
+  }
+}
@@ -0,0 +1,88 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.tabular;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Internal {@link TabularDataFileReader} returning only some columns of the rows of another reader, in the order
+ * given. Use {@link TabularFiles} to get instances.
+ */
+class ProjectedTabularDataFileReader implements TabularDataFileReader<List<String>> {
+
+  private final TabularDataFileReader<List<String>> reader;
+  private final int[] columns;
+
+  /**
+   * @param reader to read the rows from
+   * @param columns the indices of the columns to return
+   */
+  ProjectedTabularDataFileReader(TabularDataFileReader<List<String>> reader, int[] columns) {
+    for (int column : columns) {
+      if (column < 0) {
+        throw new IllegalArgumentException("Column indices can't be negative: " + column);
+      }
+    }
+    this.reader = reader;
+    this.columns = columns.clone();
+  }
+
+  /**
+   * @return the projected columns of the header line, or null
+   */
+  @Override
+  public List<String> getHeaderLine() throws IOException {
+    return project(reader.getHeaderLine());
+  }
+
+  /**
+   * @return the projected columns of the next line, null for columns the line does not have
+   */
+  @Override
+  public List<String> read() throws IOException, ParseException {
+    return project(reader.read());
+  }
+
+  @Override
+  public long getLastRecordLineNumber() {
+    return reader.getLastRecordLineNumber();
+  }
+
+  @Override
+  public long getLastRecordNumber() {
+    return reader.getLastRecordNumber();
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  private List<String> project(List<String> row) {
+    if (row == null) {
+      return null;
+    }
+    List<String> projected = new ArrayList<>(columns.length);
+    for (int column : columns) {
+      projected.add(column < row.size() ? row.get(column) : null);
+    }
+    return projected;
+  }
+}
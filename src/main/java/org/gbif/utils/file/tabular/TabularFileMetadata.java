@@ -26,6 +26,7 @@ public class TabularFileMetadata {
   private Charset encoding;
   private Character delimiter;
   private Character quotedBy;
+  private double confidence;
 
   public Charset getEncoding() {
     return encoding;
@@ -50,4 +51,16 @@ public class TabularFileMetadata {
   public void setQuotedBy(Character quotedBy) {
     this.quotedBy = quotedBy;
   }
+
+  /**
+   * @return how sure the extraction is about the metadata, between 0 (nothing detected) and 1 (the sample was
+   * unambiguous)
+   */
+  public double getConfidence() {
+    return confidence;
+  }
+
+  public void setConfidence(double confidence) {
+    this.confidence = confidence;
+  }
 }
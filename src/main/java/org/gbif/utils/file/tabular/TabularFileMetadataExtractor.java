@@ -16,69 +16,66 @@
 
 package org.gbif.utils.file.tabular;
 
-import org.gbif.utils.file.CharsetDetection;
+import org.gbif.utils.file.CharsetDetector;
+import org.gbif.utils.file.FileUtils;
 import org.gbif.utils.file.UnknownCharsetException;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
-import java.util.function.BiFunction;
-import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Sets;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static java.util.Collections.reverseOrder;
-import static java.util.stream.Collectors.counting;
-import static java.util.stream.Collectors.toSet;
-
 /**
  * Utility class to extract metadata {@link TabularFileMetadata} from a tabular file.
  */
 public class TabularFileMetadataExtractor {
 
   private static final Logger LOG = LoggerFactory.getLogger(TabularFileMetadataExtractor.class);
-  private static final int MAX_SAMPLE_SIZE = 15;
 
+  // the sample starts with this many lines and doubles while the lines are ambiguous
+  private static final int MIN_SAMPLE_SIZE = 15;
+  private static final int MAX_SAMPLE_SIZE = 1000;
+
+  // the bytes used for the charset detection start with this length and double while the bytes are ambiguous
+  private static final int MIN_CHARSET_DETECTION_BUFFER_LENGTH = 16 * 1024;
   // This needs to be large enough to stumble upon a non-ASCII character.
   private static final int CHARSET_DETECTION_BUFFER_LENGTH = 1024*1024;
 
+  // the blocks of every thread the bytes for the charset detection are read into
+  private static final ThreadLocal<ByteBuffer> BLOCKS = new ThreadLocal<>();
+
+  // the confidence in a charset from which more bytes are not read
+  private static final double DECISIVE_CHARSET_CONFIDENCE = 0.9;
+
   private TabularFileMetadataExtractor() {
   }
 
-  private static final Character[] POTENTIAL_DELIMITER_CHAR = {',', '\t', ';', '|'};
-  private static final Character[] POTENTIAL_QUOTES_CHAR = {'"', '\''};
-
-  private static final Predicate<LineDelimiterStats> CONTAINS_FREQUENCY = lineStats -> lineStats.getFrequency() > 0;
-  private static final Comparator<Map.Entry<Character, Long>> BY_VALUE_LONG_DESC = Comparator.comparing(Map.Entry::getValue, reverseOrder());
-  private static final BiFunction<Character, Character, Pattern> COMPILE_QUOTE_PATTERN_FCT = (delimiter, quoteChar)
-          -> Pattern.compile("[" + delimiter + "][ ]*[" + quoteChar + "][ ]*[^" + delimiter + "]");
+  static final char[] POTENTIAL_DELIMITERS = {',', '\t', ';', '|'};
+  private static final char[] POTENTIAL_QUOTES = {'"', '\''};
 
   /**
-   * Extract metadata from a tabular file using a sample (defined by {@link #MAX_SAMPLE_SIZE}) of the file.
+   * Extract metadata from a tabular file using a sample of the file.
    * The extraction process is based on the frequency of character in the sample using 3 different approaches.
    * The method will not return any default value if no delimiter and/or quote character can be found in the sample.
    * The caller should decide which default values should be used to read the file.
+   * <p/>
+   * The sample is adaptive: the charset is detected on the first {@link #MIN_CHARSET_DETECTION_BUFFER_LENGTH} bytes
+   * and the delimiter and quote on the first {@link #MIN_SAMPLE_SIZE} lines. Both are only grown, up to
+   * {@link #CHARSET_DETECTION_BUFFER_LENGTH} bytes and {@link #MAX_SAMPLE_SIZE} lines, while the sample is ambiguous.
+   * The confidence of the result is given by {@link TabularFileMetadata#getConfidence()}.
    *
    * @param filePath a {@link Path} pointing to a file (not a folder).
    * @return new {@link TabularFileMetadata}, never null (but the content can be null).
@@ -90,32 +87,84 @@ public class TabularFileMetadataExtractor {
     Preconditions.checkArgument(!Files.isDirectory(filePath), "filePath should point to a file, not a directory");
 
     Charset encoding;
-    try {
-      encoding = CharsetDetection.detectEncoding(filePath.toFile(), CHARSET_DETECTION_BUFFER_LENGTH);
-      if (encoding == null) {
-        throw new UnknownCharsetException("Unable to detect the file's character encoding");
+    double charsetConfidence;
+    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+      CharsetDetector detector = new CharsetDetector();
+      ByteBuffer block = FileUtils.threadLocalBuffer(BLOCKS, MIN_CHARSET_DETECTION_BUFFER_LENGTH, false);
+      long limit = MIN_CHARSET_DETECTION_BUFFER_LENGTH;
+      boolean complete = false;
+      while (true) {
+        while (!complete && detector.getLength() < limit) {
+          block.clear();
+          block.limit((int) Math.min(MIN_CHARSET_DETECTION_BUFFER_LENGTH, limit - detector.getLength()));
+          if (channel.read(block) < 0) {
+            complete = true;
+          } else {
+            block.flip();
+            detector.update(block);
+          }
+        }
+        encoding = detector.getCharset();
+        charsetConfidence = charsetConfidence(detector, complete);
+        if (complete || charsetConfidence >= DECISIVE_CHARSET_CONFIDENCE || limit >= CHARSET_DETECTION_BUFFER_LENGTH) {
+          break;
+        }
+        limit = Math.min(limit * 2, CHARSET_DETECTION_BUFFER_LENGTH);
       }
     } catch (IOException e) {
       throw new UnknownCharsetException(e);
     }
+    LOG.debug("Detected {} with confidence {}", encoding, charsetConfidence);
 
-    // open a first stream to read a sample of the file
+    // open a second stream to read a sample of the file
     List<String> lines = new ArrayList<>();
+    DelimiterFrequencies frequencies = new DelimiterFrequencies(POTENTIAL_DELIMITERS);
+    TabularFileMetadata tabularFileMetadata;
     try (BufferedReader bf = Files.newBufferedReader(filePath, encoding)) {
-      String line;
-      do {
-        line = bf.readLine();
-        if(line != null) {
+      int sampleSize = MIN_SAMPLE_SIZE;
+      String line = bf.readLine();
+      while (true) {
+        while (line != null && lines.size() < sampleSize) {
           lines.add(line);
+          frequencies.addLine(line);
+          line = bf.readLine();
+        }
+        tabularFileMetadata = extractTabularMetadata(lines, frequencies);
+        if (line == null || sampleSize >= MAX_SAMPLE_SIZE || isDecisive(lines, frequencies, tabularFileMetadata)) {
+          break;
         }
+        sampleSize = Math.min(sampleSize * 2, MAX_SAMPLE_SIZE);
       }
-      while(line != null && lines.size() < MAX_SAMPLE_SIZE);
     }
-    TabularFileMetadata tabularFileMetadata = extractTabularMetadata(lines);
+    LOG.debug("Sampled {} lines", lines.size());
     tabularFileMetadata.setEncoding(encoding);
+    tabularFileMetadata.setConfidence(Math.min(tabularFileMetadata.getConfidence(), charsetConfidence));
     return tabularFileMetadata;
   }
 
+  /**
+   * The confidence in the charset detected on the start of a file.
+   * <p/>
+   * It is certain if the whole file was read, if it starts with a byte order mark or if it was detected as UTF-16.
+   * Otherwise only the non-ASCII bytes tell the encodings apart, the confidence is {@code nonAscii / (nonAscii + 1)}.
+   * Without any, the start of the file is valid in all candidate encodings and the confidence is below 0.5, growing
+   * with the number of bytes read.
+   *
+   * @param detector that was given the start of the file
+   * @param complete if the detector was given the whole file
+   * @return the confidence between 0 and 1
+   */
+  static double charsetConfidence(CharsetDetector detector, boolean complete) {
+    if (complete || detector.isCertain() || detector.getCharset().name().startsWith("UTF-16")) {
+      return 1;
+    }
+    long nonAscii = detector.getNonAsciiCount();
+    if (nonAscii == 0) {
+      return 0.5 * Math.min(detector.getLength(), CHARSET_DETECTION_BUFFER_LENGTH) / CHARSET_DETECTION_BUFFER_LENGTH;
+    }
+    return nonAscii / (nonAscii + 1d);
+  }
+
   /**
    * Tries to extract the {@link TabularFileMetadata} from a sample of lines of a tabular file.
    *
@@ -124,44 +173,97 @@ public class TabularFileMetadataExtractor {
    */
   static TabularFileMetadata extractTabularMetadata(final List<String> sample) {
     Objects.requireNonNull(sample, "sample shall be provided");
+    DelimiterFrequencies frequencies = new DelimiterFrequencies(POTENTIAL_DELIMITERS);
+    frequencies.addLines(sample);
+    return extractTabularMetadata(sample, frequencies);
+  }
+
+  /**
+   * Extracts the {@link TabularFileMetadata} of a sample of lines with their counted delimiter frequencies.
+   * <p/>
+   * The confidence is the smaller of the share of lines in which the delimiter has its most common frequency and the
+   * share of the lines using a quote character that use the detected one.
+   */
+  private static TabularFileMetadata extractTabularMetadata(List<String> sample, DelimiterFrequencies frequencies) {
     TabularFileMetadata tabularFileMetadata = new TabularFileMetadata();
 
-    Optional<Character> delimiterFound = getDelimiterChar(sample);
+    Optional<Character> delimiterFound = getDelimiterChar(frequencies);
     final Character delimiter = delimiterFound.orElse(null);
     if(delimiter == null) {
       return tabularFileMetadata;
     }
 
-    Optional<Character> quoteFound = getHighestCountOf(sample, line -> getQuoteCharWithHighestCount(line, delimiter));
-    final Character quote = quoteFound.orElse(null);
-
     tabularFileMetadata.setDelimiter(delimiter);
-    tabularFileMetadata.setQuotedBy(quote);
+    int[] quoteLines = countQuoteLines(sample, delimiter);
+    int quote = indexOfHighest(quoteLines);
+    int linesWithQuotes = 0;
+    for (int count : quoteLines) {
+      linesWithQuotes += count;
+    }
+    double quoteConfidence = 1;
+    if (quote >= 0) {
+      tabularFileMetadata.setQuotedBy(POTENTIAL_QUOTES[quote]);
+      quoteConfidence = quoteLines[quote] / (double) linesWithQuotes;
+    }
+
+    double delimiterConfidence =
+      frequencies.modalFrequencyLines(indexOf(POTENTIAL_DELIMITERS, delimiter)) / (double) frequencies.lines();
+    tabularFileMetadata.setConfidence(Math.min(delimiterConfidence, quoteConfidence));
 
     return tabularFileMetadata;
   }
 
   /**
-   * Extract a character from a line using the given function.
-   * Return the character with the highest counts.
-   *
-   * @param sample
-   * @param characterExtractor function to apply on each line to extract a character
-   *
-   * @return
+   * A sample is decisive, and not worth growing, if all three statistics select the delimiter, the delimiter has the
+   * same frequency in all lines and only one quote character is used.
+   */
+  private static boolean isDecisive(List<String> sample, DelimiterFrequencies frequencies,
+                                    TabularFileMetadata tabularFileMetadata) {
+    if (tabularFileMetadata.getDelimiter() == null) {
+      return false;
+    }
+    int delimiter = 1 << indexOf(POTENTIAL_DELIMITERS, tabularFileMetadata.getDelimiter());
+    return frequencies.mostStable() == delimiter
+      && frequencies.mostFrequent() == delimiter
+      && frequencies.mostFrequentPerLine() == delimiter
+      // the delimiter has a single frequency and only one quote character is used
+      && tabularFileMetadata.getConfidence() == 1;
+  }
+
+  private static int indexOf(char[] chars, char c) {
+    for (int i = 0; i < chars.length; i++) {
+      if (chars[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the number of lines every quote character is used the most in
    */
-  private static Optional<Character> getHighestCountOf(final List<String> sample, final Function<String,
-          Optional<Character>> characterExtractor) {
-
-    return sample.stream()
-            .map(characterExtractor)
-            .flatMap(o -> o.map(Stream::of).orElseGet(Stream::empty)) //remove Optional wrapper and ignore Optional.empty
-            .collect(Collectors.groupingBy(Function.identity(), counting()))
-            .entrySet()
-            .stream()
-            .sorted(BY_VALUE_LONG_DESC)
-            .findFirst()
-            .map(Map.Entry::getKey);
+  private static int[] countQuoteLines(List<String> sample, char delimiter) {
+    int[] lines = new int[POTENTIAL_QUOTES.length];
+    for (String line : sample) {
+      int quote = indexOfQuoteWithHighestCount(line, delimiter);
+      if (quote >= 0) {
+        lines[quote]++;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * @return the index of the highest positive value, the first one on ties, or -1 if there is none
+   */
+  private static int indexOfHighest(int[] values) {
+    int highest = 0;
+    for (int i = 1; i < values.length; i++) {
+      if (values[i] > values[highest]) {
+        highest = i;
+      }
+    }
+    return values[highest] > 0 ? highest : -1;
   }
 
   /**
@@ -174,65 +276,50 @@ public class TabularFileMetadataExtractor {
   public static Optional<Character> getDelimiterChar(final List<String> sample) {
 
     // count the frequency of all possible delimiter for each lines
-    List<LineDelimiterStats> linesStats =
-            computeLineDelimiterStats(sample);
-
-    // get the distinct set of frequency for each delimiters to check the "stability"
-    Map<Character, Set<Integer>> delimiterDistinctFrequency =
-            computeDelimiterDistinctFrequency(linesStats)
-                    .entrySet().stream()
-                    // filter out delimiter that we never saw
-                    .filter(entry -> entry.getValue().size() > 1 || !entry.getValue().contains(Integer.valueOf(0)))
-                    .sorted(Comparator.comparing(e -> e.getValue().size()))
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
-                            (e1, e2) -> e2, LinkedHashMap::new));
-
-    // we can have more than one
-    Set<Character> mostStableDelimiter =
-            getAllEqualsToFirst(delimiterDistinctFrequency, (s1,s2) -> s1.size() == s2.size());
-
-    // get the most used delimiter to check the "overall usage"
-    Map<Character, Integer> delimiterFrequencySums = computeDelimiterFrequencySums(linesStats)
-            .entrySet().stream()
-            .sorted( Comparator.comparing( (Map.Entry<Character, Integer> e) -> e.getValue()).reversed())
-            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
-                    (e1, e2) -> e2, LinkedHashMap::new));
-
-    Set<Character> mostFrequentDelimiter = getAllEqualsToFirst(delimiterFrequencySums, Integer::equals);
-
-    //get the highest frequency per line to check for "usage per line"
-    Map<Character, Long> delimiterHighestFrequencyPerLine = computeDelimiterHighestFrequencyPerLine(sample)
-            .entrySet().stream()
-            .sorted( Comparator.comparing( (Map.Entry<Character, Long> e) -> e.getValue()).reversed())
-            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
-                    (e1, e2) -> e2, LinkedHashMap::new));
-    Set<Character> mostFrequentDelimiterPerLine = getAllEqualsToFirst(delimiterHighestFrequencyPerLine,
-           Long::equals);
+    DelimiterFrequencies frequencies = new DelimiterFrequencies(POTENTIAL_DELIMITERS);
+    frequencies.addLines(sample);
+    return getDelimiterChar(frequencies);
+  }
+
+  /**
+   * Determines the delimiter from the frequencies of the candidates in a sample of lines.
+   * The statistics are sets of candidates, see {@link DelimiterFrequencies}.
+   */
+  static Optional<Character> getDelimiterChar(DelimiterFrequencies frequencies) {
+
+    // the delimiters with the fewest distinct frequencies to check the "stability"
+    int mostStableDelimiter = frequencies.mostStable();
+
+    // the most used delimiters to check the "overall usage"
+    int mostFrequentDelimiter = frequencies.mostFrequent();
+
+    // the delimiters that are the most used in the most lines to check for "usage per line"
+    int mostFrequentDelimiterPerLine = frequencies.mostFrequentPerLine();
 
     //summary
     if (LOG.isDebugEnabled()) {
-      LOG.debug("delimiterDistinctFrequency -> " + delimiterDistinctFrequency);
-      LOG.debug("mostStableDelimiter -> " + mostStableDelimiter);
-      LOG.debug("delimiterFrequencySums -> " + delimiterFrequencySums);
-      LOG.debug("mostFrequentDelimiter -> " + mostFrequentDelimiter);
-      LOG.debug("delimiterHighestFrequencyPerLine->" + delimiterHighestFrequencyPerLine);
-      LOG.debug("mostFrequentDelimiterPerLine ->" + mostFrequentDelimiterPerLine);
+      LOG.debug("delimiterDistinctFrequency -> " + Arrays.toString(frequencies.distinctFrequencies()));
+      LOG.debug("mostStableDelimiter -> " + toString(frequencies, mostStableDelimiter));
+      LOG.debug("delimiterFrequencySums -> " + Arrays.toString(frequencies.frequencySums()));
+      LOG.debug("mostFrequentDelimiter -> " + toString(frequencies, mostFrequentDelimiter));
+      LOG.debug("delimiterHighestFrequencyPerLine->" + Arrays.toString(frequencies.highestFrequencyLines()));
+      LOG.debug("mostFrequentDelimiterPerLine ->" + toString(frequencies, mostFrequentDelimiterPerLine));
     }
 
     //if the most stable is also the one that is used to most within the sample
-    Optional<Character> resultCharacter = intersectSingle(mostStableDelimiter, mostFrequentDelimiter);
+    Optional<Character> resultCharacter = intersectSingle(frequencies, mostStableDelimiter, mostFrequentDelimiter);
     if(resultCharacter.isPresent()) {
       return resultCharacter;
     }
 
     //otherwise, if the most stable is also the most used based on lines
-    resultCharacter = intersectSingle(mostStableDelimiter, mostFrequentDelimiterPerLine);
+    resultCharacter = intersectSingle(frequencies, mostStableDelimiter, mostFrequentDelimiterPerLine);
     if(resultCharacter.isPresent()) {
       return resultCharacter;
     }
 
     //as last resort if the most frequent delimiter overall and by line is the same
-    resultCharacter = intersectSingle(mostFrequentDelimiter, mostFrequentDelimiterPerLine);
+    resultCharacter = intersectSingle(frequencies, mostFrequentDelimiter, mostFrequentDelimiterPerLine);
     if(resultCharacter.isPresent()) {
       return resultCharacter;
     }
@@ -244,194 +331,95 @@ public class TabularFileMetadataExtractor {
   }
 
   /**
-   * Return the {@link Character} represents the intersection between 2 sets only if the resulting set represents
-   * a single element.
-   * @param set1
-   * @param set2
-   * @return
+   * Return the candidate represented by the intersection between 2 sets of candidates only if the resulting set
+   * represents a single element.
    */
-  private static Optional<Character> intersectSingle(Set<Character> set1, Set<Character> set2) {
-    Sets.SetView<Character> intersection = Sets.intersection(set1, set2);
-    return intersection.size() == 1 ? intersection.stream().findFirst() : Optional.empty();
+  private static Optional<Character> intersectSingle(DelimiterFrequencies frequencies, int set1, int set2) {
+    int intersection = set1 & set2;
+    return Integer.bitCount(intersection) == 1
+      ? Optional.of(frequencies.candidate(Integer.numberOfTrailingZeros(intersection)))
+      : Optional.empty();
   }
 
-  /**
-   * Given a {@link Map}, return all elements that are equals to the first element (including itself)
-   * based on the provided equals function.
-   * @param map
-   * @param equalsPredicate
-   * @param <T>
-   * @return all elements that are equals to the first one or an empty set if the map is empty
-   */
-  private static <T> Set<Character> getAllEqualsToFirst(Map<Character, T> map, BiFunction<T,T, Boolean> equalsPredicate) {
-
-    Optional<Map.Entry<Character, T>> firstMapEntry = map.entrySet().stream().findFirst();
-    if(!firstMapEntry.isPresent()){
-      return Collections.EMPTY_SET;
+  private static String toString(DelimiterFrequencies frequencies, int set) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int d = 0; d < frequencies.candidates(); d++) {
+      if ((set & 1 << d) != 0) {
+        sb.append(sb.length() > 1 ? ", " : "").append(frequencies.candidate(d));
+      }
     }
-
-    final T firstValue = firstMapEntry.get().getValue();
-    return map.entrySet().stream().filter( e -> equalsPredicate.apply(firstValue,e.getValue()))
-            .map(Map.Entry::getKey).collect(Collectors.toSet());
+    return sb.append(']').toString();
   }
 
   /**
-   * For each element(line) of the sample, compute a {@link LineDelimiterStats} for each delimiter.
-   * Note: delimiter that are not used within a line will be included with the frequency 0.
-   * @param sample
-   * @return new List, never null
-   */
-  static List<LineDelimiterStats> computeLineDelimiterStats(List<String> sample){
-    return sample.stream()
-            .map(TabularFileMetadataExtractor::lineToLineDelimiterStats)
-            .flatMap(List::stream)
-            .collect(Collectors.toList());
-  }
-
-  /**
-   * Compute the stats for each potential delimiters on a line.
-   * @param line
-   * @return
-   */
-  private static List<LineDelimiterStats> lineToLineDelimiterStats(String line) {
-    return Arrays.stream(POTENTIAL_DELIMITER_CHAR)
-            .map( delimiter -> new LineDelimiterStats(delimiter, StringUtils.countMatches(line, delimiter)))
-            .collect(Collectors.toList());
-  }
-
-  /**
-   * For each {@link LineDelimiterStats}, collect the distinct frequency (count) of each delimiter.
-   * This gives us an idea of the "stability" of each delimiter across the sample.
-   * Note that since quotes are not handled, noise can be introduced if a quoted cells use the delimiter.
-   *
-   * See unit test for examples of when this method will be affected by noise.
-   *
-   * The most stable delimiter is normally defined by the {@link Character} returned by the methods where
-   * the list of distinct frequency is the smallest in size excluding cases where the list contains only the element
-   * representing 0 as Integer (which means the delimiter was never used).
+   * Given a line and a delimiter, try to determine the quoting character if any can be found.
+   * To check if a quote character is used we count the delimiters followed by a quoting character, see
+   * {@link #countQuotedColumns(String, char, char)}.
    *
-   * @param linesStats
+   * @param line line of text to analyse
+   * @param delimiter delimiter used in the line of text
    *
    * @return
    */
-  static Map<Character, Set<Integer>> computeDelimiterDistinctFrequency(List<LineDelimiterStats> linesStats) {
-    return linesStats.stream()
-            .collect(
-                    Collectors.groupingBy(LineDelimiterStats::getDelimiter,
-                            Collectors.mapping(LineDelimiterStats::getFrequency, toSet())));
-  }
-
-  /**
-   * For each line, check the delimiter that is used the most.
-   * Return the count of each delimiter.
-   * @param lines
-   * @return
-   */
-  static Map<Character, Long> computeDelimiterHighestFrequencyPerLine(List<String> lines) {
-    return lines.stream()
-            .map(TabularFileMetadataExtractor::getDelimiterWithHighestCount2)
-            .flatMap(o -> o.map(Stream::of).orElseGet(Stream::empty)) //remove Optional wrapper and ignore Optional.empty
-            .collect(Collectors.groupingBy(LineDelimiterStats::getDelimiter, counting()));
+  static Optional<Character> getQuoteCharWithHighestCount(String line, Character delimiter) {
+    int quote = indexOfQuoteWithHighestCount(line, delimiter);
+    return quote < 0 ? Optional.empty() : Optional.of(POTENTIAL_QUOTES[quote]);
   }
 
   /**
-   * For {@link LineDelimiterStats}, sum the frequency (count) of each delimiter.
-   * This gives us an idea of the overall usage of each delimiter across the sample.
-   * Note that since quotes are not handled, noise can be introduced if a quoted cell uses the delimiter.
-   *
-   * See unit test for examples of when this method will be affected by noise.
-   *
-   * @param linesStats
-   *
-   * @return
+   * @return the index of the quote character with the highest count, the first one on ties, or -1 if none is used
    */
-  static Map<Character, Integer> computeDelimiterFrequencySums(List<LineDelimiterStats> linesStats) {
-    return linesStats.stream()
-            .filter(CONTAINS_FREQUENCY)
-            .collect(
-                    Collectors.groupingBy(LineDelimiterStats::getDelimiter,
-                            Collectors.summingInt(LineDelimiterStats::getFrequency)));
-  }
-
-  /**
-   * Given a line, get the delimiter with the highest count if any can be found.
-   * Note: quotes are ignored in the count so a delimiter used inside quotes will be counted.
-   *
-   * @param line line of text to analyse
-   *
-   * @return
-   */
-  static Optional<Character> getDelimiterWithHighestCount(String line) {
-    int highestCount = 0;
-    Character highestCountDelimiter = null;
-    for (Character delimiter : POTENTIAL_DELIMITER_CHAR) {
-      int currentCount = StringUtils.countMatches(line, delimiter);
-      if (currentCount > highestCount) {
-        highestCount = currentCount;
-        highestCountDelimiter = delimiter;
-      }
-    }
-    return Optional.ofNullable(highestCountDelimiter);
-  }
-
-  static Optional<LineDelimiterStats> getDelimiterWithHighestCount2(String line) {
+  private static int indexOfQuoteWithHighestCount(String line, char delimiter) {
     int highestCount = 0;
-   // Character highestCountDelimiter = null;
-    LineDelimiterStats lineDelimiterStats = null;
-    for (Character delimiter : POTENTIAL_DELIMITER_CHAR) {
-      int currentCount = StringUtils.countMatches(line, delimiter);
+    int highestCountQuote = -1;
+    for (int q = 0; q < POTENTIAL_QUOTES.length; q++) {
+      int currentCount = countQuotedColumns(line, delimiter, POTENTIAL_QUOTES[q]);
       if (currentCount > highestCount) {
         highestCount = currentCount;
-        lineDelimiterStats = new LineDelimiterStats(delimiter,highestCount);
+        highestCountQuote = q;
       }
     }
-    return Optional.ofNullable(lineDelimiterStats);
+    return highestCountQuote;
   }
 
   /**
-   * Given a line and a delimiter, try to determine the quoting character if any can be found.
-   * To check if a quote character is used we run a regex to check for a delimiter followed by a quoting character.
-   *
-   * @param line line of text to analyse
-   * @param delimiter delimiter used in the line of text
-   *
-   * @return
+   * Counts the non overlapping matches of the regular expression {@code [delimiter][ ]*[quote][ ]*[^delimiter]}, a
+   * delimiter followed by an opening quote, without a regular expression.
    */
-  static Optional<Character> getQuoteCharWithHighestCount(String line, Character delimiter) {
-    int highestCount = 0;
-    Character highestCountQuoteChar = null;
-    for (Character quoteChar : POTENTIAL_QUOTES_CHAR) {
-      int currentCount = 0;
-      Matcher m = COMPILE_QUOTE_PATTERN_FCT.apply(delimiter, quoteChar).matcher(line);
-      while (m.find()) {
-        currentCount++;
-      }
-      if (currentCount > highestCount) {
-        highestCount = currentCount;
-        highestCountQuoteChar = quoteChar;
+  static int countQuotedColumns(String line, char delimiter, char quote) {
+    int count = 0;
+    int length = line.length();
+    int i = 0;
+    while (i < length) {
+      if (line.charAt(i) == delimiter) {
+        int j = skipSpaces(line, i + 1);
+        if (j < length && line.charAt(j) == quote) {
+          int afterQuote = j + 1;
+          int k = skipSpaces(line, afterQuote);
+          if (k < length && line.charAt(k) != delimiter) {
+            count++;
+            i = k + 1;
+            continue;
+          }
+          if (k > afterQuote) {
+            // the last space is the char that is not the delimiter
+            count++;
+            i = k;
+            continue;
+          }
+        }
       }
+      i++;
     }
-    return Optional.ofNullable(highestCountQuoteChar);
+    return count;
   }
 
-  /**
-   * Inner representation of stats (frequency) of a delimiter
-   */
-  static class LineDelimiterStats {
-    private Character delimiter;
-    private int frequency;
-    LineDelimiterStats(Character delimiter, int frequency) {
-      this.delimiter = delimiter;
-      this.frequency = frequency;
-    }
-
-    Character getDelimiter() {
-      return delimiter;
-    }
-
-    int getFrequency() {
-      return frequency;
+  private static int skipSpaces(String line, int from) {
+    int i = from;
+    while (i < line.length() && line.charAt(i) == ' ') {
+      i++;
     }
+    return i;
   }
 
 }
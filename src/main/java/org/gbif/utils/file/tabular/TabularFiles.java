@@ -87,5 +87,41 @@ public class TabularFiles {
             CsvSchema.DEFAULT_QUOTE_CHAR, headerLine);
   }
 
+  /**
+   * Get a TabularDataFileReader returning only some columns of the rows of another reader, in the order given.
+   * Rows that do not have a projected column have null for it.
+   * <p/>
+   * This saves keeping the other columns, but the underlying reader still parses them. {@link
+   * org.gbif.utils.file.csv.CSVReader#setProjection(int...)} skips them while scanning.
+   *
+   * @param reader to read the rows from, closed with the returned reader
+   * @param columns the indices of the columns to return
+   */
+  public static TabularDataFileReader<List<String>> newProjectedTabularFileReader(
+    TabularDataFileReader<List<String>> reader, int... columns) {
+    Preconditions.checkNotNull(reader, "A TabularDataFileReader must be provided");
+    return new ProjectedTabularDataFileReader(reader, columns);
+  }
+
+  /**
+   * Get a TabularDataFileReader returning only the columns with the given names in the header line of another reader,
+   * see {@link #newProjectedTabularFileReader(TabularDataFileReader, int...)}.
+   *
+   * @param reader to read the rows from, closed with the returned reader
+   * @param columns the names of the columns in the header line
+   * @throws IllegalArgumentException if a column is not in the header line
+   */
+  public static TabularDataFileReader<List<String>> newProjectedTabularFileReaderByName(
+    TabularDataFileReader<List<String>> reader, String... columns) throws IOException {
+    Preconditions.checkNotNull(reader, "A TabularDataFileReader must be provided");
+    List<String> header = reader.getHeaderLine();
+    Preconditions.checkArgument(header != null, "The reader has no header line");
+    int[] indices = new int[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      indices[i] = header.indexOf(columns[i]);
+      Preconditions.checkArgument(indices[i] >= 0, "Column %s is not in the header line %s", columns[i], header);
+    }
+    return new ProjectedTabularDataFileReader(reader, indices);
+  }
 
 }
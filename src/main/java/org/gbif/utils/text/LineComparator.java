@@ -26,10 +26,12 @@ import org.apache.commons.lang3.text.StrTokenizer;
  * This allows to sort for example tab delimited files by any column and not only the first one.
  * <p/>
  * If no explicit comparator is given a string comparison is done for the actual column content.
+ * <p/>
+ * The comparator is thread safe as long as the column comparator is.
  */
 public class LineComparator implements Comparator<String> {
 
-  private final StrTokenizer tokenizer;
+  private final ThreadLocal<StrTokenizer> tokenizers;
   private final int column;
   private final Comparator<String> comp;
 
@@ -44,13 +46,15 @@ public class LineComparator implements Comparator<String> {
   public LineComparator(int column, String columnDelimiter, Character quoteChar, Comparator<String> columnComparator) {
     this.column = column;
     this.comp = columnComparator == null ? Ordering.<String>natural().nullsFirst() : columnComparator;
-    tokenizer = new StrTokenizer();
-    tokenizer.setEmptyTokenAsNull(true);
-    tokenizer.setIgnoreEmptyTokens(false);
+    final StrTokenizer prototype = new StrTokenizer();
+    prototype.setEmptyTokenAsNull(true);
+    prototype.setIgnoreEmptyTokens(false);
     if (quoteChar != null) {
-      tokenizer.setQuoteChar(quoteChar);
+      prototype.setQuoteChar(quoteChar);
     }
-    tokenizer.setDelimiterString(columnDelimiter);
+    prototype.setDelimiterString(columnDelimiter);
+    // tokenizers keep state, so every thread gets its own copy
+    tokenizers = ThreadLocal.withInitial(() -> (StrTokenizer) prototype.clone());
   }
 
   public LineComparator(int column, String columnDelimiter, Comparator<String> columnComparator) {
@@ -67,6 +71,7 @@ public class LineComparator implements Comparator<String> {
         return -1;
       }
     } else {
+      StrTokenizer tokenizer = tokenizers.get();
       tokenizer.reset(o1);
       String[] parts = tokenizer.getTokenArray();
       String s1 = null;
@@ -13,15 +13,20 @@
 
 package org.gbif.utils.file;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
+import org.apache.commons.io.ByteOrderMark;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BOMInputStream;
 import org.junit.Test;
 import org.xml.sax.ext.DefaultHandler2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -133,4 +138,64 @@ public class BomSafeInputStreamWrapperTest {
     assertEquals(35, y);
     assertEquals(0, z);
   }
+
+  @Test
+  public void testBulkRead() throws Exception {
+    for (String f : new String[] {"utf-8_names.txt", "utf-8_bom_names.txt", "utf-16LE_names.txt",
+      "utf-16LE_bom_names.txt", "utf-16BE_bom_names.txt", "iso-8859-1_names.txt"}) {
+      byte[] expected = IOUtils.toByteArray(new BOMInputStream(getClass().getResourceAsStream("/charsets/" + f),
+        ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE));
+
+      try (InputStream in = new BomSafeInputStreamWrapper(getClass().getResourceAsStream("/charsets/" + f))) {
+        assertEquals(f, expected.length, in.available());
+        assertArrayEquals(f, expected, IOUtils.toByteArray(in));
+        assertEquals(-1, in.read());
+      }
+
+      // byte by byte, bytes above 0x7F are not negative
+      try (InputStream in = new BomSafeInputStreamWrapper(getClass().getResourceAsStream("/charsets/" + f))) {
+        for (byte b : expected) {
+          assertEquals(f, b & 0xff, in.read());
+        }
+        assertEquals(-1, in.read());
+      }
+
+      try (BomSafeInputStreamWrapper in =
+             new BomSafeInputStreamWrapper(getClass().getResourceAsStream("/charsets/" + f))) {
+        assertEquals(1, in.skip(1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expected.length - 1, in.transferTo(out));
+        assertArrayEquals(f, Arrays.copyOfRange(expected, 1, expected.length), out.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void testShortStream() throws Exception {
+    // a stream shorter than the bytes read ahead, returning a single byte per read
+    InputStream in = new BomSafeInputStreamWrapper(
+      new OneByteReadInputStream(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, (byte) 0xE9}));
+    assertEquals(0xE9, in.read());
+    assertEquals(-1, in.read());
+
+    in = new BomSafeInputStreamWrapper(new OneByteReadInputStream(new byte[] {(byte) 0xFF, 'a'}));
+    assertEquals(2, in.available());
+    assertArrayEquals(new byte[] {(byte) 0xFF, 'a'}, IOUtils.toByteArray(in));
+
+    in = new BomSafeInputStreamWrapper(new ByteArrayInputStream(new byte[0]));
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(new byte[4], 0, 4));
+  }
+
+  private static class OneByteReadInputStream extends ByteArrayInputStream {
+
+    private OneByteReadInputStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(1, len));
+    }
+  }
 }
@@ -16,16 +16,32 @@
 
 package org.gbif.utils.file;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 
 import static org.gbif.utils.file.CharsetDetection.detectEncoding;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author markus
@@ -75,4 +91,138 @@ public class CharsetDetectionTest {
       assertEquals(expected.replace("-", "").toLowerCase(), encoding.displayName().toLowerCase().replace("-", ""));
     }
   }
+
+  @Test
+  public void testStreamingDetection() throws IOException {
+    for (File test : FileUtils.getClasspathFile("charsets/kyle").getParentFile().listFiles()) {
+      if (test.isFile()) {
+        byte[] content = Files.readAllBytes(test.toPath());
+        Charset expected = detectEncoding(test);
+        try (InputStream in = new ByteArrayInputStream(content)) {
+          assertEquals(test.getName(), expected, detectEncoding(in, Long.MAX_VALUE));
+        }
+
+        // fed in small blocks
+        CharsetDetector detector = new CharsetDetector();
+        for (int i = 0; i < content.length; i += 7) {
+          detector.update(content, i, Math.min(7, content.length - i));
+        }
+        assertEquals(test.getName(), expected, detector.getCharset());
+        assertEquals(content.length, detector.getLength());
+
+        // scanned in a direct buffer without consuming it
+        ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+        direct.put(content).flip();
+        assertEquals(test.getName(), expected, detectEncoding(direct));
+        assertEquals(content.length, direct.remaining());
+      }
+    }
+  }
+
+  @Test
+  public void testEncodingDetectionOfAllBytes() throws IOException {
+    String ascii = StringUtils.repeat("Puma concolor;Felidae\n", 100);
+
+    // a latin1 character in the very last bytes
+    byte[] data = (ascii + "Linné\n").getBytes(StandardCharsets.ISO_8859_1);
+    assertEquals(StandardCharsets.ISO_8859_1, detectEncoding(data));
+    assertEquals(StandardCharsets.UTF_8, detectEncoding((ascii + "Linné\n").getBytes(StandardCharsets.UTF_8)));
+
+    // a UTF-8 sequence truncated by the end of the bytes
+    data = (ascii + "中").getBytes(StandardCharsets.UTF_8);
+    assertEquals(StandardCharsets.UTF_8, detectEncoding(Arrays.copyOf(data, data.length - 1)));
+
+    // long ASCII runs at any offset
+    for (int offset = 0; offset < 8; offset++) {
+      String text = StringUtils.repeat('a', offset) + ascii + "é" + ascii;
+      assertEquals(StandardCharsets.ISO_8859_1, detectEncoding(text.getBytes(StandardCharsets.ISO_8859_1)));
+      assertEquals(StandardCharsets.UTF_8, detectEncoding(text.getBytes(StandardCharsets.UTF_8)));
+      assertEquals(StandardCharsets.UTF_16LE, detectEncoding(text.getBytes(StandardCharsets.UTF_16LE)));
+      assertEquals(StandardCharsets.UTF_16BE, detectEncoding(text.getBytes(StandardCharsets.UTF_16BE)));
+    }
+  }
+
+  /**
+   * UTF-16 is given up after the first bytes without zeros, but not while it is plausible.
+   */
+  @Test
+  public void testEncodingDetectionAfterUtf16Decision() throws IOException {
+    int length = 4 * CharsetDetector.UTF16_DECISION_LENGTH;
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < length) {
+      sb.append("Ærø;中文;").append(sb.length()).append('\n');
+    }
+    String text = sb.toString();
+    assertEquals(StandardCharsets.UTF_8, detectEncoding(text.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(StandardCharsets.UTF_16LE, detectEncoding(text.getBytes(StandardCharsets.UTF_16LE)));
+    assertEquals(StandardCharsets.UTF_16BE, detectEncoding(text.getBytes(StandardCharsets.UTF_16BE)));
+
+    // the 8 bit encodings are still told apart by the bytes after it
+    String latin = StringUtils.repeat("Puma concolor;Linné\n", length / 20);
+    byte[] data = (latin + "Ærø\n").getBytes(StandardCharsets.ISO_8859_1);
+    assertEquals(StandardCharsets.ISO_8859_1, detectEncoding(data));
+    data = (latin + "Ærø\n").getBytes(StandardCharsets.UTF_8);
+    assertEquals(StandardCharsets.UTF_8, detectEncoding(data));
+  }
+
+  /**
+   * The detection stops as soon as it is certain, and otherwise after the given number of bytes.
+   */
+  @Test
+  public void testStreamingDetectionStops() throws IOException {
+    byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    CountingInputStream in = new CountingInputStream(new SequenceInputStream(new ByteArrayInputStream(bom), endless()));
+    assertEquals(StandardCharsets.UTF_8, detectEncoding(in, Long.MAX_VALUE));
+    assertTrue(in.getByteCount() < 1024 * 1024);
+
+    in = new CountingInputStream(endless());
+    assertEquals(StandardCharsets.UTF_8, detectEncoding(in, 10_000_000));
+    assertEquals(10_000_000, in.getByteCount());
+
+    // an invalid UTF-8 byte after the first block
+    InputStream head = new BoundedInputStream(endless(), 200_000);
+    in = new CountingInputStream(new SequenceInputStream(head, new ByteArrayInputStream(new byte[] {(byte) 0xE9, 'a'})));
+    assertEquals(StandardCharsets.ISO_8859_1, detectEncoding(in, Long.MAX_VALUE));
+    assertEquals(200_002, in.getByteCount());
+  }
+
+  @Test
+  public void testNewReader() throws IOException {
+    for (File test : FileUtils.getClasspathFile("charsets/kyle").getParentFile().listFiles()) {
+      if (test.isFile()) {
+        byte[] content = Files.readAllBytes(test.toPath());
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+          out.write(content);
+        }
+
+        for (int prefixLength : new int[] {16, 1024 * 1024}) {
+          Charset expected = detectEncoding(new ByteArrayInputStream(content), prefixLength);
+          String text = StringUtils.removeStart(new String(content, expected), "\uFEFF");
+
+          // a decompressing stream cannot be reset
+          try (InputStreamReader reader = CharsetDetection.newReader(
+            new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray())), prefixLength)) {
+            assertEquals(test.getName(), expected, Charset.forName(reader.getEncoding()));
+            assertEquals(test.getName(), text, IOUtils.toString(reader));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return a stream of ASCII lines that does not end
+   */
+  private static InputStream endless() {
+    return new InputStream() {
+      private final byte[] line = "a;b;c\n".getBytes(StandardCharsets.US_ASCII);
+      private long position;
+
+      @Override
+      public int read() {
+        return line[(int) (position++ % line.length)];
+      }
+    };
+  }
 }
@@ -0,0 +1,66 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileSplitterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testScanToChunk() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      sb.append(i).append('\t');
+      // some lines are longer than the read ahead and the chunk size
+      for (int j = 0; j < (i % 100 == 0 ? 1000 : i % 7); j++) {
+        sb.append('x');
+      }
+      sb.append('\n');
+    }
+    byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+    File file = folder.newFile("lines.txt");
+    Files.write(file.toPath(), bytes);
+
+    for (long chunkSize : new long[] {1, 10, 333, 4096, bytes.length, bytes.length * 2L}) {
+      List<Long> offsets = FileSplitter.scanToChunk(file, chunkSize);
+      long previous = 0;
+      for (long offset : offsets) {
+        assertTrue(offset > previous && offset < bytes.length);
+        assertEquals("Offset " + offset + " is not at the start of a line", '\n', bytes[(int) offset - 1]);
+        previous = offset;
+      }
+      if (chunkSize == 1) {
+        // every line is a chunk
+        assertEquals(1999, offsets.size());
+      }
+    }
+  }
+}
@@ -13,6 +13,8 @@ package org.gbif.utils.file;
  * the License.
  ***************************************************************************/
 
+import org.gbif.utils.concurrent.ExecutorUtils;
+import org.gbif.utils.concurrent.NamedThreadFactory;
 import org.gbif.utils.text.LineComparator;
 
 import java.io.BufferedReader;
@@ -20,14 +22,28 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.base.Splitter;
+import com.google.common.io.Files;
 import org.apache.commons.io.LineIterator;
-import org.junit.Ignore;
+import org.junit.Assume;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -138,10 +154,10 @@ public class FileUtilsTest {
    *
    * GNU sort will use this order, based on the value of the whole character.
    *
-   * Java represents ð as a surrogate pair \ud800\udccd in UTF-16, and sorts based on parts of pairs. Therefore, it
-   * gives the wrong order.
+   * Java represents ð as a surrogate pair \ud800\udccd in UTF-16, and sorts based on parts of pairs. Therefore, a
+   * String comparator gives the wrong order. Without a comparator the Java sort compares the raw UTF-8 bytes
+   * instead, which gives the order of GNU sort.
    */
-  @Ignore("Expected to fail")
   @Test
   public void testSortingUnicodeFile() throws IOException {
     FileUtils futils = new FileUtils();
@@ -389,4 +405,447 @@ public class FileUtilsTest {
       }
     }
   }
+
+  /**
+   * Sorting chunks on several threads must give exactly the same result as sorting them one after the other.
+   */
+  @Test
+  public void testSortInJavaParallel() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    File sequential = File.createTempFile("gbif-common-file-sort", "sequential.txt");
+    File parallel = File.createTempFile("gbif-common-file-sort", "parallel.txt");
+    sequential.deleteOnExit();
+    parallel.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(3, ";");
+
+    FileUtils futils = new FileUtils();
+    futils.setSortMemoryBudget(8 * 1024);
+    futils.sortInJava(source, sequential, ENCODING, lineComparator, 1);
+    futils.setSortThreads(4);
+    futils.sortInJava(source, parallel, ENCODING, lineComparator, 1);
+
+    List<String> expected = FileUtils.streamToList(new FileInputStream(sequential), ENCODING);
+    assertEquals(399, expected.size());
+    assertEquals(expected, FileUtils.streamToList(new FileInputStream(parallel), ENCODING));
+  }
+
+  /**
+   * Merging in several passes because of a low open file limit must not change the result nor leave files behind.
+   */
+  @Test
+  public void testSortInJavaMultiPassMerge() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File merged = File.createTempFile("gbif-common-file-sort", "merged.txt");
+    expected.deleteOnExit();
+    merged.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(3, ";");
+    int filesBefore = source.getParentFile().list().length;
+
+    new FileUtils().sortInJava(source, expected, ENCODING, lineComparator, 1);
+    FileUtils futils = new FileUtils();
+    futils.setSortMemoryBudget(4 * 1024);
+    futils.setMaxMergeFiles(3);
+    futils.sortInJava(source, merged, ENCODING, lineComparator, 1);
+
+    assertEquals(FileUtils.streamToList(new FileInputStream(expected), ENCODING),
+      FileUtils.streamToList(new FileInputStream(merged), ENCODING));
+    assertEquals(filesBefore, source.getParentFile().list().length);
+  }
+
+  /**
+   * Instances with different memory budgets sort independently and to the same result, even with a chunk per line.
+   */
+  @Test
+  public void testSortInJavaMemoryBudget() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    File large = File.createTempFile("gbif-common-file-sort", "large.txt");
+    File tiny = File.createTempFile("gbif-common-file-sort", "tiny.txt");
+    large.deleteOnExit();
+    tiny.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(3, ";");
+
+    FileUtils largeBudget = new FileUtils();
+    largeBudget.setSortMemoryFraction(0.1);
+    assertTrue(largeBudget.getSortMemoryBudget() > 0);
+    FileUtils tinyBudget = new FileUtils();
+    tinyBudget.setSortMemoryBudget(1);
+    assertEquals(0, new FileUtils().getSortMemoryBudget());
+
+    largeBudget.sortInJava(source, large, ENCODING, lineComparator, 1);
+    tinyBudget.sortInJava(source, tiny, ENCODING, lineComparator, 1);
+
+    assertEquals(FileUtils.streamToList(new FileInputStream(large), ENCODING),
+      FileUtils.streamToList(new FileInputStream(tiny), ENCODING));
+  }
+
+  /**
+   * A file that fits into memory is sorted without writing any chunk file, so the temp directory is never needed.
+   */
+  @Test
+  public void testSortInJavaInMemory() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(3, ";");
+    FileUtils chunked = new FileUtils();
+    chunked.setSortMemoryBudget(1);
+    chunked.sortInJava(source, expected, ENCODING, lineComparator, 1);
+
+    FileUtils futils = new FileUtils();
+    futils.setSortMemoryFraction(0.1);
+    futils.setSortTempDirectory(new File(sorted.getParentFile(), "gbif-common-file-sort-missing"));
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 1);
+
+    assertEquals(FileUtils.streamToList(new FileInputStream(expected), ENCODING),
+      FileUtils.streamToList(new FileInputStream(sorted), ENCODING));
+  }
+
+  /**
+   * A file can be sorted into itself, in memory and with chunk files, as the output is only opened once the input is
+   * read.
+   */
+  @Test
+  public void testSortInJavaInPlace() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    expected.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(3, ";");
+    new FileUtils().sortInJava(source, expected, ENCODING, lineComparator, 1);
+    List<String> expectedLines = FileUtils.streamToList(new FileInputStream(expected), ENCODING);
+
+    for (long budget : new long[] {0, 1}) {
+      File file = File.createTempFile("gbif-common-file-sort", "in-place.txt");
+      file.deleteOnExit();
+      Files.copy(source, file);
+      FileUtils futils = new FileUtils();
+      futils.setSortMemoryBudget(budget);
+      futils.sortInJava(file, file, ENCODING, lineComparator, 1);
+      assertEquals(expectedLines, FileUtils.streamToList(new FileInputStream(file), ENCODING));
+
+      Files.copy(source, file);
+      futils.sortInJavaByKey(file, file, ENCODING, 3, ";", null, 1);
+      assertEquals(expectedLines.size(), FileUtils.streamToList(new FileInputStream(file), ENCODING).size());
+    }
+
+    File file = File.createTempFile("gbif-common-file-sort", "in-place.txt");
+    file.deleteOnExit();
+    Files.write("c\na\nb\n", file, StandardCharsets.UTF_8);
+    new FileUtils().sortInJava(file, file, ENCODING, new LineComparator(0, ";"), 0);
+    assertEquals(Arrays.asList("a", "b", "c"), FileUtils.streamToList(new FileInputStream(file), ENCODING));
+  }
+
+  /**
+   * Chunk files are written to the sort temp directory, never next to the input, and are removed afterwards.
+   */
+  @Test
+  public void testSortInJavaTempDirectory() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+    final File tempDir = Files.createTempDir();
+    int filesBefore = source.getParentFile().list().length;
+    final AtomicBoolean chunksSeen = new AtomicBoolean();
+
+    FileUtils futils = new FileUtils();
+    futils.setSortMemoryBudget(1);
+    futils.setSortTempDirectory(tempDir);
+    futils.sortInJava(source, sorted, ENCODING, new LineComparator(3, ";") {
+      @Override
+      public int compare(String o1, String o2) {
+        if (tempDir.list().length > 0) {
+          chunksSeen.set(true);
+        }
+        return super.compare(o1, o2);
+      }
+    }, 1);
+
+    assertTrue(chunksSeen.get());
+    assertEquals(0, tempDir.list().length);
+    assertEquals(filesBefore, source.getParentFile().list().length);
+    tempDir.delete();
+  }
+
+  /**
+   * All chunk codecs give the same result, the compressing ones with fewer bytes on disk.
+   */
+  @Test
+  public void testSortInJavaChunkCodecs() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    Comparator<String> lineComparator = new LineComparator(3, ";");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    expected.deleteOnExit();
+    FileUtils plain = new FileUtils();
+    plain.setSortMemoryBudget(4096);
+    plain.sortInJava(source, expected, ENCODING, lineComparator, 1);
+    assertEquals(ChunkCodecs.NONE, plain.getSortChunkCodec());
+    assertTrue(plain.getSortBytesWritten() > 0);
+    assertEquals(plain.getSortBytesWritten(), plain.getSortBytesRead());
+
+    for (ChunkCodecs codec : new ChunkCodecs[] {ChunkCodecs.DEFLATE, ChunkCodecs.LZ4, ChunkCodecs.SNAPPY}) {
+      File sorted = File.createTempFile("gbif-common-file-sort", codec + ".txt");
+      sorted.deleteOnExit();
+      FileUtils futils = new FileUtils();
+      futils.setSortMemoryBudget(4096);
+      futils.setSortChunkCodec(codec);
+      futils.sortInJava(source, sorted, ENCODING, lineComparator, 1);
+
+      assertEquals(codec.name(), FileUtils.streamToList(new FileInputStream(expected), ENCODING),
+        FileUtils.streamToList(new FileInputStream(sorted), ENCODING));
+      assertTrue(codec.name(), futils.getSortBytesWritten() < plain.getSortBytesWritten());
+      assertTrue(codec.name(), futils.getSortBytesRead() > 0);
+    }
+  }
+
+  /**
+   * Sorts into different files must not wait for each other. Every sort waits for all the others to compare lines at
+   * the same time, which can never happen if they run one after the other.
+   */
+  @Test
+  public void testConcurrentSortsScale() throws Exception {
+    final int sorts = 4;
+    final File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    final FileUtils futils = new FileUtils();
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    expected.deleteOnExit();
+    futils.sortInJava(source, expected, ENCODING, new LineComparator(3, ";"), 1);
+
+    final CyclicBarrier barrier = new CyclicBarrier(sorts);
+    ExecutorService exec = Executors.newFixedThreadPool(sorts, new NamedThreadFactory("concurrent-sort-test"));
+    List<Future<File>> results = new ArrayList<Future<File>>();
+    for (int i = 0; i < sorts; i++) {
+      results.add(exec.submit(new Callable<File>() {
+        @Override
+        public File call() throws Exception {
+          File sorted = File.createTempFile("gbif-common-file-sort", "concurrent.txt");
+          sorted.deleteOnExit();
+          // a column other than the first one prevents GNU sort from being used
+          futils.sort(source, sorted, ENCODING, 3, ";", null, "\n", 1, new BarrierLineComparator(3, ";", barrier),
+            false);
+          return sorted;
+        }
+      }));
+    }
+    List<File> sorted = new ArrayList<File>();
+    try {
+      for (Future<File> result : results) {
+        sorted.add(result.get());
+      }
+    } finally {
+      ExecutorUtils.stop(exec);
+    }
+
+    List<String> expectedLines = FileUtils.streamToList(new FileInputStream(expected), ENCODING);
+    for (File f : sorted) {
+      assertEquals(expectedLines, FileUtils.streamToList(new FileInputStream(f), ENCODING));
+    }
+  }
+
+  /**
+   * Line comparator waiting on a barrier before its first comparison, failing if the other parties do not arrive in
+   * time.
+   */
+  private static class BarrierLineComparator extends LineComparator {
+
+    private final CyclicBarrier barrier;
+    private final AtomicBoolean waited = new AtomicBoolean();
+
+    BarrierLineComparator(int column, String columnDelimiter, CyclicBarrier barrier) {
+      super(column, columnDelimiter);
+      this.barrier = barrier;
+    }
+
+    @Override
+    public int compare(String o1, String o2) {
+      if (waited.compareAndSet(false, true)) {
+        try {
+          barrier.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        } catch (BrokenBarrierException | TimeoutException e) {
+          throw new IllegalStateException("Sorts into different files did not run concurrently", e);
+        }
+      }
+      return super.compare(o1, o2);
+    }
+  }
+
+  /**
+   * Sorting raw bytes gives the GNU sort order, including characters outside the Basic Multilingual Plane.
+   */
+  @Test
+  public void testSortInJavaByKeyUnicode() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/unicode-supplementary-multilingual-plane.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "bytes.txt");
+    sorted.deleteOnExit();
+    new FileUtils().sortInJavaByKey(source, sorted, ENCODING, 0, "\t", null, 0);
+
+    List<String> lines = FileUtils.streamToList(new FileInputStream(sorted), ENCODING);
+    assertEquals(3, lines.size());
+    assertTrue(lines.get(0).startsWith("x"));
+    assertTrue(lines.get(1).startsWith("\uFB02"));
+    assertTrue(lines.get(2).startsWith("\uD800\uDCCD"));
+  }
+
+  /**
+   * Sorting by the raw bytes of a column that is not the first one, in many chunks on several threads, orders by the
+   * same keys as the LineComparator.
+   */
+  @Test
+  public void testSortInJavaByKey() throws IOException {
+    File source = FileUtils.getClasspathFile("sorting/TDB_104.csv");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "bytes.txt");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    new FileUtils().sortInJava(source, expected, ENCODING, new LineComparator(3, ";"), 1);
+    FileUtils futils = new FileUtils();
+    futils.setSortMemoryBudget(8 * 1024);
+    futils.setSortThreads(3);
+    futils.sortInJavaByKey(source, sorted, ENCODING, 3, ";", null, 1);
+
+    assertEquals(columnValues(expected, 3, ";"), columnValues(sorted, 3, ";"));
+  }
+
+  /**
+   * GNU sort splits on delimiters within quotes, sorting raw bytes with an enclosing character does not.
+   */
+  @Test
+  public void testSortInJavaByKeyQuotesDifferFromGnu() throws IOException {
+    File source = File.createTempFile("gbif-common-file-sort", "quoted.txt");
+    File quoted = File.createTempFile("gbif-common-file-sort", "bytes.txt");
+    File unquoted = File.createTempFile("gbif-common-file-sort", "bytes.txt");
+    source.deleteOnExit();
+    quoted.deleteOnExit();
+    unquoted.deleteOnExit();
+    // the first column is "a;z" within quotes, but "a for GNU sort
+    Files.write("\"a;z\";1\n\"a\";2\n", source, StandardCharsets.UTF_8);
+
+    FileUtils futils = new FileUtils();
+    futils.sortInJavaByKey(source, quoted, ENCODING, 0, ";", '"', 0);
+    futils.sortInJavaByKey(source, unquoted, ENCODING, 0, ";", null, 0);
+    assertEquals(Arrays.asList("\"a\";2", "\"a;z\";1"), FileUtils.streamToList(new FileInputStream(quoted), ENCODING));
+    assertEquals(Arrays.asList("\"a;z\";1", "\"a\";2"),
+      FileUtils.streamToList(new FileInputStream(unquoted), ENCODING));
+
+    File gnuSorted = File.createTempFile("gbif-common-file-sort", "gnu.txt");
+    gnuSorted.deleteOnExit();
+    Assume.assumeTrue("GNU sort is not available",
+      futils.sortInGnu(source, gnuSorted, ENCODING, 0, 0, ";", "\n", false));
+    assertEquals(FileUtils.streamToList(new FileInputStream(unquoted), ENCODING),
+      FileUtils.streamToList(new FileInputStream(gnuSorted), ENCODING));
+  }
+
+  /**
+   * Without header lines and sorting by the first column, GNU sort can be used and must give identical results.
+   */
+  @Test
+  public void testSortInJavaByKeySameAsGnu() throws IOException {
+    FileUtils futils = new FileUtils();
+    for (String file : new String[] {"sorting/TDB_104.csv", "sorting/unicode-supplementary-multilingual-plane.txt",
+      "csv/irmng.tail"}) {
+      File source = FileUtils.getClasspathFile(file);
+      File gnuSorted = File.createTempFile("gbif-common-file-sort", "gnu.txt");
+      File javaSorted = File.createTempFile("gbif-common-file-sort", "bytes.txt");
+      gnuSorted.deleteOnExit();
+      javaSorted.deleteOnExit();
+
+      Assume.assumeTrue("GNU sort is not available",
+        futils.sortInGnu(source, gnuSorted, ENCODING, 0, 0, ";", "\n", false));
+      futils.sortInJavaByKey(source, javaSorted, ENCODING, 0, ";", null, 0);
+
+      assertEquals(file, FileUtils.streamToList(new FileInputStream(gnuSorted), ENCODING),
+        FileUtils.streamToList(new FileInputStream(javaSorted), ENCODING));
+    }
+  }
+
+  /**
+   * Sorts an extension by its core id and then numerically by an order column, with GNU sort if available and in Java.
+   */
+  @Test
+  public void testSortByCompositeKey() throws IOException {
+    File source = File.createTempFile("gbif-common-file-sort", "extension.txt");
+    source.deleteOnExit();
+    Files.write("id\torder\tname\nb\t10\tz\na\t9\ty\nb\t9\tx\na\t-1.5\tw\nb\t\tv\na\t10\tu\n", source,
+      StandardCharsets.UTF_8);
+    SortKey key = SortKey.of(SortKey.text(0), SortKey.numeric(1));
+    List<String> expected = Arrays.asList("id\torder\tname", "a\t-1.5\tw", "a\t9\ty", "a\t10\tu", "b\t\tv",
+      "b\t9\tx", "b\t10\tz");
+
+    for (boolean gnu : new boolean[] {true, false}) {
+      File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+      sorted.deleteOnExit();
+      FileUtils futils = new FileUtils();
+      futils.setGnuSortEnabled(gnu);
+      futils.sort(source, sorted, ENCODING, key, "\t", null, "\n", 1);
+      assertEquals(expected, FileUtils.streamToList(new FileInputStream(sorted), ENCODING));
+    }
+  }
+
+  /**
+   * Dates are compared chronologically, whatever their precision, and unparsable dates sort first.
+   */
+  @Test
+  public void testSortInJavaByDate() throws IOException {
+    File source = File.createTempFile("gbif-common-file-sort", "dates.txt");
+    source.deleteOnExit();
+    Files.write("1;2001-02-03T10:00\n2;2001\n3;2001-02-03\n4;\n5;2001-02-03T09:00Z/2001-02-05\n"
+      + "6;2000-12-31T23:00-02:00\n7;unknown\n", source, StandardCharsets.UTF_8);
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+
+    new FileUtils().sortInJavaByKey(source, sorted, ENCODING, SortKey.of(SortKey.date(1)), ";", null, 0);
+
+    assertEquals(Arrays.asList("4", "7", "2", "6", "3", "5", "1"), columnValues(sorted, 0, ";"));
+  }
+
+  @Test
+  public void testReadByteBuffer() throws IOException {
+    File source = File.createTempFile("gbif-common-read", ".txt");
+    source.deleteOnExit();
+    byte[] content = new byte[100_000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    Files.write(content, source);
+
+    // the start of the file, positioned after the bytes read
+    ByteBuffer head = FileUtils.readByteBuffer(source, 1000);
+    assertEquals(1000, head.position());
+    assertTrue(Arrays.equals(Arrays.copyOf(content, 1000), head.array()));
+
+    // the whole file in a larger buffer
+    ByteBuffer all = FileUtils.readByteBuffer(source, 200_000);
+    assertEquals(content.length, all.position());
+    assertEquals(200_000, all.capacity());
+    assertTrue(Arrays.equals(content, Arrays.copyOf(all.array(), content.length)));
+
+    // a reused direct buffer, flipped
+    ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+    ByteBuffer direct = FileUtils.threadLocalBuffer(buffers, 70_000, true);
+    assertTrue(direct.isDirect());
+    FileUtils.readByteBuffer(source, direct);
+    assertEquals(0, direct.position());
+    assertEquals(70_000, direct.limit());
+    byte[] read = new byte[direct.remaining()];
+    direct.get(read);
+    assertTrue(Arrays.equals(Arrays.copyOf(content, 70_000), read));
+
+    ByteBuffer reused = FileUtils.threadLocalBuffer(buffers, 10, true);
+    assertTrue(reused == direct);
+    assertEquals(0, reused.position());
+    assertEquals(10, reused.limit());
+    assertFalse(FileUtils.threadLocalBuffer(buffers, 100_000, true) == direct);
+  }
+
+  private static List<String> columnValues(File file, int column, String delimiter) throws IOException {
+    List<String> values = new ArrayList<String>();
+    for (String line : FileUtils.streamToList(new FileInputStream(file), "UTF-8")) {
+      values.add(line.split(delimiter, -1)[column]);
+    }
+    return values;
+  }
 }
@@ -0,0 +1,231 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Differential tests comparing the Java sorts by raw column bytes and by composite keys with GNU sort in the C locale
+ * on generated files.
+ */
+public class GnuSortCompatibilityTest {
+
+  private static final String[] UTF8_TOKENS = {"a", "b", "z", "A", "B", "Z", "0", "9", " ", "-", "_", "~", "[", "`",
+    "é", "É", "ß", "ø", " ", "中", "文", "😀", "𐃍", "ﬂ", "�"};
+  private static final String[] LATIN1_TOKENS = {"a", "b", "z", "A", "B", "Z", "0", "9", " ", "-", "_", "~", "[", "`",
+    "é", "É", "ß", "ø", " ", "ÿ"};
+  private static final String[] NUMERIC_TOKENS = {"0", "1", "2", "5", "9", "0", "1", "9", "-", ".", " ", "+", "e",
+    "a", "é"};
+  private static final String[] DELIMITERS = {"\t", ",", ";", "|"};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void gnuSortAvailable() throws Exception {
+    boolean available;
+    try {
+      Process process = new ProcessBuilder("sort", "--version").start();
+      String version = new String(readFully(process.getInputStream()), StandardCharsets.UTF_8);
+      available = process.waitFor() == 0 && version.contains("GNU");
+    } catch (IOException e) {
+      available = false;
+    }
+    Assume.assumeTrue("GNU sort is not available", available);
+  }
+
+  @Test
+  public void testUtf8Corpora() throws Exception {
+    Random random = new Random(20200814);
+    for (int i = 0; i < 24; i++) {
+      String delimiter = DELIMITERS[i % DELIMITERS.length];
+      int column = i % 3;
+      boolean ignoreCase = i % 2 == 1;
+      assertSameAsGnu(random, StandardCharsets.UTF_8, UTF8_TOKENS, delimiter, column, ignoreCase, i % 3);
+    }
+  }
+
+  @Test
+  public void testLatin1Corpora() throws Exception {
+    Random random = new Random(1758);
+    for (int i = 0; i < 8; i++) {
+      assertSameAsGnu(random, StandardCharsets.ISO_8859_1, LATIN1_TOKENS, DELIMITERS[i % DELIMITERS.length], i % 4,
+        i % 2 == 0, 1);
+    }
+  }
+
+  @Test
+  public void testCompositeKeyCorpora() throws Exception {
+    Random random = new Random(31337);
+    SortKey[] keys = {
+      SortKey.of(SortKey.text(0), SortKey.numeric(1)),
+      SortKey.of(SortKey.numeric(2)),
+      SortKey.of(SortKey.numeric(1), SortKey.ignoreCase(0), SortKey.text(2)),
+      SortKey.of(SortKey.ignoreCase(3), SortKey.numeric(0), SortKey.numeric(1)),
+      SortKey.of(SortKey.text(1), SortKey.text(1), SortKey.numeric(1))
+    };
+    String[] tokens = Arrays.copyOf(NUMERIC_TOKENS, NUMERIC_TOKENS.length + UTF8_TOKENS.length / 3);
+    System.arraycopy(UTF8_TOKENS, 0, tokens, NUMERIC_TOKENS.length, UTF8_TOKENS.length / 3);
+    for (int i = 0; i < keys.length * 2; i++) {
+      SortKey key = keys[i % keys.length];
+      String delimiter = DELIMITERS[i % DELIMITERS.length];
+      List<String> lines = generateLines(random, i < keys.length ? NUMERIC_TOKENS : tokens, delimiter, 2000);
+      List<String> cmd = new ArrayList<String>(Arrays.asList("sort", "-t", delimiter));
+      cmd.addAll(Arrays.asList(key.toGnuSortKeys().split(" ")));
+
+      FileUtils futils = new FileUtils();
+      futils.setSortMemoryBudget(64 * 1024);
+      futils.setSortThreads(2);
+      File input = folder.newFile();
+      File javaSorted = folder.newFile();
+      write(input, lines, StandardCharsets.UTF_8);
+      futils.sortInJavaByKey(input, javaSorted, "UTF-8", key, delimiter, null, 1);
+
+      assertArrayEquals(key + " delimited by [" + delimiter + "]", sortInGnu(cmd, lines, StandardCharsets.UTF_8, 1),
+        Files.readAllBytes(javaSorted.toPath()));
+    }
+  }
+
+  /**
+   * Generates a file, sorts it with both GNU sort and the Java sort used by default by
+   * {@link FileUtils#sort(File, File, String, int, String, Character, String, int)} and compares the bytes.
+   */
+  private void assertSameAsGnu(Random random, Charset encoding, String[] tokens, String delimiter, int column,
+    boolean ignoreCase, int headerLines) throws Exception {
+    List<String> lines = generateLines(random, tokens, delimiter, 2000);
+    File input = folder.newFile();
+    write(input, lines, encoding);
+    List<String> cmd =
+      new ArrayList<String>(Arrays.asList("sort", "-t", delimiter, "-k", (column + 1) + "," + (column + 1)));
+    if (ignoreCase) {
+      cmd.add("-f");
+    }
+    byte[] expected = sortInGnu(cmd, lines, encoding, headerLines);
+
+    FileUtils futils = new FileUtils();
+    futils.setGnuSortEnabled(false);
+    futils.setSortMemoryBudget(64 * 1024);
+    futils.setSortThreads(2);
+    File javaSorted = folder.newFile();
+    futils.sort(input, javaSorted, encoding.name(), column, delimiter, null, "\n", headerLines, null, ignoreCase);
+
+    assertArrayEquals(
+      "Column " + column + " delimited by [" + delimiter + "] in " + encoding + (ignoreCase ? " ignoring case" : ""),
+      expected, Files.readAllBytes(javaSorted.toPath()));
+  }
+
+  /**
+   * Sorts all lines but the header lines with the GNU sort command in the C locale.
+   *
+   * @return the header lines and the sorted lines
+   */
+  private byte[] sortInGnu(List<String> cmd, List<String> lines, Charset encoding, int headerLines) throws Exception {
+    File body = folder.newFile();
+    File gnuSorted = folder.newFile();
+    write(body, lines.subList(headerLines, lines.size()), encoding);
+    ProcessBuilder pb = new ProcessBuilder(cmd).redirectInput(body).redirectOutput(gnuSorted);
+    pb.environment().put("LC_ALL", "C");
+    assertTrue("GNU sort failed", pb.start().waitFor() == 0);
+    return concat(toBytes(lines.subList(0, headerLines), encoding), Files.readAllBytes(gnuSorted.toPath()));
+  }
+
+  /**
+   * Random lines with a varying number of columns, empty columns and many duplicate values.
+   */
+  private static List<String> generateLines(Random random, String[] tokens, String delimiter, int size) {
+    List<String> values = new ArrayList<String>();
+    for (int i = 0; i < 50; i++) {
+      values.add(randomValue(random, tokens));
+    }
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < size; i++) {
+      int columns = random.nextInt(5);
+      StringBuilder line = new StringBuilder();
+      for (int c = 0; c < columns; c++) {
+        if (c > 0) {
+          line.append(delimiter);
+        }
+        line.append(random.nextBoolean() ? values.get(random.nextInt(values.size())) : randomValue(random, tokens));
+      }
+      lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  private static String randomValue(Random random, String[] tokens) {
+    StringBuilder value = new StringBuilder();
+    int length = random.nextInt(6);
+    for (int i = 0; i < length; i++) {
+      value.append(tokens[random.nextInt(tokens.length)]);
+    }
+    return value.toString();
+  }
+
+  private static byte[] toBytes(List<String> lines, Charset encoding) {
+    StringBuilder sb = new StringBuilder();
+    for (String line : lines) {
+      sb.append(line).append('\n');
+    }
+    return sb.toString().getBytes(encoding);
+  }
+
+  private static void write(File file, List<String> lines, Charset encoding) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(toBytes(lines, encoding));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    byte[] buffer = new byte[1024];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -16,12 +16,21 @@
 
 package org.gbif.utils.file.csv;
 
+import org.gbif.utils.file.CharsetDetection;
 import org.gbif.utils.file.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -32,6 +41,9 @@ import static org.junit.Assert.assertTrue;
  */
 public class CSVReaderFactoryTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void detectCsvAlwaysQuoted() throws IOException {
     File source = FileUtils.getClasspathFile("csv/csv_always_quoted.csv");
@@ -130,4 +142,136 @@ public class CSVReaderFactoryTest {
     }
   }
 
+  /**
+   * Detecting the delimiter and quote on a single sample of the file gives the results of reading the file with a new
+   * reader for every candidate, as it was done before, for all test files and generated ones.
+   */
+  @Test
+  public void testExtractCsvMetadataRegression() throws IOException {
+    List<File> corpus = new ArrayList<File>();
+    for (String dir : new String[] {"csv", "tabular", "sorting", "charsets"}) {
+      corpus.addAll(org.apache.commons.io.FileUtils.listFiles(FileUtils.getClasspathFile(dir), null, true));
+    }
+    Random random = new Random(17);
+    String[] pieces = {"a", "1", " ", ",", ";", "\t", "|", "\"", "'", "\"x\"", "'y'", "#"};
+    for (int i = 0; i < 500; i++) {
+      StringBuilder sb = new StringBuilder();
+      int lines = random.nextInt(30);
+      for (int l = 0; l < lines; l++) {
+        if (random.nextInt(5) > 0) {
+          int length = random.nextInt(6);
+          for (int p = 0; p < length; p++) {
+            sb.append(pieces[random.nextInt(pieces.length)]);
+          }
+        }
+        sb.append(random.nextBoolean() ? "\n" : "\r\n");
+      }
+      File file = folder.newFile();
+      Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+      corpus.add(file);
+    }
+
+    for (File file : corpus) {
+      String encoding = CharsetDetection.detectEncoding(file, 16384).displayName();
+      String expected = describe(file, encoding, true);
+      assertEquals(file.getName(), expected, describe(file, encoding, false));
+      if (!expected.startsWith("UnknownDelimitersException")) {
+        try (CSVReader reader = CSVReaderFactory.build(file)) {
+          assertEquals(file.getName(), expected, reader.delimiter + ' ' + reader.quoteChar);
+        }
+      }
+    }
+  }
+
+  private static String describe(File file, String encoding, boolean legacy) {
+    try {
+      CSVReaderFactory.CSVMetadata meta = legacy ? legacyCsvMetadata(file, encoding)
+        : CSVReaderFactory.extractCsvMetadata(file, encoding);
+      return meta.getDelimiter() + ' ' + meta.getQuotedBy();
+    } catch (UnknownDelimitersException e) {
+      return "UnknownDelimitersException";
+    }
+  }
+
+  /**
+   * The detection as it was, opening a reader for every candidate.
+   */
+  private static CSVReaderFactory.CSVMetadata legacyCsvMetadata(File source, String encoding)
+    throws UnknownDelimitersException {
+    CSVReaderFactory.CSVMetadata csvMetadata = new CSVReaderFactory.CSVMetadata();
+    int maxColumns = 0;
+    for (String delim : new String[] {",", "\t", ";", "|"}) {
+      List<Character> potentialQuotes = new ArrayList<Character>();
+      try (CSVReader reader = new CSVReader(source, encoding, delim, null, 1)) {
+        Character firstChar = legacyLikelyQuoteChar(reader);
+        if (firstChar != null) {
+          potentialQuotes.add(firstChar);
+        }
+      } catch (IOException ignored) {
+      }
+      if (delim.equals(",")) {
+        potentialQuotes.addAll(Arrays.asList('"', '\'', null));
+      } else {
+        potentialQuotes.addAll(Arrays.asList(null, '"', '\''));
+      }
+      for (Character quote : potentialQuotes) {
+        try (CSVReader reader = new CSVReader(source, encoding, delim, quote, 0)) {
+          int x = legacyConsistentRowSize(reader);
+          if (x > maxColumns) {
+            csvMetadata.setDelimiter(delim);
+            csvMetadata.setQuotedBy(quote);
+            maxColumns = x;
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    }
+    if (maxColumns < 1) {
+      throw new UnknownDelimitersException("Unable to detect field delimiter");
+    }
+    return csvMetadata;
+  }
+
+  private static int legacyConsistentRowSize(CSVReader reader) {
+    int rowNum = 0;
+    int columns = 0;
+    boolean plusMinusOne = false;
+    while (reader.hasNext() && rowNum < 10) {
+      String[] row = reader.next();
+      if (rowNum == 0) {
+        columns = row.length;
+      }
+      if (Math.abs(columns - row.length) > 1) {
+        return -1;
+      }
+      if (columns != row.length) {
+        plusMinusOne = true;
+      }
+      rowNum++;
+    }
+    return plusMinusOne ? columns - 2 : columns;
+  }
+
+  private static Character legacyLikelyQuoteChar(CSVReader reader) {
+    Character quote = null;
+    int line = 0;
+    while (reader.hasNext() && line < 10) {
+      line++;
+      for (String col : reader.next()) {
+        if (col.length() > 1 && col.charAt(0) == col.charAt(col.length() - 1)) {
+          char potQuote = col.charAt(0);
+          if (Character.isLetterOrDigit(potQuote)) {
+            break;
+          }
+          if (quote == null) {
+            quote = potQuote;
+          } else if (!quote.equals(potQuote)) {
+            quote = null;
+            break;
+          }
+        }
+      }
+    }
+    return quote;
+  }
 }
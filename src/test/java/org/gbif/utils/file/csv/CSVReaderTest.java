@@ -21,15 +21,25 @@ import org.gbif.utils.file.FileUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.common.base.Charsets;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  *
@@ -182,6 +192,153 @@ public class CSVReaderTest {
     assertTrue(reader.getEmptyLines().contains(12));
   }
 
+  /**
+   * Rows are located by their byte offsets, and a reader reopened at the offset of a row continues from there.
+   */
+  @Test
+  public void testRowOffsetsAndReopen() throws IOException {
+    String text = "id,name\r\n1,Abies alba\r\n\r\n2,\"Puma, concolor\"\n3,Ærø\n\n\n4,😀\r\n5,last";
+    File csv = File.createTempFile("offsets", ".csv");
+    csv.deleteOnExit();
+    Files.write(csv.toPath(), text.getBytes(Charsets.UTF_8));
+
+    List<String[]> rows = new ArrayList<String[]>();
+    List<Long> offsets = new ArrayList<Long>();
+    List<Long> lineNumbers = new ArrayList<Long>();
+    try (CSVReader reader = new CSVReader(csv, UTF8, ",", '"', 1)) {
+      assertEquals(-1, reader.currRowOffset());
+      while (reader.hasNext()) {
+        offsets.add(reader.nextRowOffset());
+        lineNumbers.add(reader.currLineNumber());
+        String[] row = reader.next();
+        rows.add(row);
+        assertEquals((long) offsets.get(offsets.size() - 1), reader.currRowOffset());
+        String prefix = text.substring(0, text.indexOf(row[0] + ',' + (row[1].contains(",") ? "\"" : "")));
+        assertEquals(prefix.getBytes(Charsets.UTF_8).length, reader.currRowOffset());
+      }
+      assertEquals(text.getBytes(Charsets.UTF_8).length, reader.nextRowOffset());
+      assertEquals(5, reader.getReadRows());
+      assertEquals(8, reader.currLineNumber());
+    }
+
+    for (int i = 0; i < rows.size(); i++) {
+      try (CSVReader reader = CSVReader.reopen(csv, UTF8, ",", '"', 1, offsets.get(i), lineNumbers.get(i))) {
+        assertArrayEquals(new String[] {"id", "name"}, reader.getHeader());
+        for (int j = i; j < rows.size(); j++) {
+          assertEquals((long) offsets.get(j), reader.nextRowOffset());
+          assertArrayEquals(rows.get(j), reader.next());
+        }
+        assertFalse(reader.hasNext());
+        assertEquals(8, reader.currLineNumber());
+        if (i <= 2) {
+          assertTrue(reader.getEmptyLines().contains(6));
+        }
+      }
+    }
+  }
+
+  /**
+   * The bytes of malformed input are unknown once decoded, so the offsets after it are unknown and cannot be reopened.
+   */
+  @Test
+  public void testRowOffsetsAfterMalformedInput() throws IOException {
+    byte[] head = "id,name\n1,Abies alba\n2,".getBytes(Charsets.UTF_8);
+    byte[] tail = "rø\n3,Puma concolor\n".getBytes(Charsets.ISO_8859_1);
+    File csv = File.createTempFile("malformed", ".csv");
+    csv.deleteOnExit();
+    try (OutputStream out = new FileOutputStream(csv)) {
+      out.write(head);
+      out.write(tail);
+    }
+
+    try (CSVReader reader = new CSVReader(csv, UTF8, ",", '"', 1)) {
+      assertEquals(8, reader.nextRowOffset());
+      assertArrayEquals(new String[] {"1", "Abies alba"}, reader.next());
+      assertEquals(8, reader.currRowOffset());
+      assertEquals(21, reader.nextRowOffset());
+      assertArrayEquals(new String[] {"2", "r\uFFFD"}, reader.next());
+      assertEquals(21, reader.currRowOffset());
+      assertEquals(-1, reader.nextRowOffset());
+      assertArrayEquals(new String[] {"3", "Puma concolor"}, reader.next());
+      assertEquals(-1, reader.currRowOffset());
+    }
+
+    try (CSVReader reader = CSVReader.reopen(csv, UTF8, ",", '"', 1, 21, 2)) {
+      assertArrayEquals(new String[] {"2", "r\uFFFD"}, reader.next());
+      assertArrayEquals(new String[] {"3", "Puma concolor"}, reader.next());
+    }
+    try {
+      CSVReader.reopen(csv, UTF8, ",", '"', 1, -1, 3);
+      fail("Reopened at an unknown offset");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * A UTF-16 byte order mark is counted in the offsets, and a reader reopened after it keeps its byte order.
+   */
+  @Test
+  public void testRowOffsetsWithByteOrderMark() throws IOException {
+    String text = "id,name\n1,Abies alba\n2,Ærø\n3,😀\n";
+    for (Charset charset : new Charset[] {StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE}) {
+      File csv = File.createTempFile("bom", ".csv");
+      csv.deleteOnExit();
+      Files.write(csv.toPath(), ("\uFEFF" + text).getBytes(charset));
+
+      List<String[]> rows = new ArrayList<String[]>();
+      List<Long> offsets = new ArrayList<Long>();
+      try (CSVReader reader = new CSVReader(csv, "UTF-16", ",", '"', 1)) {
+        while (reader.hasNext()) {
+          offsets.add(reader.nextRowOffset());
+          String[] row = reader.next();
+          rows.add(row);
+          String prefix = "\uFEFF" + text.substring(0, text.indexOf(row[0] + ','));
+          assertEquals(charset.name(), prefix.getBytes(charset).length, reader.currRowOffset());
+        }
+        assertEquals(charset.name(), ("\uFEFF" + text).getBytes(charset).length, reader.nextRowOffset());
+      }
+      assertEquals(3, rows.size());
+
+      for (int i = 0; i < rows.size(); i++) {
+        try (CSVReader reader = CSVReader.reopen(csv, "UTF-16", ",", '"', 1, offsets.get(i), i + 1)) {
+          for (int j = i; j < rows.size(); j++) {
+            assertArrayEquals(charset.name(), rows.get(j), reader.next());
+          }
+          assertFalse(reader.hasNext());
+        }
+      }
+    }
+  }
+
+  /**
+   * Only the line numbers of the first empty lines are kept, all are counted.
+   */
+  @Test
+  public void testEmptyLineLimit() throws IOException {
+    String rows = "id\n1\n\n2\n\n\n3\n\n";
+    InputStream stream = new ByteArrayInputStream(rows.getBytes(Charsets.UTF_8));
+    try (CSVReader reader = new CSVReader(stream, UTF8, ",", '"', 1, 2)) {
+      int count = 0;
+      while (reader.hasNext()) {
+        reader.next();
+        count++;
+      }
+      assertEquals(3, count);
+      assertArrayEquals(new Integer[] {3, 5}, reader.getEmptyLines().toArray(new Integer[0]));
+      assertEquals(4, reader.getEmptyLineCount());
+    }
+
+    stream = new ByteArrayInputStream(rows.getBytes(Charsets.UTF_8));
+    try (CSVReader reader = new CSVReader(stream, UTF8, ",", '"', 1, 0)) {
+      while (reader.hasNext()) {
+        reader.next();
+      }
+      assertTrue(reader.getEmptyLines().isEmpty());
+      assertEquals(4, reader.getEmptyLineCount());
+    }
+  }
+
   /**
    * Testing classic non quoted tab files with escaped \t tabs.
    */
@@ -222,4 +379,108 @@ public class CSVReaderTest {
     reader.close();
   }
 
+  /**
+   * The reused row views must hold the same columns as the string arrays, for all rows.
+   */
+  @Test
+  public void testNextRow() throws IOException {
+    for (String file : new String[] {"csv/csv_always_quoted.csv", "csv/csv_optional_quotes_excel2008.csv",
+      "csv/csv_json_escaped_quotes.csv", "csv/iucn100.csv"}) {
+      File csv = FileUtils.getClasspathFile(file);
+      try (CSVReader arrays = new CSVReader(csv, UTF8, ",", '"', 1);
+           CSVReader views = new CSVReader(csv, UTF8, ",", '"', 1)) {
+        while (arrays.hasNext()) {
+          assertTrue(views.hasNext());
+          String[] expected = arrays.next();
+          CSVRow row = views.nextRow();
+          assertArrayEquals(expected, row.toArray());
+          for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], row.get(i).toString());
+            assertEquals(expected[i].length(), row.get(i).length());
+            assertEquals(expected[i].isEmpty(), row.isEmpty(i));
+          }
+        }
+        assertFalse(views.hasNext());
+        assertNull(views.nextRow());
+      }
+    }
+  }
+
+  @Test
+  public void testNextRowNumbers() throws IOException {
+    String rows = "id,count,lat\n"
+                  + "1,120,-0.25864171259110291\n"
+                  + "\"2\",\"-7\",\"51.5\"\n"
+                  + "3,,1e3\n";
+    InputStream stream = new ByteArrayInputStream(rows.getBytes(Charsets.UTF_8));
+    try (CSVReader reader = new CSVReader(stream, UTF8, ",", '"', 1)) {
+      CSVRow row = reader.nextRow();
+      assertEquals(1, row.getInt(0));
+      assertEquals(120L, row.getLong(1));
+      assertEquals(-0.25864171259110291d, row.getDouble(2), 0d);
+
+      row = reader.nextRow();
+      assertEquals(3, row.size());
+      assertEquals(2, row.getInt(0));
+      assertEquals(-7, row.getInt(1));
+      assertEquals(51.5d, row.getDouble(2), 0d);
+
+      row = reader.nextRow();
+      assertTrue(row.isEmpty(1));
+      assertEquals("", row.getString(1));
+      assertEquals(1000d, row.getDouble(2), 0d);
+      try {
+        row.getInt(1);
+        fail("An empty column is not a number");
+      } catch (NumberFormatException e) {
+        // expected
+      }
+      assertNull(reader.nextRow());
+    }
+  }
+
+  @Test
+  public void testProjection() throws IOException {
+    File csv = FileUtils.getClasspathFile("csv/csv_always_quoted.csv");
+    try (CSVReader reader = new CSVReader(csv, UTF8, ",", '"', 1)) {
+      reader.setProjectionByName("locality", "ID", "decimalLatitude");
+      assertEquals("ID", reader.getHeader()[0]);
+
+      String[] rec = reader.next();
+      assertArrayEquals(new String[] {"BRAMPTON WOOD", "8728372", "52.31635664254722"}, rec);
+
+      CSVRow row = reader.nextRow();
+      assertEquals(3, row.size());
+      assertEquals("Martins Wood, Ightham", row.getString(0));
+      assertEquals(18728553, row.getInt(1));
+      assertEquals(51.26778632066396d, row.getDouble(2), 0d);
+      assertNull(reader.next());
+    }
+
+    String rows = "a,b,c\n"
+                  + "1,2\n"
+                  + "\"x,\"\"y\"\"\",5,6,7\n";
+    InputStream stream = new ByteArrayInputStream(rows.getBytes(Charsets.UTF_8));
+    try (CSVReader reader = new CSVReader(stream, UTF8, ",", '"', 1)) {
+      reader.setProjection(2, 0);
+      CSVRow row = reader.nextRow();
+      assertEquals(2, row.size());
+      // the row has no third column
+      assertNull(row.get(0));
+      assertNull(row.getString(0));
+      assertTrue(row.isEmpty(0));
+      assertEquals(1, row.getInt(1));
+
+      reader.setProjection();
+      assertArrayEquals(new String[] {"x,\"y\"", "5", "6", "7"}, reader.next());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testProjectionUnknownColumn() throws IOException {
+    File csv = FileUtils.getClasspathFile("csv/csv_always_quoted.csv");
+    try (CSVReader reader = new CSVReader(csv, UTF8, ",", '"', 1)) {
+      reader.setProjectionByName("ID", "kingdom");
+    }
+  }
 }
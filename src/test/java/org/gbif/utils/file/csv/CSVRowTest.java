@@ -0,0 +1,127 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the in place number parsing of a row with the JDK parsers.
+ */
+public class CSVRowTest {
+
+  private static final String[] NUMBERS = {"0", "-0", "+0", "1", "-1", "+1", "007", "2147483647", "2147483648",
+    "-2147483648", "-2147483649", "9223372036854775807", "9223372036854775808", "-9223372036854775808",
+    "-9223372036854775809", "99999999999999999999", "", "-", "+", "1-", "--1", "1.5", "1e3", " 1", "1 ", "a",
+    "١٢", ".5", "5.", ".", "-.5", "1.2.3", "1e", "1e+", "1e-3", "1E22", "1e23", "1e-22", "1e-23",
+    "0.1", "0.30000000000000004", "123456789012345", "1234567890123456", "1.7976931348623157E308", "4.9e-324",
+    "1e400", "NaN", "-Infinity", "0x1p3", "1d", "2.5f", "0.000", "-0.0e5", "000000000000000000001.5"};
+
+  @Test
+  public void testExamples() {
+    for (String number : NUMBERS) {
+      assertNumbers(number);
+    }
+  }
+
+  @Test
+  public void testRandomDecimals() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      StringBuilder sb = new StringBuilder();
+      if (random.nextInt(4) == 0) {
+        sb.append('-');
+      }
+      int digits = 1 + random.nextInt(20);
+      int point = random.nextInt(digits + 1);
+      for (int d = 0; d < digits; d++) {
+        if (d == point) {
+          sb.append('.');
+        }
+        sb.append((char) ('0' + random.nextInt(10)));
+      }
+      if (random.nextInt(4) == 0) {
+        sb.append('e').append(random.nextInt(60) - 30);
+      }
+      assertNumbers(sb.toString());
+      assertNumbers(Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20)));
+      assertNumbers(Long.toString(random.nextLong() >> random.nextInt(64)));
+    }
+  }
+
+  private static void assertNumbers(String value) {
+    CSVRow row = row(value);
+    assertEquals(value, row.get(1).toString());
+
+    Integer expectedInt = null;
+    try {
+      expectedInt = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      // not an int
+    }
+    try {
+      int actual = row.getInt(1);
+      assertEquals(value, expectedInt, Integer.valueOf(actual));
+    } catch (NumberFormatException e) {
+      assertEquals(value, null, expectedInt);
+    }
+
+    Long expectedLong = null;
+    try {
+      expectedLong = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      // not a long
+    }
+    try {
+      long actual = row.getLong(1);
+      assertEquals(value, expectedLong, Long.valueOf(actual));
+    } catch (NumberFormatException e) {
+      assertEquals(value, null, expectedLong);
+    }
+
+    Double expectedDouble = null;
+    try {
+      expectedDouble = Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      // not a double
+    }
+    try {
+      double actual = row.getDouble(1);
+      // compares the bits, distinguishing 0.0 and -0.0
+      assertEquals(value, expectedDouble, Double.valueOf(actual));
+    } catch (NumberFormatException e) {
+      assertEquals(value, null, expectedDouble);
+    }
+  }
+
+  /**
+   * @return a row with the value as the middle of three columns
+   */
+  private static CSVRow row(String value) {
+    CSVRow row = new CSVRow();
+    char[] chars = ("x," + value + ",y").toCharArray();
+    new RowTokenizer(",", null).split(chars, 0, chars.length, row);
+    if (row.size() != 3) {
+      fail("Test values must not contain delimiters: " + value);
+    }
+    return row;
+  }
+}
@@ -0,0 +1,232 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LineBufferTest {
+
+  @Test
+  public void testLineTerminators() throws IOException {
+    assertLines("");
+    assertLines("\n");
+    assertLines("a");
+    assertLines("a\nb\rc\r\nd");
+    assertLines("a\n\n\r\r\n\r\nb\n");
+    assertLines("\r\n\r");
+  }
+
+  /**
+   * Lines longer than the buffer and terminators split across reads, with a reader returning few chars at a time.
+   */
+  @Test
+  public void testSmallBuffer() throws IOException {
+    Random random = new Random(7);
+    String[] pieces = {"a", "bc", "\n", "\r", "\r\n", "défg", "😀"};
+    for (int i = 0; i < 500; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(40);
+      for (int p = 0; p < length; p++) {
+        sb.append(pieces[random.nextInt(pieces.length)]);
+      }
+      String text = sb.toString();
+      assertEquals(text, readLines(new BufferedReader(new StringReader(text))),
+        readLines(new LineBuffer(new TrickleReader(text, 1 + random.nextInt(3)), 2)));
+    }
+  }
+
+  /**
+   * Offsets are the ones of the encoded text, also with terminators split across reads.
+   */
+  @Test
+  public void testOffsets() throws IOException {
+    Random random = new Random(5);
+    String[] pieces = {"a", "bc", "\n", "\r", "\r\n", "défg", "😀", "€"};
+    for (Charset encoding : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.UTF_16LE,
+      Charset.forName("windows-1252"), Charset.forName("Shift_JIS")}) {
+      for (int i = 0; i < 200; i++) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(40);
+        for (int p = 0; p < length; p++) {
+          String piece = pieces[random.nextInt(pieces.length)];
+          sb.append(encoding.newEncoder().canEncode(piece) ? piece : "x");
+        }
+        String text = sb.toString();
+        LineBuffer lines = new LineBuffer(new TrickleReader(text, 1 + random.nextInt(3)), 2, encoding, 10);
+        for (int start : lineStarts(text)) {
+          assertTrue(lines.nextLine());
+          assertEquals(text, 10 + text.substring(0, start).getBytes(encoding).length, lines.offset());
+        }
+        assertFalse(lines.nextLine());
+        assertEquals(text, 10 + text.getBytes(encoding).length, lines.nextOffset());
+      }
+    }
+  }
+
+  /**
+   * Decoded from the bytes, the offsets include a UTF-16 byte order mark and are unknown after malformed input.
+   */
+  @Test
+  public void testDecodedOffsets() throws IOException {
+    String text = "a😀\nbc\r\n€😀😀\rdéfg\n😀";
+    byte[] bom = "\uFEFF".getBytes(StandardCharsets.UTF_16LE);
+    byte[] bytes = concat(bom, text.getBytes(StandardCharsets.UTF_16LE));
+    DecodingReader decoder = new DecodingReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_16);
+    LineBuffer lines = new LineBuffer(decoder, 2, 0);
+    for (int start : lineStarts(text)) {
+      assertTrue(lines.nextLine());
+      assertEquals(2 + text.substring(0, start).getBytes(StandardCharsets.UTF_16LE).length, lines.offset());
+    }
+    assertFalse(lines.nextLine());
+    assertEquals(bytes.length, lines.nextOffset());
+
+    bytes = concat(text.getBytes(StandardCharsets.UTF_8), new byte[] {(byte) 0xFF, '\n', 'x'});
+    lines = new LineBuffer(new DecodingReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8), 2, 0);
+    for (int start : lineStarts(text)) {
+      assertTrue(lines.nextLine());
+      assertEquals(text.substring(0, start).getBytes(StandardCharsets.UTF_8).length, lines.offset());
+    }
+    assertEquals("😀\uFFFD", lines.line());
+    assertTrue(lines.nextLine());
+    assertEquals("x", lines.line());
+    assertEquals(-1, lines.offset());
+    assertFalse(lines.nextLine());
+    assertEquals(-1, lines.nextOffset());
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, bytes, first.length, second.length);
+    return bytes;
+  }
+
+  /**
+   * @return the index of the first char of every line
+   */
+  private static List<Integer> lineStarts(String text) {
+    List<Integer> starts = new ArrayList<Integer>();
+    int start = 0;
+    while (start < text.length()) {
+      starts.add(start);
+      int i = start;
+      while (i < text.length() && text.charAt(i) != '\n' && text.charAt(i) != '\r') {
+        i++;
+      }
+      if (i < text.length() - 1 && text.charAt(i) == '\r' && text.charAt(i + 1) == '\n') {
+        i++;
+      }
+      start = i + 1;
+    }
+    return starts;
+  }
+
+  /**
+   * The current line is kept when reading the next one fails.
+   */
+  @Test
+  public void testLineKeptOnError() throws IOException {
+    LineBuffer lines = new LineBuffer(new TrickleReader("first\nsecond", 3) {
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+        int read = super.read(cbuf, off, len);
+        if (read < 0) {
+          throw new IOException("failed");
+        }
+        return read;
+      }
+    }, 4);
+    assertTrue(lines.nextLine());
+    assertEquals("first", lines.line());
+    try {
+      lines.nextLine();
+    } catch (IOException e) {
+      assertEquals("first", lines.line());
+      return;
+    }
+    fail("Expected an exception");
+  }
+
+  private static void assertLines(String text) throws IOException {
+    assertEquals(readLines(new BufferedReader(new StringReader(text))),
+      readLines(new LineBuffer(new StringReader(text))));
+  }
+
+  private static List<String> readLines(BufferedReader reader) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  private static List<String> readLines(LineBuffer buffer) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    while (buffer.nextLine()) {
+      assertEquals(buffer.length(), buffer.end() - buffer.start());
+      lines.add(buffer.line());
+    }
+    return lines;
+  }
+
+  /**
+   * Returns at most a few chars per read.
+   */
+  private static class TrickleReader extends Reader {
+
+    private final String text;
+    private final int max;
+    private int pos;
+
+    private TrickleReader(String text, int max) {
+      this.text = text;
+      this.max = max;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if (pos == text.length()) {
+        return -1;
+      }
+      int n = Math.min(Math.min(len, max), text.length() - pos);
+      text.getChars(pos, pos + n, cbuf, off);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import org.gbif.utils.file.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedCSVReaderTest {
+
+  private static final String UTF8 = StandardCharsets.UTF_8.name();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Files without quoted newlines or lines ending in \r only are read like the CSVReader does, also with windows
+   * smaller than a row.
+   */
+  @Test
+  public void testSameAsCSVReader() throws IOException {
+    String[][] files = {{"csv/csv_always_quoted.csv", ","}, {"csv/csv_escaped_quotes.csv", ","},
+      {"csv/csv_json_escaped_quotes.csv", ","}, {"csv/iucn100.csv", ","}, {"csv/ipni.tab.txt", "\t"}};
+    for (String[] file : files) {
+      File csv = FileUtils.getClasspathFile(file[0]);
+      Character quote = file[1].equals(",") ? '"' : null;
+      for (int windowSize : new int[] {1, 100, RecordScanner.WINDOW_SIZE}) {
+        try (CSVReader expected = new CSVReader(csv, UTF8, file[1], quote, 1);
+             MappedCSVReader reader = new MappedCSVReader(csv, UTF8, file[1], quote, 1, windowSize)) {
+          assertArrayEquals(expected.getHeader(), reader.getHeader());
+          while (expected.hasNext()) {
+            assertTrue(reader.hasNext());
+            assertArrayEquals(file[0], expected.next(), reader.next());
+          }
+          assertFalse(reader.hasNext());
+          assertNull(reader.next());
+          assertEquals(expected.getReadRows(), reader.getReadRows());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testQuotedNewlinesAndProjection() throws IOException {
+    File file = folder.newFile("header.csv");
+    Files.write(file.toPath(), ("id,name,remarks\r\n"
+                                + "1,Abies alba,\"first\nsecond\"\r\n"
+                                + "\r\n"
+                                + "2,\"Puma, concolor\",\r\n"
+                                + "3").getBytes(StandardCharsets.UTF_8));
+    try (MappedCSVReader reader = new MappedCSVReader(file, UTF8, ",", '"', 1, 8)) {
+      assertArrayEquals(new String[] {"id", "name", "remarks"}, reader.getHeader());
+      assertArrayEquals(new String[] {"1", "Abies alba", "first\nsecond"}, reader.next());
+      assertArrayEquals(new String[] {"2", "Puma, concolor", ""}, reader.next());
+      assertArrayEquals(new String[] {"3"}, reader.next());
+      assertFalse(reader.hasNext());
+      assertEquals(4, reader.currLineNumber());
+    }
+
+    try (MappedCSVReader reader = new MappedCSVReader(file, UTF8, ",", '"', 1)) {
+      reader.setProjectionByName("remarks", "id");
+      CSVRow row = reader.nextRow();
+      assertEquals("first\nsecond", row.getString(0));
+      assertEquals(1, row.getInt(1));
+      row = reader.nextRow();
+      assertTrue(row.isEmpty(0));
+      assertEquals(2, row.getLong(1));
+      row = reader.nextRow();
+      assertNull(row.get(0));
+      assertEquals("3", row.get(1).toString());
+      assertNull(reader.nextRow());
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    try (MappedCSVReader reader = new MappedCSVReader(folder.newFile("empty.csv"), UTF8, ",", '"', 1)) {
+      assertNull(reader.getHeader());
+      assertFalse(reader.hasNext());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedEncoding() throws IOException {
+    new MappedCSVReader(folder.newFile("empty.csv"), "UTF-16", ",", '"', 0).close();
+  }
+}
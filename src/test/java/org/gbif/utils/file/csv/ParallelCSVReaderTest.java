@@ -0,0 +1,204 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reads generated files with quoted newlines in chunks small enough for rows to cross many chunk offsets.
+ */
+public class ParallelCSVReaderTest {
+
+  private static final String[] PIECES = {"a", "b", "é", "😀", " ", ",", "\t", "\n", "\r\n", "\"", "\"\"", "'"};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testQuotedNewlines() throws IOException {
+    Random random = new Random(7);
+    for (Character quote : new Character[] {'"', '\''}) {
+      for (String delimiter : new String[] {",", "\t"}) {
+        List<String[]> rows = randomRows(random, 2000, quote, delimiter.charAt(0));
+        File file = write(rows, quote, delimiter.charAt(0), StandardCharsets.UTF_8);
+        for (long chunkSize : new long[] {1, 17, 300, 4096, ParallelCSVReader.DEFAULT_CHUNK_SIZE}) {
+          for (boolean mapped : new boolean[] {false, true}) {
+            ParallelCSVReader reader = new ParallelCSVReader(file, "UTF-8", delimiter, quote, 0);
+            reader.setChunkSize(chunkSize);
+            reader.setMemoryMapped(mapped);
+            assertRows(rows, reader);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLatin1() throws IOException {
+    List<String[]> rows = randomRows(new Random(3), 500, '"', ';');
+    for (String[] row : rows) {
+      for (int i = 0; i < row.length; i++) {
+        row[i] = row[i].replace("😀", "ø");
+      }
+    }
+    File file = write(rows, '"', ';', StandardCharsets.ISO_8859_1);
+    ParallelCSVReader reader = new ParallelCSVReader(file, "ISO-8859-1", ";", '"', 0);
+    reader.setChunkSize(64);
+    assertRows(rows, reader);
+  }
+
+  @Test
+  public void testHeaderAndProjection() throws IOException {
+    File file = folder.newFile("header.csv");
+    Files.write(file.toPath(), ("id,name,remarks\r\n"
+                                + "comment\r\n"
+                                + "1,Abies alba,\"first\nsecond\"\r\n"
+                                + "\r\n"
+                                + "2,\"Puma, concolor\",\r\n"
+                                + "3").getBytes(StandardCharsets.UTF_8));
+    ParallelCSVReader reader = new ParallelCSVReader(file, "UTF-8", ",", '"', 2);
+    reader.setChunkSize(5);
+    assertArrayEquals(new String[] {"id", "name", "remarks"}, reader.getHeader());
+    List<String[]> expected = new ArrayList<String[]>();
+    expected.add(new String[] {"1", "Abies alba", "first\nsecond"});
+    expected.add(new String[] {"2", "Puma, concolor", ""});
+    expected.add(new String[] {"3"});
+    assertRows(expected, reader);
+
+    reader.setProjectionByName("remarks", "id");
+    expected.clear();
+    expected.add(new String[] {"first\nsecond", "1"});
+    expected.add(new String[] {"", "2"});
+    expected.add(new String[] {null, "3"});
+    assertRows(expected, reader);
+  }
+
+  @Test
+  public void testWithoutQuotes() throws IOException {
+    File file = folder.newFile("unquoted.tab");
+    StringBuilder sb = new StringBuilder();
+    List<String[]> expected = new ArrayList<String[]>();
+    for (int i = 0; i < 1000; i++) {
+      String[] row = {String.valueOf(i), "\"" + i, "x\"y"};
+      expected.add(row);
+      sb.append(String.join("\t", row)).append('\n');
+    }
+    Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    ParallelCSVReader reader = new ParallelCSVReader(file, "UTF-8", "\t", null, 0);
+    reader.setChunkSize(100);
+    assertRows(expected, reader);
+    try (Stream<String[]> rows = reader.rows()) {
+      assertEquals(1000, rows.count());
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    File file = folder.newFile("empty.csv");
+    ParallelCSVReader reader = new ParallelCSVReader(file, "UTF-8", ",", '"', 1);
+    assertNull(reader.getHeader());
+    assertRows(new ArrayList<String[]>(), reader);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMultiCharacterDelimiter() throws IOException {
+    new ParallelCSVReader(folder.newFile("empty.csv"), "UTF-8", ";;", '"', 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedEncoding() throws IOException {
+    new ParallelCSVReader(folder.newFile("empty.csv"), "UTF-16", ",", '"', 0).rows().close();
+  }
+
+  private static void assertRows(List<String[]> expected, ParallelCSVReader reader) throws IOException {
+    List<String[]> actual;
+    try (Stream<String[]> rows = reader.rows()) {
+      actual = rows.collect(Collectors.toList());
+    }
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals("Row " + i + " with chunk size " + reader.getChunkSize(), expected.get(i), actual.get(i));
+    }
+  }
+
+  /**
+   * @return rows of at least two columns, which are never empty
+   */
+  private static List<String[]> randomRows(Random random, int count, char quote, char delimiter) {
+    List<String[]> rows = new ArrayList<String[]>();
+    for (int r = 0; r < count; r++) {
+      String[] row = new String[2 + random.nextInt(4)];
+      for (int c = 0; c < row.length; c++) {
+        StringBuilder sb = new StringBuilder();
+        int pieces = random.nextInt(random.nextInt(10) == 0 ? 200 : 6);
+        for (int p = 0; p < pieces; p++) {
+          String piece = PIECES[random.nextInt(PIECES.length)];
+          sb.append(piece.replace('"', quote).replace(',', delimiter));
+        }
+        row[c] = sb.toString();
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * Writes the rows, quoting columns that need to be quoted and some others.
+   */
+  private File write(List<String[]> rows, char quote, char delimiter, Charset encoding) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String[] row : rows) {
+      for (int c = 0; c < row.length; c++) {
+        if (c > 0) {
+          sb.append(delimiter);
+        }
+        String value = row[c];
+        boolean needsQuotes = value.indexOf(delimiter) >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0
+                              || value.startsWith(String.valueOf(quote));
+        if (needsQuotes || value.hashCode() % 3 == 0) {
+          String escaped = value.replace(String.valueOf(quote), String.valueOf(quote) + quote);
+          sb.append(quote).append(escaped).append(quote);
+        } else {
+          // quotes within unquoted columns are regular characters
+          sb.append(value);
+        }
+      }
+      sb.append(sb.length() % 2 == 0 ? "\n" : "\r\n");
+    }
+    File file = folder.newFile();
+    Files.write(file.toPath(), sb.toString().getBytes(encoding));
+    return file;
+  }
+}
@@ -0,0 +1,134 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordScannerTest {
+
+  // overlong, surrogates, truncated and invalid lead bytes
+  private static final byte[][] MALFORMED = {
+    {(byte) 0xc0, (byte) 0x80}, {(byte) 0xc1, (byte) 0xbf}, {(byte) 0xe0, (byte) 0x80, (byte) 0x80},
+    {(byte) 0xed, (byte) 0xa0, (byte) 0x80}, {(byte) 0xe2, (byte) 0x82}, {(byte) 0xf0, (byte) 0x9f},
+    {(byte) 0xf8, (byte) 0x88, (byte) 0x80, (byte) 0x80, (byte) 0x80}, {(byte) 0xff}};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Columns are decoded like an InputStreamReader does, replacing malformed input.
+   */
+  @Test
+  public void testDecoding() throws IOException {
+    Random random = new Random(11);
+    for (Charset encoding : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+      for (int r = 0; r < 1000; r++) {
+        byte[] bytes = randomBytes(random);
+        File file = folder.newFile();
+        Files.write(file.toPath(), bytes);
+        String expected = new String(bytes, encoding);
+        if (expected.endsWith("\r")) {
+          expected = expected.substring(0, expected.length() - 1);
+        }
+        String[] columns = expected.isEmpty() ? new String[0] : expected.split("\t", -1);
+        for (boolean mapped : new boolean[] {false, true}) {
+          try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            RecordScanner scanner = new RecordScanner(channel, '\t', null, encoding, mapped, 7);
+            scanner.seek(0, RecordScanner.RECORD_START);
+            if (bytes.length > 0) {
+              assertTrue(scanner.nextRecord());
+              CSVRow row = new CSVRow();
+              scanner.split(row, null, Integer.MAX_VALUE);
+              assertArrayEquals(columns, row.toArray());
+            }
+            assertFalse(scanner.nextRecord());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Mapped windows are moved along the file and grown for records that do not fit.
+   */
+  @Test
+  public void testMappedWindows() throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      content.append(i).append(",\"").append(StringUtils.repeat('x', i)).append("\n\"\"\"\n");
+    }
+    File file = folder.newFile();
+    Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      RecordScanner scanner = new RecordScanner(channel, ',', '"', StandardCharsets.UTF_8, true, 16);
+      scanner.seek(0, RecordScanner.RECORD_START);
+      CSVRow row = new CSVRow();
+      for (int i = 0; i < 200; i++) {
+        assertTrue(scanner.nextRecord());
+        scanner.split(row, new int[] {1, 0, 2}, 2);
+        assertEquals(StringUtils.repeat('x', i) + "\n\"", row.getString(0));
+        assertEquals(i, row.getInt(1));
+        assertNull(row.getString(2));
+      }
+      assertFalse(scanner.nextRecord());
+    }
+  }
+
+  /**
+   * @return mostly valid UTF-8 with some malformed sequences, never a newline
+   */
+  private static byte[] randomBytes(Random random) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int length = random.nextInt(100);
+    for (int i = 0; i < length; i++) {
+      int kind = random.nextInt(20);
+      if (kind == 0) {
+        out.write(0x80 + random.nextInt(128));
+      } else if (kind == 1) {
+        byte[] malformed = MALFORMED[random.nextInt(MALFORMED.length)];
+        out.write(malformed, 0, malformed.length);
+      } else {
+        int codePoint = kind < 8 ? random.nextInt(128) : kind < 14 ? random.nextInt(0x800) : random.nextInt(0x110000);
+        if (codePoint == '\n' || Character.isSurrogate((char) codePoint) && codePoint < 0x10000) {
+          codePoint = 'n';
+        }
+        byte[] encoded = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+        out.write(encoded, 0, encoded.length);
+      }
+    }
+    return out.toByteArray();
+  }
+}
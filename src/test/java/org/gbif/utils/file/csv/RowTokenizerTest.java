@@ -0,0 +1,81 @@
+/***************************************************************************
+ * Copyright 2020 Global Biodiversity Information Facility Secretariat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+
+package org.gbif.utils.file.csv;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.text.StrTokenizer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares the row tokenizer with the commons-lang StrTokenizer previously used by the CSVReader.
+ */
+public class RowTokenizerTest {
+
+  private static final String[] PIECES = {"a", "b", "é", "😀", " ", ",", "\t", ";;", "\"", "\"\"", "'", "|"};
+
+  @Test
+  public void testExamples() {
+    assertTokens(",", '"', "");
+    assertTokens(",", '"', ",");
+    assertTokens(",", '"', "a,,b,");
+    assertTokens(",", '"', "\"a,b\",c");
+    assertTokens(",", '"', "a\"b,\"c\"d\"e,f\"");
+    assertTokens(",", '"', "\"unterminated,quote");
+    assertTokens(",", '"', "\"\"\"\",\"\"");
+    assertTokens(",", '"', "\"a\"b\"c,d\"e");
+    assertTokens(";;", '\'', "x;;'y;;z';;;;';;");
+    assertTokens(",", ',', "a,\"b\",,c");
+    assertTokens("\t", null, "a\t\"b\tc\"\t");
+    assertTokens("", '"', "a,b\"c");
+    assertTokens(null, '"', "\"a,b\"c");
+  }
+
+  @Test
+  public void testRandomRows() {
+    Random random = new Random(2020);
+    String[] delimiters = {",", "\t", ";;", "|"};
+    Character[] quotes = {'"', '\'', null};
+    for (int i = 0; i < 20000; i++) {
+      StringBuilder row = new StringBuilder();
+      int length = random.nextInt(20);
+      for (int p = 0; p < length; p++) {
+        row.append(PIECES[random.nextInt(PIECES.length)]);
+      }
+      assertTokens(delimiters[i % delimiters.length], quotes[i % quotes.length], row.toString());
+    }
+  }
+
+  private static void assertTokens(String delimiter, Character quote, String row) {
+    StrTokenizer expected = new StrTokenizer();
+    expected.setDelimiterString(delimiter);
+    if (quote != null) {
+      expected.setQuoteChar(quote);
+    }
+    expected.setIgnoreEmptyTokens(false);
+    expected.reset(row);
+
+    // the row within a larger buffer
+    char[] chars = ("xx" + row + "yy").toCharArray();
+    String[] actual = new RowTokenizer(delimiter, quote).tokenize(chars, 2, chars.length - 2);
+
+    assertArrayEquals("[" + row + "] delimited by [" + delimiter + "] quoted by " + quote, expected.getTokenArray(),
+      actual);
+  }
+}
@@ -20,14 +20,18 @@ import org.gbif.utils.file.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * Unit tests for {@link TabularDataFileReader}.
@@ -249,4 +253,26 @@ public class TabularDataFileReaderTest {
       assertEquals("{\"jKey\": \"jValue with \\\"quotes\\\"\"}", atom.get(1));
     }
   }
+
+  @Test
+  public void testProjection() throws IOException, ParseException {
+    File csv = FileUtils.getClasspathFile("csv/csv_always_quoted.csv");
+
+    try (TabularDataFileReader<List<String>> reader = TabularFiles.newProjectedTabularFileReaderByName(
+      TabularFiles.newTabularFileReader(Files.newBufferedReader(csv.toPath(), StandardCharsets.UTF_8), ',', true),
+      "locality", "ID")) {
+      assertEquals(Arrays.asList("locality", "ID"), reader.getHeaderLine());
+      assertEquals(Arrays.asList("BRAMPTON WOOD", "8728372"), reader.read());
+      assertEquals(Arrays.asList("Martins Wood, Ightham", "18728553"), reader.read());
+      assertNull(reader.read());
+      assertEquals(2, reader.getLastRecordNumber());
+    }
+
+    try (TabularDataFileReader<List<String>> reader = TabularFiles.newProjectedTabularFileReader(
+      TabularFiles.newTabularFileReader(new StringReader("1,2\n3\n"), ',', false), 1)) {
+      assertNull(reader.getHeaderLine());
+      assertEquals(Collections.singletonList("2"), reader.read());
+      assertEquals(Collections.singletonList(null), reader.read());
+    }
+  }
 }
@@ -16,106 +16,105 @@
 
 package org.gbif.utils.file.tabular;
 
+import org.gbif.utils.file.CharsetDetector;
 import org.gbif.utils.file.FileUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Assert;
 import org.junit.Test;
 
-import static org.gbif.utils.file.tabular.TabularFileMetadataExtractor.computeLineDelimiterStats;
+import static org.gbif.utils.file.tabular.TabularFileMetadataExtractor.countQuotedColumns;
 import static org.gbif.utils.file.tabular.TabularFileMetadataExtractor.extractTabularFileMetadata;
-import static org.gbif.utils.file.tabular.TabularFileMetadataExtractor.getDelimiterWithHighestCount;
 import static org.gbif.utils.file.tabular.TabularFileMetadataExtractor.getQuoteCharWithHighestCount;
 
 import static junit.framework.TestCase.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit tests related to {@link TabularFileMetadataExtractor}
  */
 public class TabularFileMetadataExtractorTest {
 
+  // the indexes of the potential delimiters
+  private static final int COMMA = indexOf(',');
+  private static final int TAB = indexOf('\t');
+  private static final int SEMICOLON = indexOf(';');
+  private static final int PIPE = indexOf('|');
+
   @Test
-  public void testComputeDelimiterFrequencySums() {
+  public void testDelimiterFrequencySums() {
     List<String> sample = new ArrayList<>();
     sample.add("ID\tName\tName2\tName3");
     sample.add("1\ta\tb\tc,1");
     sample.add("2\tc\td\te,2");
     sample.add("3\tf\tg\th,3");
 
-    List<TabularFileMetadataExtractor.LineDelimiterStats> linesStats =
-            computeLineDelimiterStats(sample);
-    Map<Character, Integer> delimiterFrequencySums = TabularFileMetadataExtractor.computeDelimiterFrequencySums(linesStats);
+    DelimiterFrequencies frequencies = frequencies(sample);
     // here, the delimiter that is used the most often is in fact the correct one
-    assertEquals(12, delimiterFrequencySums.get('\t').intValue());
-    assertEquals(3, delimiterFrequencySums.get(',').intValue());
+    assertEquals(12, frequencies.frequencySums()[TAB]);
+    assertEquals(3, frequencies.frequencySums()[COMMA]);
 
     //add a "noise" line to demonstrate the impact on this function
     sample.add("4\ti\tj\tk,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,4");
-    linesStats =
-            computeLineDelimiterStats(sample);
-    delimiterFrequencySums = TabularFileMetadataExtractor.computeDelimiterFrequencySums(linesStats);
+    frequencies = frequencies(sample);
     // here, the delimiter that is used the most often is the wrong one
-    assertEquals(15, delimiterFrequencySums.get('\t').intValue());
-    assertEquals(34, delimiterFrequencySums.get(',').intValue());
+    assertEquals(15, frequencies.frequencySums()[TAB]);
+    assertEquals(34, frequencies.frequencySums()[COMMA]);
   }
 
   @Test
-  public void testComputeDelimiterDistinctFrequency() {
+  public void testDelimiterDistinctFrequencies() {
     List<String> sample = new ArrayList<>();
     sample.add("ID\tName\tName2\tName3");
     sample.add("1\ta\tb\tc,1");
     sample.add("2\tc\td\te,2");
     sample.add("3\tf\tg\th,3");
 
-    List<TabularFileMetadataExtractor.LineDelimiterStats> linesStats =
-            computeLineDelimiterStats(sample);
-    Map<Character, Set<Integer>> delimiterDistinctFrequency = TabularFileMetadataExtractor.computeDelimiterDistinctFrequency(linesStats);
-
+    DelimiterFrequencies frequencies = frequencies(sample);
     // here, the delimiter with the most stable frequency is the correct one
-    assertEquals(1, delimiterDistinctFrequency.get('\t').size());
-    assertEquals(2, delimiterDistinctFrequency.get(',').size());
+    assertEquals(1, frequencies.distinctFrequencies()[TAB]);
+    assertEquals(2, frequencies.distinctFrequencies()[COMMA]);
 
     sample.add("4\ti\t\"j\t\"\tk,4");
     sample.add("5\tl\t\"m\t\t\"\tn,5");
-    linesStats =
-            computeLineDelimiterStats(sample);
-    delimiterDistinctFrequency = TabularFileMetadataExtractor.computeDelimiterDistinctFrequency(linesStats);
+    frequencies = frequencies(sample);
     // here, the delimiter that is the most stable is now the wrong one (because of the delimiter inside the quoted text)
-    assertEquals(3, delimiterDistinctFrequency.get('\t').size());
-    assertEquals(2, delimiterDistinctFrequency.get(',').size());
+    assertEquals(3, frequencies.distinctFrequencies()[TAB]);
+    assertEquals(2, frequencies.distinctFrequencies()[COMMA]);
   }
 
   @Test
-  public void testComputeDelimiterHighestFrequencyPerLine() {
+  public void testDelimiterHighestFrequencyLines() {
     List<String> sample = new ArrayList<>();
     sample.add("ID\tName\tName2\tName3");
     sample.add("1\ta\tb\tc,1");
     sample.add("2\tc\td\te,2");
     sample.add("3\tf\tg\th,3");
 
-    Map<Character, Long> delimiterDistinctFrequency = TabularFileMetadataExtractor.
-      computeDelimiterHighestFrequencyPerLine(sample);
+    DelimiterFrequencies frequencies = frequencies(sample);
+    assertEquals(4, frequencies.highestFrequencyLines()[TAB]);
+    assertEquals(0, frequencies.highestFrequencyLines()[COMMA]);
 
-    assertEquals(4, delimiterDistinctFrequency.get('\t').intValue());
-    assertNull(delimiterDistinctFrequency.get(','));
-
-    //this line alone won't have an impact on computeDelimiterHighestFrequencyPerLine result
+    //this line alone won't have an impact on the result
     sample.add("4\ti\tj\tk,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,4");
-    delimiterDistinctFrequency = TabularFileMetadataExtractor.
-            computeDelimiterHighestFrequencyPerLine(sample);
-    assertEquals(4, delimiterDistinctFrequency.get('\t').intValue());
-    assertEquals(1, delimiterDistinctFrequency.get(',').intValue());
+    frequencies = frequencies(sample);
+    assertEquals(4, frequencies.highestFrequencyLines()[TAB]);
+    assertEquals(1, frequencies.highestFrequencyLines()[COMMA]);
   }
 
   @Test
@@ -156,14 +155,14 @@ public class TabularFileMetadataExtractorTest {
   }
 
   @Test
-  public void testGetDelimiterWithHighestCount() {
+  public void testMostFrequentPerLine() {
     //no delimiter
-    assertFalse(getDelimiterWithHighestCount("there is no delimiter here").isPresent());
+    assertEquals(0, frequencies(Collections.singletonList("there is no delimiter here")).mostFrequentPerLine());
 
-    assertEquals(Character.valueOf(',').charValue(), getDelimiterWithHighestCount("a,b,c,d,e").get().charValue());
-    assertEquals(Character.valueOf('|').charValue(), getDelimiterWithHighestCount("a|b,c|d|e").get().charValue());
-    assertEquals(Character.valueOf('\t').charValue(), getDelimiterWithHighestCount("a\tb\tc\td\te").get().charValue());
-    assertEquals(Character.valueOf(';').charValue(), getDelimiterWithHighestCount("a; b; c; d; e").get().charValue());
+    assertEquals(1 << COMMA, frequencies(Collections.singletonList("a,b,c,d,e")).mostFrequentPerLine());
+    assertEquals(1 << PIPE, frequencies(Collections.singletonList("a|b,c|d|e")).mostFrequentPerLine());
+    assertEquals(1 << TAB, frequencies(Collections.singletonList("a\tb\tc\td\te")).mostFrequentPerLine());
+    assertEquals(1 << SEMICOLON, frequencies(Collections.singletonList("a; b; c; d; e")).mostFrequentPerLine());
   }
 
   @Test
@@ -179,6 +178,56 @@ public class TabularFileMetadataExtractorTest {
   }
 
 
+  /**
+   * Quoted columns are counted like the regular expression that was used before.
+   */
+  @Test
+  public void testCountQuotedColumns() {
+    Random random = new Random(3);
+    String[] pieces = {"a", " ", "  ", ",", "\t", "\"", "'", ", \"", "\" ,"};
+    for (int i = 0; i < 10000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int p = 0; p < length; p++) {
+        sb.append(pieces[random.nextInt(pieces.length)]);
+      }
+      String line = sb.toString();
+      for (char delimiter : new char[] {',', '\t'}) {
+        for (char quote : new char[] {'"', '\''}) {
+          Matcher m = Pattern.compile("[" + delimiter + "][ ]*[" + quote + "][ ]*[^" + delimiter + "]").matcher(line);
+          int expected = 0;
+          while (m.find()) {
+            expected++;
+          }
+          assertEquals(line, expected, countQuotedColumns(line, delimiter, quote));
+        }
+      }
+    }
+  }
+
+  /**
+   * The delimiter is the one the frequency statistics agree on.
+   */
+  @Test
+  public void testDelimiterFrequencies() {
+    List<String> sample = new ArrayList<>();
+    sample.add("ID\tName\tName2\tName3");
+    sample.add("1\ta\tb\tc,1");
+    sample.add("2\tc\td\te,2");
+    sample.add("3\tf\tg\th,,,,,,,,,,,,,,,3");
+    sample.add("4;i|j");
+
+    DelimiterFrequencies frequencies = frequencies(sample);
+    assertEquals(5, frequencies.lines());
+    assertEquals(3, frequencies.frequency(3, TAB));
+    assertEquals(15, frequencies.frequency(3, COMMA));
+    // tab, semicolon and pipe are equally stable, comma is the most frequent and tab the most frequent in most lines
+    assertEquals(1 << TAB | 1 << SEMICOLON | 1 << PIPE, frequencies.mostStable());
+    assertEquals(1 << COMMA, frequencies.mostFrequent());
+    assertEquals(1 << TAB, frequencies.mostFrequentPerLine());
+    assertEquals(Character.valueOf('\t'), TabularFileMetadataExtractor.getDelimiterChar(frequencies).get());
+  }
+
   @Test
   public void detectCsvAlwaysQuoted() throws IOException {
     TabularFileMetadata tabFileMetadata = extractTabularFileMetadata(FileUtils.getClasspathFile("csv/csv_always_quoted.csv").toPath());
@@ -236,4 +285,70 @@ public class TabularFileMetadataExtractorTest {
     runExtractTabularFileMetadata("tabular/test_encoding_detection.iso-8859-1.csv",',', null, StandardCharsets.ISO_8859_1);
     runExtractTabularFileMetadata("tabular/test_encoding_detection.utf-8.csv",',', null, StandardCharsets.UTF_8);
   }
+
+  /**
+   * The sample grows beyond the first lines if they are ambiguous, and the confidence tells how ambiguous they were.
+   */
+  @Test
+  public void testAdaptiveSample() throws IOException {
+    File tmp = File.createTempFile("gbif-common-sample", ".csv");
+    tmp.deleteOnExit();
+
+    // a quoted delimiter makes the first lines ambiguous, all lines are sampled
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      lines.add(i + ",b" + i + ",c");
+    }
+    lines.set(10, "10,\"b,10\",c");
+    Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+    TabularFileMetadata metadata = extractTabularFileMetadata(tmp.toPath());
+    assertEquals(',', metadata.getDelimiter().charValue());
+    assertEquals('"', metadata.getQuotedBy().charValue());
+    assertEquals(StandardCharsets.UTF_8, metadata.getEncoding());
+    assertEquals(199 / 200d, metadata.getConfidence(), 0.000001);
+
+    // unambiguous
+    lines.set(10, "10,b10,c");
+    Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+    metadata = extractTabularFileMetadata(tmp.toPath());
+    assertEquals(',', metadata.getDelimiter().charValue());
+    assertNull(metadata.getQuotedBy());
+    assertEquals(1d, metadata.getConfidence(), 0);
+
+    // no delimiter
+    Files.write(tmp.toPath(), Collections.singletonList("nothing"), StandardCharsets.UTF_8);
+    metadata = extractTabularFileMetadata(tmp.toPath());
+    assertNull(metadata.getDelimiter());
+    assertEquals(0d, metadata.getConfidence(), 0);
+  }
+
+  @Test
+  public void testCharsetConfidence() {
+    byte[] ascii = "a,b,c\n".getBytes(StandardCharsets.US_ASCII);
+    assertEquals(1d, TabularFileMetadataExtractor.charsetConfidence(detector(ascii), true), 0);
+    assertTrue(TabularFileMetadataExtractor.charsetConfidence(detector(ascii), false) < 0.5);
+
+    byte[] utf8 = "a,é,c\n".getBytes(StandardCharsets.UTF_8);
+    assertEquals(2 / 3d, TabularFileMetadataExtractor.charsetConfidence(detector(utf8), false), 0.000001);
+    byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a'};
+    assertEquals(1d, TabularFileMetadataExtractor.charsetConfidence(detector(bom), false), 0);
+  }
+
+  private static CharsetDetector detector(byte[] bytes) {
+    CharsetDetector detector = new CharsetDetector();
+    detector.update(bytes, 0, bytes.length);
+    return detector;
+  }
+
+  private static DelimiterFrequencies frequencies(List<String> sample) {
+    DelimiterFrequencies frequencies = new DelimiterFrequencies(TabularFileMetadataExtractor.POTENTIAL_DELIMITERS);
+    frequencies.addLines(sample);
+    return frequencies;
+  }
+
+  private static int indexOf(char delimiter) {
+    int index = new String(TabularFileMetadataExtractor.POTENTIAL_DELIMITERS).indexOf(delimiter);
+    assertTrue(index >= 0);
+    return index;
+  }
 }